@@ -1,15 +1,14 @@
 package mpicbg.stitching;
 
 import ij.IJ;
+import ij.ImagePlus;
 import ij.gui.Roi;
 
 import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.Vector;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import stitching.utils.Log;
-import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.util.Util;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.TranslationModel3D;
@@ -39,60 +38,87 @@ public class CollectionStitchingImgLib
 			
 			// compute all compare pairs
 			// compute all matchings
-			final AtomicInteger ai = new AtomicInteger(0);
+			// transform every tile only once for all its neighbors
+			final SpectrumCache cache;
 			
-			final int numThreads;
-			
-			if ( params.cpuMemChoice == 0 )
-				numThreads = 1;
+			if ( params.cacheSpectra )
+			{
+				final ArrayList< ImagePlus > images = new ArrayList< ImagePlus >();
+				for ( final ImageCollectionElement element : elements )
+					images.add( element.open( params.virtual ) );
+				
+				cache = new SpectrumCache( SpectrumCache.getMaxSize( images ), SpectrumCache.defaultMaxBytes );
+			}
 			else
-				numThreads = Runtime.getRuntime().availableProcessors();
+			{
+				cache = null;
+			}
 			
-	        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-	    	
-	        for ( int ithread = 0; ithread < threads.length; ++ithread )
-	            threads[ ithread ] = new Thread(new Runnable()
+	        // one task per pair, the FFTs and peaks of a pair are tasks of the same pool
+	        final ArrayList< Runnable > tasks = new ArrayList< Runnable >();
+	        
+	        for ( final ComparePair pair : pairs )
+	            tasks.add( new Runnable()
 	            {
 	                @Override
 	                public void run()
 	                {		
-	                   	final int myNumber = ai.getAndIncrement();
 	                    
-	                    for ( int i = 0; i < pairs.size(); i++ )
-	                    {
-	                    	if ( i % numThreads == myNumber )
-	                    	{
-	                    		final ComparePair pair = pairs.get( i );
-	                    		
-	                    		long start = System.currentTimeMillis();			
-	                			
-	                    		// where do we approximately overlap?
-	                			final Roi roi1 = getROI( pair.getTile1().getElement(), pair.getTile2().getElement() );
-	                			final Roi roi2 = getROI( pair.getTile2().getElement(), pair.getTile1().getElement() );
-	                			
-	            				final PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), roi1, roi2, pair.getTimePoint1(), pair.getTimePoint2(), params );			
-	            				if ( result == null )
-	            				{
-	            					Log.error( "Collection stitching failed" );
-	            					return;
-	            				}
+	                    long start = System.currentTimeMillis();			
+	                	
+	            		final PairWiseStitchingResult result;
+	            		
+	            		if ( cache != null )
+	            		{
+	            			// whole tiles, so that the spectrum of a tile can be used for all of its neighbors
+	            			result = cache.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), null, null, pair.getTimePoint1(), pair.getTimePoint2(), params );
+	            		}
+	            		else
+	            		{
+		                    // where do we approximately overlap?
+		                	final Roi roi1 = getROI( pair.getTile1().getElement(), pair.getTile2().getElement() );
+		                	final Roi roi2 = getROI( pair.getTile2().getElement(), pair.getTile1().getElement() );
+		                	
+		                	// and in z, null for 2d
+		                	final int[] zRange1 = getZRange( pair.getTile1().getElement(), pair.getTile2().getElement() );
+		                	final int[] zRange2 = getZRange( pair.getTile2().getElement(), pair.getTile1().getElement() );
+		                	
+		            		result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), roi1, roi2, zRange1, zRange2, pair.getTimePoint1(), pair.getTimePoint2(), params );
+	            		}
+	            		
+	            		if ( result == null )
+	            		{
+	            			Log.error( "Collection stitching failed" );
+	            			return;
+	            		}
 	
-	            				if ( params.dimensionality == 2 )
-	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
-	            				else
-	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ), result.getOffset( 2 ) } );
-	            				
-	            				pair.setCrossCorrelation( result.getCrossCorrelation() );
+	            		if ( params.dimensionality == 2 )
+	            			pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
+	            		else
+	            			pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ), result.getOffset( 2 ) } );
+	            		
+	            		pair.setCrossCorrelation( result.getCrossCorrelation() );
 	
-	            				Log.info( pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1() + "]" + " <- " + pair.getImagePlus2().getTitle() + "[" + pair.getTimePoint2() + "]" + ": " + 
-	            						Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + (System.currentTimeMillis() - start) + " ms)");
-	                    	}
-	                    }
+	            		Log.info( pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1() + "]" + " <- " + pair.getImagePlus2().getTitle() + "[" + pair.getTimePoint2() + "]" + ": " + 
+	            				Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + (System.currentTimeMillis() - start) + " ms)");
 	                }
 	            });
 	        
 	        final long time = System.currentTimeMillis();
-	        SimpleMultiThreading.startAndJoin( threads );
+	        
+	        // to save memory only one pair at a time
+	        final RegistrationExecutor executor = new RegistrationExecutor();
+	        try
+	        {
+	        	executor.run( tasks, params.cpuMemChoice == 0 );
+	        }
+	        finally
+	        {
+	        	executor.shutdown();
+	        }
+	        
+	        if ( cache != null )
+	        	Log.info( "Computed " + cache.getNumTransforms() + " spectra for " + pairs.size() + " pairs." );
 	        
 	        // get the final positions of all tiles
 	        //optimized = GlobalOptimization.optimize( pairs, pairs.get( 0 ).getTile1(), params );
@@ -151,33 +177,69 @@ public class CollectionStitchingImgLib
 		final int start[] = new int[ 2 ], end[] = new int[ 2 ];
 		
 		for ( int dim = 0; dim < 2; ++dim )
-		{			
-			// begin of 2 lies inside 1
-			if ( e2.offset[ dim ] >= e1.offset[ dim ] && e2.offset[ dim ] <= e1.offset[ dim ] + e1.size[ dim ] )
-			{
-				start[ dim ] = Math.round( e2.offset[ dim ] - e1.offset[ dim ] );
-				
-				// end of 2 lies inside 1
-				if ( e2.offset[ dim ] + e2.size[ dim ] <= e1.offset[ dim ] + e1.size[ dim ] )
-					end[ dim ] = Math.round( e2.offset[ dim ] + e2.size[ dim ] - e1.offset[ dim ] );
-				else
-					end[ dim ] = Math.round( e1.size[ dim ] );
-			}
-			else if ( e2.offset[ dim ] + e2.size[ dim ] <= e1.offset[ dim ] + e1.size[ dim ] ) // end of 2 lies inside 1
-			{
-				start[ dim ] = 0;
-				end[ dim ] = Math.round( e2.offset[ dim ] + e2.size[ dim ] - e1.offset[ dim ] );
-			}
-			else // if both outside then the whole image 
-			{
-				start[ dim ] = -1;
-				end[ dim ] = -1;
-			}
-		}
+			getOverlap( e1, e2, dim, start, end );
 		
 		return new Roi( new Rectangle( start[ 0 ], start[ 1 ], end[ 0 ] - start[ 0 ], end[ 1 ] - start[ 1 ] ) );
 	}
 
+	/**
+	 * The z-part of the bounding box of the approximate overlap, see {@link #getROI(ImageCollectionElement, ImageCollectionElement)}
+	 * 
+	 * @return - the first slice (starting at 0) and the number of slices of e1 that overlap with e2, or null if it is 2d or all slices
+	 * should be used
+	 */
+	protected static int[] getZRange( final ImageCollectionElement e1, final ImageCollectionElement e2 )
+	{
+		if ( e1.size.length < 3 || e2.size.length < 3 || e1.offset.length < 3 || e2.offset.length < 3 )
+			return null;
+		
+		final int start[] = new int[ 3 ], end[] = new int[ 3 ];
+		getOverlap( e1, e2, 2, start, end );
+		
+		// both outside or less than two slices overlap, then the whole stack 
+		if ( start[ 2 ] < 0 || end[ 2 ] - start[ 2 ] < 2 )
+			return null;
+		
+		final int first = Math.max( 0, start[ 2 ] );
+		final int last = Math.min( e1.size[ 2 ], end[ 2 ] );
+		
+		if ( first == 0 && last == e1.size[ 2 ] )
+			return null;
+		
+		return new int[]{ first, last - first };
+	}
+
+	/**
+	 * Computes where e2 approximately overlaps with e1 in one dimension, in the coordinates of e1
+	 * 
+	 * @param start - the first overlapping pixel will be written into start[ dim ], -1 if the whole image
+	 * @param end - the end (exclusive) will be written into end[ dim ], -1 if the whole image
+	 */
+	protected static void getOverlap( final ImageCollectionElement e1, final ImageCollectionElement e2, final int dim, final int[] start, final int[] end )
+	{
+		// begin of 2 lies inside 1
+		if ( e2.offset[ dim ] >= e1.offset[ dim ] && e2.offset[ dim ] <= e1.offset[ dim ] + e1.size[ dim ] )
+		{
+			start[ dim ] = Math.round( e2.offset[ dim ] - e1.offset[ dim ] );
+			
+			// end of 2 lies inside 1
+			if ( e2.offset[ dim ] + e2.size[ dim ] <= e1.offset[ dim ] + e1.size[ dim ] )
+				end[ dim ] = Math.round( e2.offset[ dim ] + e2.size[ dim ] - e1.offset[ dim ] );
+			else
+				end[ dim ] = Math.round( e1.size[ dim ] );
+		}
+		else if ( e2.offset[ dim ] + e2.size[ dim ] <= e1.offset[ dim ] + e1.size[ dim ] ) // end of 2 lies inside 1
+		{
+			start[ dim ] = 0;
+			end[ dim ] = Math.round( e2.offset[ dim ] + e2.size[ dim ] - e1.offset[ dim ] );
+		}
+		else // if both outside then the whole image 
+		{
+			start[ dim ] = -1;
+			end[ dim ] = -1;
+		}
+	}
+
 	protected static Vector< ComparePair > findOverlappingTiles( final ArrayList< ImageCollectionElement > elements, final StitchingParameters params )
 	{		
 		for ( final ImageCollectionElement element : elements )
@@ -48,6 +48,7 @@ public class ImageCollectionElement
 	
 	public File getFile() { return file; }
 	public boolean isVirtual() { return virtual; }
+	public boolean isOpen() { return imp != null; }
 	
 	/**
 	 * Used by the multi-series stitching
@@ -127,7 +128,8 @@ public class ImageCollectionElement
 
 	public void close() 
 	{
-		imp.close();
+		if ( imp != null )
+			imp.close();
 		imp = null;
 	}
 }
@@ -0,0 +1,214 @@
+package mpicbg.stitching;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+
+import java.awt.Rectangle;
+
+import stitching.utils.Log;
+
+/**
+ * A 2d or 3d box of an image that is read row by row without copying it, e.g. the overlap of two tiles that is
+ * padded for the phase correlation. The rows of an {@link ImagePlus} are read directly from the pixel arrays
+ * of its stack, if all channels should be used they are averaged while reading a row.
+ */
+public abstract class ImageRegion
+{
+	final int[] size;
+
+	protected ImageRegion( final int[] size )
+	{
+		this.size = size.clone();
+	}
+
+	public int numDimensions() { return size.length; }
+	public int[] getSize() { return size.clone(); }
+	public int getSize( final int d ) { return size[ d ]; }
+
+	public long getNumPixels()
+	{
+		long numPixels = 1;
+
+		for ( final int s : size )
+			numPixels *= s;
+
+		return numPixels;
+	}
+
+	/**
+	 * Reads a part of one row, all coordinates are relative to the region
+	 *
+	 * @param x - the first pixel of the row that is read
+	 * @param y - the row
+	 * @param z - the slice, 0 for 2d
+	 * @param length - how many pixels are read
+	 * @param row - the pixels will be written into row[ 0 ] ... row[ length - 1 ]
+	 */
+	public abstract void getRow( int x, int y, int z, int length, float[] row );
+
+	/**
+	 * @param min - the first pixel of the new region, relative to this region
+	 * @param size - the size of the new region, it has to be inside this region
+	 * @return - the part of this region, nothing is copied
+	 */
+	public abstract ImageRegion getRegion( int[] min, int[] size );
+
+	/**
+	 * @param pixels - the image, x first
+	 * @param size - the size of the image, 2d or 3d
+	 * @return - the whole image as region
+	 */
+	public static ImageRegion wrap( final float[] pixels, final int[] size )
+	{
+		return new ArrayRegion( pixels, size, new int[ 3 ], size );
+	}
+
+	/**
+	 * Wraps one channel (or the average of all channels) of one timepoint of an image, like
+	 * {@link PairWiseStitchingImgLib#getImage(ImagePlus, Roi, int[], mpicbg.imglib.image.ImageFactory, int, int)} but without
+	 * copying it. It is 3d if the image has more than one slice.
+	 *
+	 * @param imp - the image
+	 * @param roi - the rectangular area or null
+	 * @param zRange - the first slice (starting at 0) and the number of slices or null for all slices
+	 * @param channel - which channel (if channel=0 means average all channels)
+	 * @param timepoint - which timepoint
+	 * @return - the region or null if it was not an ImagePlus.GRAY8, ImagePlus.GRAY16 or ImagePlus.GRAY32
+	 */
+	public static ImageRegion wrap( final ImagePlus imp, final Roi roi, final int[] zRange, final int channel, final int timepoint )
+	{
+		if ( imp.getType() != ImagePlus.GRAY8 && imp.getType() != ImagePlus.GRAY16 && imp.getType() != ImagePlus.GRAY32 )
+		{
+			Log.error( "Unknow image type: " + imp.getType() );
+			return null;
+		}
+
+		final int numDimensions = imp.getNSlices() > 1 ? 3 : 2;
+		final Rectangle r = roi == null ? new Rectangle( 0, 0, imp.getWidth(), imp.getHeight() ) : roi.getBounds();
+		final int firstSlice = numDimensions == 3 && zRange != null ? zRange[ 0 ] : 0;
+		final int depth = numDimensions == 3 ? ( zRange == null ? imp.getNSlices() : zRange[ 1 ] ) : 1;
+		final int firstChannel = channel == 0 ? 1 : channel;
+		final int lastChannel = channel == 0 ? imp.getNChannels() : channel;
+
+		// only the arrays of the slices inside the region, for a virtual stack this loads them
+		final ImageStack stack = imp.getStack();
+		final Object[][] pixels = new Object[ depth ][ lastChannel - firstChannel + 1 ];
+
+		for ( int z = 0; z < depth; ++z )
+			for ( int c = firstChannel; c <= lastChannel; ++c )
+				pixels[ z ][ c - firstChannel ] = stack.getPixels( imp.getStackIndex( c, firstSlice + z + 1, timepoint ) );
+
+		final int[] size = numDimensions == 3 ? new int[]{ r.width, r.height, depth } : new int[]{ r.width, r.height };
+
+		return new ImagePlusRegion( pixels, imp.getWidth(), new int[]{ r.x, r.y, 0 }, size );
+	}
+
+	/**
+	 * A region of a float array
+	 */
+	protected static class ArrayRegion extends ImageRegion
+	{
+		final float[] pixels;
+		final int width, height;
+		final int[] min;
+
+		protected ArrayRegion( final float[] pixels, final int[] arraySize, final int[] min, final int[] size )
+		{
+			super( size );
+
+			this.pixels = pixels;
+			this.width = arraySize[ 0 ];
+			this.height = arraySize[ 1 ];
+			this.min = min;
+		}
+
+		@Override
+		public void getRow( final int x, final int y, final int z, final int length, final float[] row )
+		{
+			System.arraycopy( pixels, ( ( z + min[ 2 ] ) * height + y + min[ 1 ] ) * width + x + min[ 0 ], row, 0, length );
+		}
+
+		@Override
+		public ImageRegion getRegion( final int[] min, final int[] size )
+		{
+			return new ArrayRegion( pixels, new int[]{ width, height }, add( this.min, min ), size );
+		}
+	}
+
+	/**
+	 * A region of the pixel arrays of an {@link ImagePlus}, one byte[], short[] or float[] for each slice and channel
+	 */
+	protected static class ImagePlusRegion extends ImageRegion
+	{
+		final Object[][] pixels;
+		final int width;
+		final int[] min;
+
+		protected ImagePlusRegion( final Object[][] pixels, final int width, final int[] min, final int[] size )
+		{
+			super( size );
+
+			this.pixels = pixels;
+			this.width = width;
+			this.min = min;
+		}
+
+		@Override
+		public void getRow( final int x, final int y, final int z, final int length, final float[] row )
+		{
+			final Object[] channels = pixels[ z + min[ 2 ] ];
+			final int start = ( y + min[ 1 ] ) * width + x + min[ 0 ];
+
+			for ( int c = 0; c < channels.length; ++c )
+			{
+				final boolean add = c > 0;
+
+				if ( channels[ c ] instanceof byte[] )
+				{
+					final byte[] p = (byte[])channels[ c ];
+
+					for ( int i = 0; i < length; ++i )
+						row[ i ] = ( add ? row[ i ] : 0 ) + ( p[ start + i ] & 0xff );
+				}
+				else if ( channels[ c ] instanceof short[] )
+				{
+					final short[] p = (short[])channels[ c ];
+
+					for ( int i = 0; i < length; ++i )
+						row[ i ] = ( add ? row[ i ] : 0 ) + ( p[ start + i ] & 0xffff );
+				}
+				else
+				{
+					final float[] p = (float[])channels[ c ];
+
+					for ( int i = 0; i < length; ++i )
+						row[ i ] = ( add ? row[ i ] : 0 ) + p[ start + i ];
+				}
+			}
+
+			if ( channels.length > 1 )
+				for ( int i = 0; i < length; ++i )
+					row[ i ] /= channels.length;
+		}
+
+		@Override
+		public ImageRegion getRegion( final int[] min, final int[] size )
+		{
+			return new ImagePlusRegion( pixels, width, add( this.min, min ), size );
+		}
+	}
+
+	/**
+	 * @return - a + b as 3d position, b can be 2d
+	 */
+	protected static int[] add( final int[] a, final int[] b )
+	{
+		final int[] sum = a.clone();
+
+		for ( int d = 0; d < b.length; ++d )
+			sum[ d ] += b[ d ];
+
+		return sum;
+	}
+}
@@ -38,14 +38,36 @@ import mpicbg.imglib.type.numeric.real.FloatType;
  */
 public class PairWiseStitchingImgLib 
 {
-	public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, Roi roi1, Roi roi2, final int timepoint1, final int timepoint2, final StitchingParameters params )
+	public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, final Roi roi1, final Roi roi2, final int timepoint1, final int timepoint2, final StitchingParameters params )
+	{
+		return stitchPairwise( imp1, imp2, roi1, roi2, null, null, timepoint1, timepoint2, params );
+	}
+
+	/**
+	 * Computes the shift of imp2 relative to imp1 on a 3d bounding box of both stacks, the rectangular rois
+	 * define it in x and y and the z-ranges in z.
+	 * 
+	 * @param zRange1 - the first slice (starting at 0) and the number of slices of imp1 or null for all slices
+	 * @param zRange2 - the first slice (starting at 0) and the number of slices of imp2 or null for all slices
+	 */
+	public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, Roi roi1, Roi roi2, int[] zRange1, int[] zRange2, final int timepoint1, final int timepoint2, final StitchingParameters params )
 	{
 		PairWiseStitchingResult result = null;
 		roi1 = getOnlyRectangularRoi( roi1 );
 		roi2 = getOnlyRectangularRoi( roi2 );
 		
+		// the z-range only applies to stacks
+		if ( imp1.getNSlices() == 1 )
+			zRange1 = null;
+		if ( imp2.getNSlices() == 1 )
+			zRange2 = null;
+		
 		// can both images be wrapped into imglib without copying
-		final boolean canWrap = !StitchingParameters.alwaysCopy && canWrapIntoImgLib( imp1, roi1, params.channel1 ) && canWrapIntoImgLib( imp2, roi2, params.channel2 );
+		final boolean canWrap = !StitchingParameters.alwaysCopy && zRange1 == null && zRange2 == null && canWrapIntoImgLib( imp1, roi1, params.channel1 ) && canWrapIntoImgLib( imp2, roi2, params.channel2 );
+		
+		// find the shift on downsampled images first, or read the regions that cannot be wrapped without copying them
+		if ( params.pyramidLevels > 0 || ( !canWrap && !StitchingParameters.alwaysCopy && StitchingParameters.readRegions ) )
+			return PyramidPhaseCorrelation.stitchPairwise( imp1, imp2, roi1, roi2, zRange1, zRange2, timepoint1, timepoint2, params );
 		
 		
 		//
@@ -111,40 +133,40 @@ public class PairWiseStitchingImgLib
 			
 			if ( imp1.getType() == ImagePlus.GRAY32 )
 			{
-				final Image< FloatType > image1 = getImage( imp1, roi1, imgFactoryFloat, params.channel1, timepoint1 );
+				final Image< FloatType > image1 = getImage( imp1, roi1, zRange1, imgFactoryFloat, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryFloat, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryFloat, params.channel2, timepoint2 ), params );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryShort, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryShort, params.channel2, timepoint2 ), params );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryByte, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryByte, params.channel2, timepoint2 ), params );
 				else
 					Log.error( "Unknown image type: " + imp2.getType() );					
 			}
 			else if ( imp1.getType() == ImagePlus.GRAY16 )
 			{
-				final Image< UnsignedShortType > image1 = getImage( imp1, roi1, imgFactoryShort, params.channel1, timepoint1 );
+				final Image< UnsignedShortType > image1 = getImage( imp1, roi1, zRange1, imgFactoryShort, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryFloat, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryFloat, params.channel2, timepoint2 ), params );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryShort, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryShort, params.channel2, timepoint2 ), params );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryByte, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryByte, params.channel2, timepoint2 ), params );
 				else
 					Log.error( "Unknown image type: " + imp2.getType() );					
 			}
 			else if ( imp1.getType() == ImagePlus.GRAY8 )
 			{
-				final Image< UnsignedByteType > image1 = getImage( imp1, roi1, imgFactoryByte, params.channel1, timepoint1 );
+				final Image< UnsignedByteType > image1 = getImage( imp1, roi1, zRange1, imgFactoryByte, params.channel1, timepoint1 );
 				
 				if ( imp2.getType() == ImagePlus.GRAY32 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryFloat, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryFloat, params.channel2, timepoint2 ), params );
 				else if ( imp2.getType() == ImagePlus.GRAY16 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryShort, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryShort, params.channel2, timepoint2 ), params );
 				else if ( imp2.getType() == ImagePlus.GRAY8 )
-					result = performStitching( image1, getImage( imp2, roi2, imgFactoryByte, params.channel2, timepoint2 ), params );
+					result = performStitching( image1, getImage( imp2, roi2, zRange2, imgFactoryByte, params.channel2, timepoint2 ), params );
 				else
 					Log.error( "Unknown image type: " + imp2.getType() );					
 			}
@@ -172,6 +194,12 @@ public class PairWiseStitchingImgLib
 			result.offset[ 1 ] += roi1.getBounds().y;			
 		}
 		
+		if ( zRange2 != null )
+			result.offset[ 2 ] -= zRange2[ 0 ];
+		
+		if ( zRange1 != null )
+			result.offset[ 2 ] += zRange1[ 0 ];
+		
 		return result;
 	}
 
@@ -206,7 +234,18 @@ public class PairWiseStitchingImgLib
 		if ( subpixelAccuracy )
 			phaseCorr.setKeepPhaseCorrelationMatrix( true );
 		
-		phaseCorr.setComputeFFTinParalell( true );
+		// within a registration the other pairs keep the pool busy, only the threads left over are used here
+		if ( RegistrationExecutor.isWorker() )
+		{
+			final int numThreads = RegistrationExecutor.getNumThreadsPerTask();
+
+			phaseCorr.setComputeFFTinParalell( numThreads > 1 );
+			phaseCorr.setNumThreads( numThreads );
+		}
+		else
+		{
+			phaseCorr.setComputeFFTinParalell( true );
+		}
 		if ( !phaseCorr.process() )
 		{
 			Log.error( "Could not compute phase correlation: " + phaseCorr.getErrorMessage() );
@@ -266,7 +305,24 @@ public class PairWiseStitchingImgLib
 	 * 
 	 * @return - the {@link Image} or null if it was not an ImagePlus.GRAY8, ImagePlus.GRAY16 or ImagePlus.GRAY32
 	 */
-	public static < T extends RealType<T> > Image<T> getImage( final ImagePlus imp, Roi roi, final ImageFactory<T> imgFactory, final int channel, final int timepoint )
+	public static < T extends RealType<T> > Image<T> getImage( final ImagePlus imp, final Roi roi, final ImageFactory<T> imgFactory, final int channel, final int timepoint )
+	{
+		return getImage( imp, roi, null, imgFactory, channel, timepoint );
+	}
+
+	/**
+	 * return an {@link Image}<T> of a 3d bounding box as input for the PhaseCorrelation.
+	 * 
+	 * @param imp - the {@link ImagePlus}
+	 * @param roi - the rectangular area in x and y or null
+	 * @param zRange - the first slice (starting at 0) and the number of slices or null for all slices
+	 * @param imgFactory - the {@link ImageFactory} defining wher to put it into
+	 * @param channel - which channel (if channel=0 means average all channels)
+	 * @param timepoint - which timepoint
+	 * 
+	 * @return - the {@link Image} or null if it was not an ImagePlus.GRAY8, ImagePlus.GRAY16 or ImagePlus.GRAY32
+	 */
+	public static < T extends RealType<T> > Image<T> getImage( final ImagePlus imp, Roi roi, final int[] zRange, final ImageFactory<T> imgFactory, final int channel, final int timepoint )
 	{
 		// first test the roi
 		roi = getOnlyRectangularRoi( roi );
@@ -286,9 +342,6 @@ public class PairWiseStitchingImgLib
 		{
 			size[ 0 ] = imp.getWidth();
 			size[ 1 ] = imp.getHeight();
-			
-			if ( numDimensions == 3 )
-				size[ 2 ] = imp.getNSlices();
 		}
 		else
 		{
@@ -297,9 +350,19 @@ public class PairWiseStitchingImgLib
 
 			offset[ 0 ] = roi.getBounds().x;
 			offset[ 1 ] = roi.getBounds().y;
-			
-			if ( numDimensions == 3 )
+		}
+		
+		if ( numDimensions == 3 )
+		{
+			if ( zRange == null )
+			{
 				size[ 2 ] = imp.getNSlices();
+			}
+			else
+			{
+				size[ 2 ] = zRange[ 1 ];
+				offset[ 2 ] = zRange[ 0 ];
+			}
 		}
 		
 		// create the Image
@@ -451,7 +514,7 @@ public class PairWiseStitchingImgLib
 
 		// run multithreaded
 		final AtomicInteger ai = new AtomicInteger(0);					
-        final Thread[] threads = SimpleMultiThreading.newThreads();
+        final Thread[] threads = SimpleMultiThreading.newThreads( RegistrationExecutor.getNumThreads() );
 
         final Vector<Chunk> threadChunks = SimpleMultiThreading.divideIntoChunks( imageSize, threads.length );
         
@@ -506,7 +569,7 @@ public class PairWiseStitchingImgLib
                 }
             });
         
-        SimpleMultiThreading.startAndJoin( threads );		
+        RegistrationExecutor.startAndJoin( threads );		
 	}
 
 	/**
@@ -0,0 +1,338 @@
+package mpicbg.stitching;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import stitching.utils.Log;
+
+/**
+ * Coarse-to-fine phase correlation. The images are downsampled 2^levels times (by averaging) and the shift is found
+ * on the small images, verifying the {@link StitchingParameters#checkPeaks} best peaks by cross correlation. At full
+ * resolution only the overlap predicted by the coarse shift is cut out of both images, the phase correlation of these
+ * two windows gives the remaining shift of at most a few pixels. Instead of the FFT of both (padded) images at full
+ * resolution this only needs the FFT of the overlap, which is much smaller for 3d tiles that overlap by 10-20 percent.
+ */
+public class PyramidPhaseCorrelation
+{
+	/**
+	 * A dimension is not downsampled below this size (e.g. the z-dimension of a thin stack)
+	 */
+	public static int minSize = 32;
+
+	/**
+	 * How many pixels the cross correlation may move the shift found on the full resolution windows
+	 */
+	public static int maxClimbSteps = 2;
+
+	/**
+	 * Computes the shift of imp2 relative to imp1 like {@link PairWiseStitchingImgLib#stitchPairwise(ImagePlus, ImagePlus, Roi, Roi, int, int, StitchingParameters)},
+	 * using {@link StitchingParameters#pyramidLevels} levels of downsampling.
+	 */
+	public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, final Roi roi1, final Roi roi2, final int timepoint1, final int timepoint2, final StitchingParameters params )
+	{
+		return stitchPairwise( imp1, imp2, roi1, roi2, null, null, timepoint1, timepoint2, params );
+	}
+
+	/**
+	 * Computes the shift of imp2 relative to imp1 like {@link PairWiseStitchingImgLib#stitchPairwise(ImagePlus, ImagePlus, Roi, Roi, int[], int[], int, int, StitchingParameters)},
+	 * using {@link StitchingParameters#pyramidLevels} levels of downsampling.
+	 */
+	public static PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, Roi roi1, Roi roi2, final int[] zRange1, final int[] zRange2, final int timepoint1, final int timepoint2, final StitchingParameters params )
+	{
+		roi1 = PairWiseStitchingImgLib.getOnlyRectangularRoi( roi1 );
+		roi2 = PairWiseStitchingImgLib.getOnlyRectangularRoi( roi2 );
+
+		final int numDimensions = imp1.getNSlices() > 1 ? 3 : 2;
+
+		if ( ( imp2.getNSlices() > 1 ? 3 : 2 ) != numDimensions )
+		{
+			Log.error( "Images have a different dimensionality, cannot compute the phase correlation." );
+			return null;
+		}
+
+		// the rois are read directly from the images, nothing is copied
+		final ImageRegion image1 = ImageRegion.wrap( imp1, roi1, zRange1, params.channel1, timepoint1 );
+		final ImageRegion image2 = ImageRegion.wrap( imp2, roi2, zRange2, params.channel2, timepoint2 );
+
+		if ( image1 == null || image2 == null )
+		{
+			Log.error( "Pairwise stitching failed." );
+			return null;
+		}
+
+		final PairWiseStitchingResult result = computePhaseCorrelation( image1, image2, params.pyramidLevels, params.checkPeaks, params.subpixelAccuracy );
+
+		// add the offset to the shift
+		if ( roi2 != null )
+		{
+			result.offset[ 0 ] -= roi2.getBounds().x;
+			result.offset[ 1 ] -= roi2.getBounds().y;
+		}
+
+		if ( roi1 != null )
+		{
+			result.offset[ 0 ] += roi1.getBounds().x;
+			result.offset[ 1 ] += roi1.getBounds().y;
+		}
+
+		if ( zRange2 != null && numDimensions == 3 )
+			result.offset[ 2 ] -= zRange2[ 0 ];
+
+		if ( zRange1 != null && numDimensions == 3 )
+			result.offset[ 2 ] += zRange1[ 0 ];
+
+		return result;
+	}
+
+	/**
+	 * Computes the shift of img2 relative to img1, first on downsampled images and then on the overlapping windows at full resolution.
+	 *
+	 * @param img1 - the first image, x first
+	 * @param size1 - its size
+	 * @param img2 - the second image, x first
+	 * @param size2 - its size
+	 * @param levels - how often the images are downsampled by 2
+	 * @param numPeaks - how many peaks are verified by cross correlation on each level
+	 * @param subpixelAccuracy - if the final shift is computed with subpixel accuracy
+	 * @return - the shift, the cross correlation at full resolution and the phase correlation of the final peak
+	 */
+	public static PairWiseStitchingResult computePhaseCorrelation( final float[] img1, final int[] size1, final float[] img2, final int[] size2, final int levels, final int numPeaks, final boolean subpixelAccuracy )
+	{
+		return computePhaseCorrelation( ImageRegion.wrap( img1, size1 ), ImageRegion.wrap( img2, size2 ), levels, numPeaks, subpixelAccuracy );
+	}
+
+	/**
+	 * Computes the shift of img2 relative to img1, first on downsampled images and then on the overlapping windows at full resolution.
+	 *
+	 * @param img1 - the first image
+	 * @param img2 - the second image
+	 * @param levels - how often the images are downsampled by 2
+	 * @param numPeaks - how many peaks are verified by cross correlation on each level
+	 * @param subpixelAccuracy - if the final shift is computed with subpixel accuracy
+	 * @return - the shift, the cross correlation at full resolution and the phase correlation of the final peak
+	 */
+	public static PairWiseStitchingResult computePhaseCorrelation( final ImageRegion img1, final ImageRegion img2, final int levels, final int numPeaks, final boolean subpixelAccuracy )
+	{
+		final int[] size1 = img1.getSize();
+		final int[] size2 = img2.getSize();
+		final int numDimensions = size1.length;
+		final int[] factor = new int[ numDimensions ];
+		boolean downsample = false;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			factor[ d ] = getFactor( Math.min( size1[ d ], size2[ d ] ), levels );
+			downsample |= factor[ d ] > 1;
+		}
+
+		if ( !downsample )
+			return correlate( img1, img2, numPeaks, subpixelAccuracy );
+
+		// the shift on the downsampled images
+		final int[] coarseSize1 = new int[ numDimensions ];
+		final int[] coarseSize2 = new int[ numDimensions ];
+
+		final float[][] coarse = new float[ 2 ][];
+		final ArrayList< Runnable > tasks = new ArrayList< Runnable >();
+
+		tasks.add( new Runnable()
+		{
+			@Override
+			public void run() { coarse[ 0 ] = downsample( img1, factor, coarseSize1 ); }
+		} );
+
+		tasks.add( new Runnable()
+		{
+			@Override
+			public void run() { coarse[ 1 ] = downsample( img2, factor, coarseSize2 ); }
+		} );
+
+		RegistrationExecutor.invokeAll( tasks );
+
+		final PairWiseStitchingResult coarseResult = correlate( ImageRegion.wrap( coarse[ 0 ], coarseSize1 ), ImageRegion.wrap( coarse[ 1 ], coarseSize2 ), numPeaks, false );
+
+		// the overlap of both images at full resolution for the upscaled shift
+		final int[] shift = new int[ numDimensions ];
+		final int[] min = new int[ numDimensions ];
+		final int[] windowSize = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			shift[ d ] = Math.round( coarseResult.getOffset( d ) ) * factor[ d ];
+			min[ d ] = Math.max( 0, shift[ d ] );
+			windowSize[ d ] = Math.min( size1[ d ], size2[ d ] + shift[ d ] ) - min[ d ];
+
+			// no reasonable overlap, the coarse shift cannot be refined
+			if ( windowSize[ d ] < 2 * factor[ d ] )
+				return correlate( img1, img2, numPeaks, subpixelAccuracy );
+		}
+
+		final int[] min2 = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+			min2[ d ] = min[ d ] - shift[ d ];
+
+		final PairWiseStitchingResult fine = correlate( img1.getRegion( min, windowSize ), img2.getRegion( min2, windowSize ), numPeaks, subpixelAccuracy );
+
+		// window2 starts shift pixels before window1 in the coordinates of img1
+		final float[] offset = new float[ numDimensions ];
+		final int[] roundedOffset = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			offset[ d ] = shift[ d ] + fine.getOffset( d );
+			roundedOffset[ d ] = Math.round( offset[ d ] );
+		}
+
+		// the peak of the small windows can be off by a pixel, the cross correlation at full resolution decides
+		final int[] bestOffset = roundedOffset.clone();
+		final double r = climbCrossCorrelation( bestOffset, img1, img2, maxClimbSteps );
+
+		for ( int d = 0; d < numDimensions; ++d )
+			if ( bestOffset[ d ] != roundedOffset[ d ] )
+				offset[ d ] = bestOffset[ d ];
+
+		return new PairWiseStitchingResult( offset, (float)r, fine.getPhaseCorrelation() );
+	}
+
+	/**
+	 * Moves the shift to the neighboring integer shift (including diagonals) with the highest cross correlation until
+	 * none of them is better.
+	 *
+	 * @param shift - the start, contains the best shift afterwards
+	 * @param maxSteps - after how many moves to stop
+	 * @return - the cross correlation of the best shift
+	 */
+	protected static double climbCrossCorrelation( final int[] shift, final ImageRegion img1, final ImageRegion img2, final int maxSteps )
+	{
+		final int numDimensions = shift.length;
+		final int numNeighbors = numDimensions == 3 ? 27 : 9;
+
+		double bestR = SpectrumCache.testCrossCorrelation( shift, img1, img2 );
+
+		for ( int step = 0; step < maxSteps; ++step )
+		{
+			final int[] best = shift.clone();
+			final ArrayList< int[] > tests = new ArrayList< int[] >();
+
+			for ( int i = 0; i < numNeighbors; ++i )
+			{
+				final int[] test = new int[ numDimensions ];
+
+				// i encodes the offsets -1, 0, 1 per dimension
+				for ( int d = 0, j = i; d < numDimensions; ++d, j /= 3 )
+					test[ d ] = shift[ d ] + j % 3 - 1;
+
+				tests.add( test );
+			}
+
+			final double[] r = SpectrumCache.testCrossCorrelations( tests, img1, img2 );
+
+			for ( int i = 0; i < numNeighbors; ++i )
+				if ( r[ i ] > bestR )
+				{
+					bestR = r[ i ];
+					System.arraycopy( tests.get( i ), 0, best, 0, numDimensions );
+				}
+
+			if ( Arrays.equals( best, shift ) )
+				break;
+
+			System.arraycopy( best, 0, shift, 0, numDimensions );
+		}
+
+		return bestR;
+	}
+
+	/**
+	 * @return - the phase correlation of two images that are padded to a common size
+	 */
+	protected static PairWiseStitchingResult correlate( final ImageRegion img1, final ImageRegion img2, final int numPeaks, final boolean subpixelAccuracy )
+	{
+		final int[] maxSize = new int[ img1.numDimensions() ];
+
+		for ( int d = 0; d < maxSize.length; ++d )
+			maxSize[ d ] = Math.max( img1.getSize( d ), img2.getSize( d ) );
+
+		final SpectrumCache spectra = new SpectrumCache( maxSize, 0 );
+		final SpectrumCache.Spectrum[] s = new SpectrumCache.Spectrum[ 2 ];
+		final ArrayList< Runnable > tasks = new ArrayList< Runnable >();
+
+		tasks.add( new Runnable()
+		{
+			@Override
+			public void run() { s[ 0 ] = spectra.createSpectrum( img1 ); }
+		} );
+
+		tasks.add( new Runnable()
+		{
+			@Override
+			public void run() { s[ 1 ] = spectra.createSpectrum( img2 ); }
+		} );
+
+		RegistrationExecutor.invokeAll( tasks );
+
+		return spectra.computePhaseCorrelation( s[ 0 ], s[ 1 ], numPeaks, subpixelAccuracy );
+	}
+
+	/**
+	 * @param size - the size of the smaller image in one dimension
+	 * @param levels - how often it should be downsampled by 2
+	 * @return - the downsampling factor in this dimension, at most 2^levels and 1 if the dimension is too small
+	 */
+	protected static int getFactor( final int size, final int levels )
+	{
+		int factor = 1;
+
+		for ( int l = 0; l < levels && size / ( factor * 2 ) >= minSize; ++l )
+			factor *= 2;
+
+		return factor;
+	}
+
+	/**
+	 * Averages blocks of factor[ d ] pixels, incomplete blocks at the end are ignored.
+	 *
+	 * @param img - the image
+	 * @param factor - the size of the blocks
+	 * @param newSize - the size of the downsampled image will be written into it
+	 * @return - the downsampled image, x first
+	 */
+	protected static float[] downsample( final ImageRegion img, final int[] factor, final int[] newSize )
+	{
+		final int numDimensions = img.numDimensions();
+		int numPixels = 1, blockSize = 1;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			newSize[ d ] = img.getSize( d ) / factor[ d ];
+			numPixels *= newSize[ d ];
+			blockSize *= factor[ d ];
+		}
+
+		final float[] small = new float[ numPixels ];
+		final int depth = numDimensions == 3 ? newSize[ 2 ] * factor[ 2 ] : 1;
+		final int factorZ = numDimensions == 3 ? factor[ 2 ] : 1;
+		final int width = newSize[ 0 ] * factor[ 0 ];
+		final float[] row = new float[ width ];
+
+		for ( int z = 0; z < depth; ++z )
+			for ( int y = 0; y < newSize[ 1 ] * factor[ 1 ]; ++y )
+			{
+				final int j = ( ( z / factorZ ) * newSize[ 1 ] + y / factor[ 1 ] ) * newSize[ 0 ];
+
+				img.getRow( 0, y, z, width, row );
+
+				for ( int x = 0; x < width; ++x )
+					small[ j + x / factor[ 0 ] ] += row[ x ];
+			}
+
+		for ( int i = 0; i < numPixels; ++i )
+			small[ i ] /= blockSize;
+
+		return small;
+	}
+}
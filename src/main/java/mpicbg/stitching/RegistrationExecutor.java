@@ -0,0 +1,301 @@
+package mpicbg.stitching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns all threads of a registration. The pairs, the FFTs of a pair and the verification of its peaks are all tasks
+ * of one pool of workers sharing a queue, so the threads are not multiplied by the number of pairs running.
+ * Code that would start its own threads asks {@link #isWorker()} and queues tasks instead (see {@link #startAndJoin(Thread[])}
+ * and {@link #invokeAll(List)}), a worker that waits for its tasks runs the ones nobody took yet itself while idle workers
+ * take the others. Tasks queued by a worker go before the pairs waiting in the queue, so started pairs are finished first.
+ * Code that can only use its own threads (e.g. the FFTs of ImgLib1) asks {@link #getNumThreadsPerTask()}, which
+ * divides the pool by the tasks that are still to be done. Called by any other thread everything works like before.
+ */
+public class RegistrationExecutor
+{
+	/**
+	 * How many threads register, the default is one per processor
+	 */
+	public static int defaultParallelism = Runtime.getRuntime().availableProcessors();
+
+	final BlockingDeque< Task > queue = new LinkedBlockingDeque< Task >();
+	final Worker[] workers;
+
+	// the tasks given to run() that are not finished yet
+	final AtomicInteger remainingTasks = new AtomicInteger( 0 );
+
+	public RegistrationExecutor()
+	{
+		this( defaultParallelism );
+	}
+
+	/**
+	 * @param parallelism - how many threads work at the same time
+	 */
+	public RegistrationExecutor( final int parallelism )
+	{
+		this.workers = new Worker[ Math.max( 1, parallelism ) ];
+
+		for ( int i = 0; i < workers.length; ++i )
+		{
+			workers[ i ] = new Worker( this, "RegistrationExecutor-" + i );
+			workers[ i ].setDaemon( true );
+			workers[ i ].start();
+		}
+	}
+
+	public int getParallelism() { return workers.length; }
+
+	/**
+	 * Runs the tasks on the workers and waits until all of them are done.
+	 *
+	 * @param tasks - e.g. one task per pair
+	 * @param oneAtATime - only run one of the tasks at a time to save memory, the work within a task still uses all threads
+	 * (queued tasks as well as the threads given by {@link #getNumThreadsPerTask()})
+	 */
+	public void run( final List< ? extends Runnable > tasks, final boolean oneAtATime )
+	{
+		final ArrayList< Task > counted = new ArrayList< Task >();
+
+		for ( final Runnable task : tasks )
+			counted.add( new Task( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						task.run();
+					}
+					finally
+					{
+						remainingTasks.decrementAndGet();
+					}
+				}
+			} ) );
+
+		if ( oneAtATime )
+		{
+			// every task is alone in the pool, all work within it is split by the parallelism of the pool
+			for ( final Task task : counted )
+			{
+				remainingTasks.set( 1 );
+				queue.addLast( task );
+				task.join();
+			}
+		}
+		else
+		{
+			remainingTasks.set( counted.size() );
+
+			for ( final Task task : counted )
+				queue.addLast( task );
+
+			for ( final Task task : counted )
+				task.join();
+		}
+	}
+
+	/**
+	 * Stops the workers, the executor cannot be used afterwards
+	 */
+	public void shutdown()
+	{
+		for ( final Worker worker : workers )
+			worker.interrupt();
+	}
+
+	/**
+	 * @return - true if the current thread is a worker of a {@link RegistrationExecutor}
+	 */
+	public static boolean isWorker()
+	{
+		return Thread.currentThread() instanceof Worker;
+	}
+
+	/**
+	 * @return - into how many parts work should be split, the parallelism of the pool for a worker, otherwise the number of processors
+	 */
+	public static int getNumThreads()
+	{
+		final Thread thread = Thread.currentThread();
+
+		if ( thread instanceof Worker )
+			return ( (Worker)thread ).executor.getParallelism();
+
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * For code that starts its own threads instead of queueing tasks. If there are fewer tasks left than threads in
+	 * the pool the remaining threads are shared among them, e.g. a single pair in "save memory" mode gets all of them.
+	 *
+	 * @return - how many threads the current task may use, 1 if there are at least as many tasks as threads; the
+	 * number of processors if the current thread is not a worker
+	 */
+	public static int getNumThreadsPerTask()
+	{
+		final Thread thread = Thread.currentThread();
+
+		if ( !( thread instanceof Worker ) )
+			return Runtime.getRuntime().availableProcessors();
+
+		final RegistrationExecutor executor = ( (Worker)thread ).executor;
+
+		return Math.max( 1, executor.getParallelism() / Math.max( 1, executor.remainingTasks.get() ) );
+	}
+
+	/**
+	 * Runs all tasks and waits for them. A worker queues them for the other workers and runs the ones
+	 * nobody took itself, any other thread runs them one after the other.
+	 */
+	public static void invokeAll( final List< ? extends Runnable > tasks )
+	{
+		if ( !isWorker() )
+		{
+			for ( final Runnable task : tasks )
+				task.run();
+
+			return;
+		}
+
+		final RegistrationExecutor executor = ( (Worker)Thread.currentThread() ).executor;
+		final ArrayList< Task > queued = new ArrayList< Task >();
+
+		for ( final Runnable task : tasks )
+			queued.add( new Task( task ) );
+
+		// in front of the waiting pairs, the first task first
+		for ( int i = queued.size() - 1; i >= 0; --i )
+			executor.queue.addFirst( queued.get( i ) );
+
+		// the tasks nobody took are run here, a task taken by another worker only queues tasks that it runs itself
+		// if nobody else takes them, so waiting for it cannot deadlock
+		for ( final Task task : queued )
+			task.runIfFree();
+
+		for ( final Task task : queued )
+			task.join();
+	}
+
+	/**
+	 * Starts the threads and waits for them like {@link mpicbg.imglib.multithreading.SimpleMultiThreading#startAndJoin(Thread[])}.
+	 * A worker does not start them, it runs the {@link Runnable} of every thread as a task of its pool.
+	 */
+	public static void startAndJoin( final Thread[] threads )
+	{
+		if ( isWorker() )
+		{
+			invokeAll( Arrays.asList( threads ) );
+			return;
+		}
+
+		for ( final Thread thread : threads )
+		{
+			thread.setPriority( Thread.NORM_PRIORITY );
+			thread.start();
+		}
+
+		try
+		{
+			for ( final Thread thread : threads )
+				thread.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * A queued {@link Runnable} that is run by whoever takes it first, it stays in the queue if the
+	 * worker that queued it runs it itself and is skipped there.
+	 */
+	protected static class Task
+	{
+		final Runnable runnable;
+		final AtomicBoolean taken = new AtomicBoolean( false );
+		final CountDownLatch done = new CountDownLatch( 1 );
+		volatile Throwable error = null;
+
+		protected Task( final Runnable runnable )
+		{
+			this.runnable = runnable;
+		}
+
+		protected void runIfFree()
+		{
+			if ( !taken.compareAndSet( false, true ) )
+				return;
+
+			try
+			{
+				runnable.run();
+			}
+			catch ( final Throwable t )
+			{
+				error = t;
+			}
+			finally
+			{
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Waits until the task is done, an exception of the task is thrown again here.
+		 */
+		protected void join()
+		{
+			try
+			{
+				done.await();
+			}
+			catch ( final InterruptedException e )
+			{
+				throw new RuntimeException( e );
+			}
+
+			if ( error instanceof RuntimeException )
+				throw (RuntimeException)error;
+			else if ( error instanceof Error )
+				throw (Error)error;
+		}
+	}
+
+	/**
+	 * The threads of the pool, so that they can be recognized
+	 */
+	protected static class Worker extends Thread
+	{
+		final RegistrationExecutor executor;
+
+		protected Worker( final RegistrationExecutor executor, final String name )
+		{
+			super( name );
+
+			this.executor = executor;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while ( true )
+					executor.queue.takeFirst().runIfFree();
+			}
+			catch ( final InterruptedException e )
+			{
+				// shut down
+			}
+		}
+	}
+}
@@ -0,0 +1,707 @@
+package mpicbg.stitching;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import stitching.CommonFunctions;
+import stitching.FloatArray2D;
+import stitching.FloatArray3D;
+import stitching.utils.Log;
+import edu.mines.jtk.dsp.FftComplex;
+import edu.mines.jtk.dsp.FftReal;
+
+/**
+ * Phase correlation where every image is Fourier transformed only once. All images are extended to
+ * one common FFT size (see {@link #relativeExtension}), so the normalized spectrum of an image can be correlated with the spectrum of
+ * any other image. The spectra are cached by image, ROI, channel and timepoint, a pair then only
+ * multiplies two cached spectra and computes the inverse FFT. In a grid every tile is compared to up
+ * to four neighbors, so this saves up to three of the four forward transforms of each tile.
+ *
+ * The spectra are kept as long as they fit into a budget of bytes, the spectra that were not used for
+ * the longest time are dropped first and computed again if needed. Any number of threads can use the
+ * cache at the same time.
+ */
+public class SpectrumCache
+{
+	/**
+	 * The default budget in bytes for the cached spectra, a quarter of the memory available to Java
+	 */
+	public static long defaultMaxBytes = Runtime.getRuntime().maxMemory() / 4;
+
+	/**
+	 * How much the largest image is extended on each side (relative to its size) before it is transformed,
+	 * the extension is filled by mirroring the image and fading it out like the PhaseCorrelation of ImgLib1 does
+	 */
+	public static float relativeExtension = 0.1f;
+
+	final int[] fftSize;
+	final int complexWidth;
+	final long maxBytes;
+
+	// the spectra, least recently used first
+	final LinkedHashMap< String, Spectrum > spectra = new LinkedHashMap< String, Spectrum >( 16, 0.75f, true );
+	long usedBytes = 0;
+	int numTransforms = 0;
+
+	/**
+	 * One image (or the ROI of an image) and its normalized spectrum
+	 */
+	public static class Spectrum
+	{
+		final int[] size, padding;
+		ImageRegion image;
+		float[] fft;
+		long bytes;
+
+		Spectrum( final int n )
+		{
+			this.size = new int[ n ];
+			this.padding = new int[ n ];
+		}
+
+		public int[] getSize() { return size.clone(); }
+		public ImageRegion getImage() { return image; }
+	}
+
+	/**
+	 * @param maxSize - the size of the largest image in every dimension (2 or 3 dimensions), e.g. {@link #getMaxSize(List)}
+	 * @param maxBytes - how much memory the spectra may use, e.g. {@link #defaultMaxBytes}
+	 */
+	public SpectrumCache( final int[] maxSize, final long maxBytes )
+	{
+		this.fftSize = new int[ maxSize.length ];
+		this.maxBytes = maxBytes;
+
+		final int[] extended = new int[ maxSize.length ];
+
+		for ( int d = 0; d < maxSize.length; ++d )
+			extended[ d ] = maxSize[ d ] + 2 * Math.round( maxSize[ d ] * relativeExtension );
+
+		// like CommonFunctions.zeroPadImages(), the first dimension is real
+		fftSize[ 0 ] = FftReal.nfftFast( extended[ 0 ] );
+
+		for ( int d = 1; d < maxSize.length; ++d )
+			fftSize[ d ] = FftComplex.nfftFast( extended[ d ] );
+
+		this.complexWidth = ( fftSize[ 0 ] / 2 + 1 ) * 2;
+	}
+
+	/**
+	 * @return - the largest width, height (and depth if any image has more than one slice) of all images
+	 */
+	public static int[] getMaxSize( final List< ImagePlus > images )
+	{
+		int numDimensions = 2;
+
+		for ( final ImagePlus imp : images )
+			if ( imp.getNSlices() > 1 )
+				numDimensions = 3;
+
+		final int[] maxSize = new int[ numDimensions ];
+
+		for ( final ImagePlus imp : images )
+		{
+			maxSize[ 0 ] = Math.max( maxSize[ 0 ], imp.getWidth() );
+			maxSize[ 1 ] = Math.max( maxSize[ 1 ], imp.getHeight() );
+
+			if ( numDimensions == 3 )
+				maxSize[ 2 ] = Math.max( maxSize[ 2 ], imp.getNSlices() );
+		}
+
+		return maxSize;
+	}
+
+	/**
+	 * @return - the size all images are padded to
+	 */
+	public int[] getFFTSize() { return fftSize.clone(); }
+
+	/**
+	 * @return - how many spectra were computed so far
+	 */
+	public synchronized int getNumTransforms() { return numTransforms; }
+
+	/**
+	 * Computes the shift of imp2 relative to imp1 like {@link PairWiseStitchingImgLib#stitchPairwise(ImagePlus, ImagePlus, Roi, Roi, int, int, StitchingParameters)},
+	 * the spectra are taken from the cache or computed and added to it. Images that do not fit into the FFT size
+	 * are registered without the cache.
+	 */
+	public PairWiseStitchingResult stitchPairwise( final ImagePlus imp1, final ImagePlus imp2, Roi roi1, Roi roi2, final int timepoint1, final int timepoint2, final StitchingParameters params )
+	{
+		roi1 = PairWiseStitchingImgLib.getOnlyRectangularRoi( roi1 );
+		roi2 = PairWiseStitchingImgLib.getOnlyRectangularRoi( roi2 );
+
+		if ( !fits( imp1, roi1 ) || !fits( imp2, roi2 ) )
+			return PairWiseStitchingImgLib.stitchPairwise( imp1, imp2, roi1, roi2, timepoint1, timepoint2, params );
+
+		// both spectra at the same time within a registration
+		final Spectrum[] s = new Spectrum[ 2 ];
+		final Roi r1 = roi1, r2 = roi2;
+		final ArrayList< Runnable > tasks = new ArrayList< Runnable >();
+
+		tasks.add( new Runnable()
+		{
+			@Override
+			public void run() { s[ 0 ] = getSpectrum( imp1, r1, params.channel1, timepoint1 ); }
+		} );
+
+		tasks.add( new Runnable()
+		{
+			@Override
+			public void run() { s[ 1 ] = getSpectrum( imp2, r2, params.channel2, timepoint2 ); }
+		} );
+
+		RegistrationExecutor.invokeAll( tasks );
+
+		final Spectrum s1 = s[ 0 ];
+		final Spectrum s2 = s[ 1 ];
+
+		if ( s1 == null || s2 == null )
+		{
+			Log.error( "Pairwise stitching failed." );
+			return null;
+		}
+
+		final PairWiseStitchingResult result = computePhaseCorrelation( s1, s2, params.checkPeaks, params.subpixelAccuracy );
+
+		// add the offset to the shift
+		if ( roi2 != null )
+		{
+			result.offset[ 0 ] -= roi2.getBounds().x;
+			result.offset[ 1 ] -= roi2.getBounds().y;
+		}
+
+		if ( roi1 != null )
+		{
+			result.offset[ 0 ] += roi1.getBounds().x;
+			result.offset[ 1 ] += roi1.getBounds().y;
+		}
+
+		return result;
+	}
+
+	protected boolean fits( final ImagePlus imp, final Roi roi )
+	{
+		final int numDimensions = imp.getNSlices() > 1 ? 3 : 2;
+
+		if ( numDimensions != fftSize.length )
+			return false;
+
+		final Rectangle r = roi == null ? new Rectangle( 0, 0, imp.getWidth(), imp.getHeight() ) : roi.getBounds();
+
+		return r.width <= fftSize[ 0 ] && r.height <= fftSize[ 1 ] && ( numDimensions == 2 || imp.getNSlices() <= fftSize[ 2 ] );
+	}
+
+	/**
+	 * Returns the spectrum of an image, computes it if it is not cached and drops the least recently used spectra if the budget is exceeded.
+	 *
+	 * @param imp - the image, it has to fit into {@link #getFFTSize()}
+	 * @param roi - the rectangular area or null
+	 * @param channel - which channel (if channel=0 means average all channels)
+	 * @param timepoint - which timepoint
+	 * @return - the spectrum or null if the image type is not supported
+	 */
+	public Spectrum getSpectrum( final ImagePlus imp, final Roi roi, final int channel, final int timepoint )
+	{
+		final String key = imp.getID() + " c" + channel + " t" + timepoint + " roi" + ( roi == null ? "" : roi.getBounds().toString() );
+		final Spectrum spectrum;
+
+		synchronized ( this )
+		{
+			Spectrum s = spectra.get( key );
+
+			if ( s == null )
+			{
+				s = new Spectrum( fftSize.length );
+				spectra.put( key, s );
+			}
+
+			spectrum = s;
+		}
+
+		// other threads can compute other spectra in the meantime, but wait for this one
+		synchronized ( spectrum )
+		{
+			if ( spectrum.fft == null )
+			{
+				final ImageRegion image = ImageRegion.wrap( imp, roi, null, channel, timepoint );
+
+				if ( image == null )
+				{
+					synchronized ( this )
+					{
+						spectra.remove( key );
+					}
+
+					return null;
+				}
+
+				compute( spectrum, image );
+
+				synchronized ( this )
+				{
+					++numTransforms;
+
+					// it might have been dropped while it was computed
+					if ( spectra.get( key ) == spectrum )
+					{
+						// the image is not copied, but the slices of a virtual stack are loaded for it
+						spectrum.bytes = spectrum.fft.length * 4l + ( imp.getStack().isVirtual() ? image.getNumPixels() * 4l : 0 );
+						usedBytes += spectrum.bytes;
+						evict( key );
+					}
+				}
+			}
+
+			return spectrum;
+		}
+	}
+
+	/**
+	 * Computes the spectrum of an image without caching it, e.g. of a downsampled image.
+	 *
+	 * @param image - the image, it has to fit into {@link #getFFTSize()}
+	 */
+	public Spectrum createSpectrum( final ImageRegion image )
+	{
+		final Spectrum spectrum = new Spectrum( fftSize.length );
+
+		compute( spectrum, image );
+
+		return spectrum;
+	}
+
+	/**
+	 * Places the image in the middle of the FFT size and computes its spectrum
+	 */
+	protected void compute( final Spectrum spectrum, final ImageRegion image )
+	{
+		for ( int d = 0; d < fftSize.length; ++d )
+		{
+			spectrum.size[ d ] = image.getSize( d );
+			spectrum.padding[ d ] = ( fftSize[ d ] - spectrum.size[ d ] ) / 2;
+		}
+
+		spectrum.image = image;
+		spectrum.fft = transform( image, spectrum.padding );
+	}
+
+	/**
+	 * Drops the least recently used spectra until the budget is met again, must hold the lock of the cache.
+	 *
+	 * @param keep - the spectrum that is just used
+	 */
+	protected void evict( final String keep )
+	{
+		final Iterator< Map.Entry< String, Spectrum > > it = spectra.entrySet().iterator();
+
+		while ( usedBytes > maxBytes && it.hasNext() )
+		{
+			final Map.Entry< String, Spectrum > e = it.next();
+
+			if ( e.getKey().equals( keep ) )
+				continue;
+
+			usedBytes -= e.getValue().bytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Places the image at padding in an image of the FFT size, fills the rest by mirroring the image and fading it out
+	 * towards the middle of the extension, and returns its spectrum normalized to unit vectors. The image is read
+	 * row by row while it is padded.
+	 */
+	protected float[] transform( final ImageRegion image, final int[] padding )
+	{
+		final int n = fftSize.length;
+		final int[] size = image.getSize();
+
+		// for every position in the padded image where to read in the image and how much it is faded out
+		final int[][] source = new int[ n ][];
+		final float[][] weight = new float[ n ][];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			source[ d ] = new int[ fftSize[ d ] ];
+			weight[ d ] = new float[ fftSize[ d ] ];
+
+			final int extension = fftSize[ d ] - size[ d ];
+
+			for ( int x = 0; x < fftSize[ d ]; ++x )
+			{
+				// the distance to the image, the extension wraps around and is split in the middle
+				int dist = ( x - padding[ d ] - size[ d ] + 1 + fftSize[ d ] ) % fftSize[ d ];
+
+				if ( dist == 0 || dist > extension )
+				{
+					source[ d ][ x ] = x - padding[ d ];
+					weight[ d ][ x ] = 1;
+					continue;
+				}
+
+				final int pos;
+				final float fadeOut;
+
+				if ( dist <= extension / 2 )
+				{
+					// right of the image
+					pos = size[ d ] - 1 - dist;
+					fadeOut = Math.max( 1, extension / 2 );
+				}
+				else
+				{
+					// left of the image
+					dist = extension + 1 - dist;
+					pos = dist;
+					fadeOut = Math.max( 1, extension - extension / 2 );
+				}
+
+				source[ d ][ x ] = mirror( pos, size[ d ] );
+				weight[ d ][ x ] = (float)( 0.5 + 0.5 * Math.cos( Math.PI * dist / ( fadeOut + 1 ) ) );
+			}
+		}
+
+		final int fftDepth = n == 3 ? fftSize[ 2 ] : 1;
+		final float[] padded = new float[ fftSize[ 0 ] * fftSize[ 1 ] * fftDepth ];
+		final float[] row = new float[ size[ 0 ] ];
+		int i = 0;
+
+		for ( int z = 0; z < fftDepth; ++z )
+		{
+			final int zs = n == 3 ? source[ 2 ][ z ] : 0;
+			final float wz = n == 3 ? weight[ 2 ][ z ] : 1;
+
+			for ( int y = 0; y < fftSize[ 1 ]; ++y )
+			{
+				final float wy = wz * weight[ 1 ][ y ];
+
+				image.getRow( 0, source[ 1 ][ y ], zs, size[ 0 ], row );
+
+				for ( int x = 0; x < fftSize[ 0 ]; ++x )
+					padded[ i++ ] = row[ source[ 0 ][ x ] ] * wy * weight[ 0 ][ x ];
+			}
+		}
+
+		final float[] fft;
+
+		if ( n == 2 )
+			fft = CommonFunctions.computeFFT( new FloatArray2D( padded, fftSize[ 0 ], fftSize[ 1 ] ) ).data;
+		else
+			fft = CommonFunctions.computeFFT( new FloatArray3D( padded, fftSize[ 0 ], fftSize[ 1 ], fftSize[ 2 ] ) ).data;
+
+		CommonFunctions.normalizeComplexVectorsToUnitVectors( fft );
+
+		return fft;
+	}
+
+	/**
+	 * @return - the position mirrored into [0, size)
+	 */
+	protected static int mirror( int pos, final int size )
+	{
+		if ( size == 1 )
+			return 0;
+
+		final int period = 2 * size - 2;
+
+		pos = ( ( pos % period ) + period ) % period;
+
+		return pos < size ? pos : period - pos;
+	}
+
+	/**
+	 * Computes the phase correlation matrix of two spectra, finds the numPeaks highest peaks and tests all possible
+	 * shifts of each peak with the cross correlation, like the PhaseCorrelation of ImgLib1.
+	 *
+	 * @return - the shift of the second image relative to the first one with the highest cross correlation
+	 */
+	public PairWiseStitchingResult computePhaseCorrelation( final Spectrum s1, final Spectrum s2, final int numPeaks, final boolean subpixelAccuracy )
+	{
+		final int n = fftSize.length;
+
+		// s1 * conjugate( s2 ), the cached spectra stay untouched
+		final float[] pcm = new float[ s1.fft.length ];
+
+		for ( int i = 0; i < pcm.length; i += 2 )
+		{
+			final float a = s1.fft[ i ], b = s1.fft[ i + 1 ];
+			final float c = s2.fft[ i ], d = s2.fft[ i + 1 ];
+
+			pcm[ i ] = a * c + b * d;
+			pcm[ i + 1 ] = b * c - a * d;
+		}
+
+		final float[] invPCM;
+
+		if ( n == 2 )
+		{
+			invPCM = CommonFunctions.pffftInv2D( new FloatArray2D( pcm, complexWidth, fftSize[ 1 ] ), fftSize[ 0 ] ).data;
+
+			// pffftInv2D() only scales by the width
+			for ( int i = 0; i < invPCM.length; ++i )
+				invPCM[ i ] /= fftSize[ 1 ];
+		}
+		else
+		{
+			invPCM = CommonFunctions.pffftInv3DMT( new FloatArray3D( pcm, complexWidth, fftSize[ 1 ], fftSize[ 2 ] ), fftSize[ 0 ] ).data;
+		}
+
+		final ArrayList< int[] > peaks = findPeaks( invPCM, fftSize, Math.max( 1, numPeaks ) );
+
+		// test the shifts p and p - size in every dimension for every peak, corrected by where the images were placed
+		final ArrayList< int[] > shifts = new ArrayList< int[] >();
+		final ArrayList< int[] > shiftPeaks = new ArrayList< int[] >();
+		final int[] base = new int[ n ];
+
+		for ( final int[] peak : peaks )
+		{
+			for ( int d = 0; d < n; ++d )
+				base[ d ] = ( ( peak[ d ] - s1.padding[ d ] + s2.padding[ d ] ) % fftSize[ d ] + fftSize[ d ] ) % fftSize[ d ];
+
+			for ( int c = 0; c < ( 1 << n ); ++c )
+			{
+				final int[] shift = new int[ n ];
+
+				for ( int d = 0; d < n; ++d )
+					shift[ d ] = ( c & ( 1 << d ) ) == 0 ? base[ d ] : base[ d ] - fftSize[ d ];
+
+				shifts.add( shift );
+				shiftPeaks.add( peak );
+			}
+		}
+
+		final double[] r = testCrossCorrelations( shifts, s1.image, s2.image );
+
+		int[] bestPeak = null, bestShift = null;
+		double bestR = -Double.MAX_VALUE;
+
+		for ( int i = 0; i < r.length; ++i )
+			if ( r[ i ] > bestR )
+			{
+				bestR = r[ i ];
+				bestPeak = shiftPeaks.get( i );
+				bestShift = shifts.get( i );
+			}
+
+		final float[] offset = new float[ n ];
+		final float peakValue = invPCM[ getIndex( bestPeak, fftSize ) ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			offset[ d ] = bestShift[ d ];
+
+			if ( subpixelAccuracy )
+				offset[ d ] += getSubpixelOffset( invPCM, bestPeak, d );
+		}
+
+		return new PairWiseStitchingResult( offset, (float)bestR, peakValue );
+	}
+
+	protected static int getIndex( final int[] position, final int[] size )
+	{
+		int index = 0;
+
+		for ( int d = size.length - 1; d >= 0; --d )
+			index = index * size[ d ] + position[ d ];
+
+		return index;
+	}
+
+	/**
+	 * @return - the offset of the maximum of a parabola through the peak and its two neighbors in dimension d
+	 */
+	protected float getSubpixelOffset( final float[] invPCM, final int[] peak, final int d )
+	{
+		final int[] p = peak.clone();
+		final float center = invPCM[ getIndex( p, fftSize ) ];
+
+		p[ d ] = ( peak[ d ] + fftSize[ d ] - 1 ) % fftSize[ d ];
+		final float left = invPCM[ getIndex( p, fftSize ) ];
+
+		p[ d ] = ( peak[ d ] + 1 ) % fftSize[ d ];
+		final float right = invPCM[ getIndex( p, fftSize ) ];
+
+		final float curvature = left - 2 * center + right;
+
+		// the peak is a local maximum, so the offset is within +-0.5 if it is curved at all
+		if ( curvature >= 0 )
+			return 0;
+
+		return ( left - right ) / ( 2 * curvature );
+	}
+
+	/**
+	 * Finds the highest local maxima of the inverse phase correlation matrix, the borders wrap around.
+	 *
+	 * @return - the positions of at most numPeaks maxima, highest first
+	 */
+	public static ArrayList< int[] > findPeaks( final float[] invPCM, final int[] size, final int numPeaks )
+	{
+		final int n = size.length;
+		final ArrayList< int[] > peaks = new ArrayList< int[] >();
+		final ArrayList< Float > values = new ArrayList< Float >();
+
+		final int[] position = new int[ n ];
+		final int[] neighbor = new int[ n ];
+		int numNeighbors = 1;
+
+		for ( int d = 0; d < n; ++d )
+			numNeighbors *= 3;
+
+		for ( int i = 0; i < invPCM.length; ++i )
+		{
+			final float value = invPCM[ i ];
+
+			// only local maxima higher than the lowest peak so far are interesting
+			if ( peaks.size() < numPeaks || value > values.get( values.size() - 1 ) )
+			{
+				boolean isMax = true;
+
+				for ( int j = 0; j < numNeighbors && isMax; ++j )
+				{
+					int k = j;
+
+					for ( int d = 0; d < n; ++d )
+					{
+						neighbor[ d ] = ( position[ d ] + k % 3 - 1 + size[ d ] ) % size[ d ];
+						k /= 3;
+					}
+
+					if ( invPCM[ getIndex( neighbor, size ) ] > value )
+						isMax = false;
+				}
+
+				if ( isMax )
+				{
+					int insert = values.size();
+
+					while ( insert > 0 && values.get( insert - 1 ) < value )
+						--insert;
+
+					values.add( insert, value );
+					peaks.add( insert, position.clone() );
+
+					if ( peaks.size() > numPeaks )
+					{
+						values.remove( numPeaks );
+						peaks.remove( numPeaks );
+					}
+				}
+			}
+
+			// next position
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ++position[ d ] < size[ d ] )
+					break;
+
+				position[ d ] = 0;
+			}
+		}
+
+		return peaks;
+	}
+
+	/**
+	 * Computes the correlation coefficient (R) for all shifts, see {@link #testCrossCorrelation(int[], ImageRegion, ImageRegion)}.
+	 * Within a registration every shift is a task of its pool.
+	 *
+	 * @return - the R of every shift in the same order
+	 */
+	public static double[] testCrossCorrelations( final List< int[] > shifts, final ImageRegion img1, final ImageRegion img2 )
+	{
+		final double[] r = new double[ shifts.size() ];
+		final ArrayList< Runnable > tasks = new ArrayList< Runnable >();
+
+		for ( int i = 0; i < r.length; ++i )
+		{
+			final int j = i;
+
+			tasks.add( new Runnable()
+			{
+				@Override
+				public void run() { r[ j ] = testCrossCorrelation( shifts.get( j ), img1, img2 ); }
+			} );
+		}
+
+		RegistrationExecutor.invokeAll( tasks );
+
+		return r;
+	}
+
+	/**
+	 * Computes the correlation coefficient (R) of two images where they overlap, image 2 is placed at shift.
+	 * Like the PhaseCorrelation of ImgLib1 and Stitching_2D it is 0 if less than 1% of the smaller image overlaps.
+	 */
+	public static double testCrossCorrelation( final int[] shift, final ImageRegion img1, final ImageRegion img2 )
+	{
+		final int n = shift.length;
+		final int[] size1 = img1.getSize();
+		final int[] size2 = img2.getSize();
+		final int[] min = new int[ n ], max = new int[ n ];
+		long minSize = 1, count = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			// the overlap in the coordinates of image 1
+			min[ d ] = Math.max( 0, shift[ d ] );
+			max[ d ] = Math.min( size1[ d ], size2[ d ] + shift[ d ] );
+
+			if ( max[ d ] <= min[ d ] )
+				return 0;
+
+			minSize *= Math.min( size1[ d ], size2[ d ] );
+			count *= max[ d ] - min[ d ];
+		}
+
+		if ( count <= minSize * 0.01 )
+			return 0;
+
+		double sum1 = 0, sum2 = 0, sum11 = 0, sum22 = 0, sum12 = 0;
+
+		final int minZ = n == 3 ? min[ 2 ] : 0;
+		final int maxZ = n == 3 ? max[ 2 ] : 1;
+		final int shiftZ = n == 3 ? shift[ 2 ] : 0;
+
+		final int length = max[ 0 ] - min[ 0 ];
+		final float[] row1 = new float[ length ];
+		final float[] row2 = new float[ length ];
+
+		for ( int z = minZ; z < maxZ; ++z )
+			for ( int y = min[ 1 ]; y < max[ 1 ]; ++y )
+			{
+				img1.getRow( min[ 0 ], y, z, length, row1 );
+				img2.getRow( min[ 0 ] - shift[ 0 ], y - shift[ 1 ], z - shiftZ, length, row2 );
+
+				for ( int x = 0; x < length; ++x )
+				{
+					final double v1 = row1[ x ];
+					final double v2 = row2[ x ];
+
+					sum1 += v1;
+					sum2 += v2;
+					sum11 += v1 * v1;
+					sum22 += v2 * v2;
+					sum12 += v1 * v2;
+				}
+			}
+
+		final double var1 = sum11 / count - ( sum1 / count ) * ( sum1 / count );
+		final double var2 = sum22 / count - ( sum2 / count ) * ( sum2 / count );
+		final double coVar = sum12 / count - ( sum1 / count ) * ( sum2 / count );
+
+		// all pixels had the same color....
+		if ( var1 <= 0 || var2 <= 0 )
+			return 0;
+
+		return coVar / Math.sqrt( var1 * var2 );
+	}
+}
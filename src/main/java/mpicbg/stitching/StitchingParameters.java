@@ -15,11 +15,22 @@ public class StitchingParameters
 	 */
 	public static boolean alwaysCopy = false;
 	
+	/**
+	 * If the images cannot be wrapped (a roi, a z-range or all channels averaged), read the regions directly from the
+	 * ImagePlus instead of copying them, see {@link ImageRegion}. The phase correlation is then computed by {@link PyramidPhaseCorrelation}.
+	 */
+	public static boolean readRegions = false;
+	
 	public int dimensionality;
 	public int fusionMethod;
 	public String fusedName;
 	public int checkPeaks;
 	public boolean addTilesAsRois;
+	// register whole tiles and transform each of them only once, see SpectrumCache
+	public boolean cacheSpectra = false;
+	// find the shift on images downsampled 2^pyramidLevels times first, see PyramidPhaseCorrelation (0 means full resolution only)
+	public int pyramidLevels = 0;
+	
 	public boolean computeOverlap, subpixelAccuracy, ignoreZeroValuesFusion = false, downSample = false, displayFusion = false;
 	public boolean invertX, invertY;
 	public boolean ignoreZStage;
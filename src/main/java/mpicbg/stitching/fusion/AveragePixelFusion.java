@@ -1,9 +1,13 @@
 package mpicbg.stitching.fusion;
 
-public class AveragePixelFusion implements PixelFusion
+public class AveragePixelFusion implements BatchPixelFusion
 {
 	double avg;
 	int count;
+
+	// sum and count of every pixel of a row
+	double[] rowSum = new double[ 0 ];
+	int[] rowCount = new int[ 0 ];
 	
 	public AveragePixelFusion() { clear(); }
 	
@@ -29,6 +33,77 @@ public class AveragePixelFusion implements PixelFusion
 		return (avg/count); 
 	}
 
+	@Override
+	public void fuseRow( final float[][] values, final int[] images, final double[][] localStart, final int length, final float[] out )
+	{
+		if ( images.length == 0 )
+		{
+			for ( int i = 0; i < length; ++i )
+				out[ i ] = 0;
+
+			return;
+		}
+
+		if ( rowSum.length < length )
+			rowSum = new double[ length ];
+
+		final double[] sum = rowSum;
+
+		for ( int i = 0; i < length; ++i )
+			sum[ i ] = values[ 0 ][ i ];
+
+		for ( int k = 1; k < images.length; ++k )
+		{
+			final float[] v = values[ k ];
+
+			for ( int i = 0; i < length; ++i )
+				sum[ i ] += v[ i ];
+		}
+
+		final int numImages = images.length;
+
+		for ( int i = 0; i < length; ++i )
+			out[ i ] = (float)( sum[ i ] / numImages );
+	}
+
+	/**
+	 * Same as {@link #fuseRow(float[][], int[], double[][], int, float[])}, but values of 0 are not counted
+	 */
+	protected void fuseRowIgnoreZero( final float[][] values, final int numImages, final int length, final float[] out )
+	{
+		if ( rowSum.length < length )
+			rowSum = new double[ length ];
+
+		if ( rowCount.length < length )
+			rowCount = new int[ length ];
+
+		final double[] sum = rowSum;
+		final int[] n = rowCount;
+
+		for ( int i = 0; i < length; ++i )
+		{
+			sum[ i ] = 0;
+			n[ i ] = 0;
+		}
+
+		for ( int k = 0; k < numImages; ++k )
+		{
+			final float[] v = values[ k ];
+
+			for ( int i = 0; i < length; ++i )
+			{
+				if ( v[ i ] != 0 )
+				{
+					sum[ i ] += v[ i ];
+					++n[ i ];
+				}
+			}
+		}
+
+		for ( int i = 0; i < length; ++i )
+			out[ i ] = n[ i ] == 0 ? 0 : (float)( sum[ i ] / n[ i ] );
+	}
+
 	@Override
 	public PixelFusion copy() { return new AveragePixelFusion(); }
 
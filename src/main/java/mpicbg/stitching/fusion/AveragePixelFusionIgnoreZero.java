@@ -14,6 +14,12 @@ public class AveragePixelFusionIgnoreZero extends AveragePixelFusion
 		}
 	}
 
+	@Override
+	public void fuseRow( final float[][] values, final int[] images, final double[][] localStart, final int length, final float[] out )
+	{
+		fuseRowIgnoreZero( values, images.length, length, out );
+	}
+
 	@Override
 	public PixelFusion copy() { return new AveragePixelFusionIgnoreZero(); }
 }
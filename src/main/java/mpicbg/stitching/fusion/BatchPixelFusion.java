@@ -0,0 +1,23 @@
+package mpicbg.stitching.fusion;
+
+/**
+ * A {@link PixelFusion} that fuses a whole run of output pixels at once instead of one pixel at a time.
+ * The run lies along the first dimension inside one {@link ClassifiedRegion}, so all of its pixels are
+ * covered by the same images and the local position in every image advances by one pixel per output pixel.
+ * Implementations loop over the images and pixels in tight loops without virtual calls per pixel.
+ *
+ * Any other {@link PixelFusion} can be used through a {@link BatchPixelFusionAdapter}.
+ */
+public interface BatchPixelFusion extends PixelFusion
+{
+	/**
+	 * Fuses a run of output pixels.
+	 *
+	 * @param values - for every image of the region the values along the run, values[ k ][ i ] is the value of images[ k ] at pixel i
+	 * @param images - the ids of the images, as given to {@link #addValue(double, int, double[])}
+	 * @param localStart - for every image the position of the first pixel in local coordinates of the image, pixel i is at localStart[ k ][ 0 ] + i
+	 * @param length - how many pixels the run has
+	 * @param out - receives the fused value of pixel i at out[ i ]
+	 */
+	void fuseRow( float[][] values, int[] images, double[][] localStart, int length, float[] out );
+}
@@ -0,0 +1,69 @@
+package mpicbg.stitching.fusion;
+
+/**
+ * Makes any {@link PixelFusion} usable as a {@link BatchPixelFusion}, the run is fused pixel by pixel
+ * through {@link PixelFusion#clear()}, {@link PixelFusion#addValue(double, int, double[])} and {@link PixelFusion#getValue()}.
+ */
+public class BatchPixelFusionAdapter implements BatchPixelFusion
+{
+	final PixelFusion fusion;
+
+	// the local position of every image at the current pixel
+	double[][] localPosition = new double[ 0 ][];
+
+	public BatchPixelFusionAdapter( final PixelFusion fusion )
+	{
+		this.fusion = fusion;
+	}
+
+	/**
+	 * @return - the fusion itself if it is a {@link BatchPixelFusion}, otherwise an adapter
+	 */
+	public static BatchPixelFusion wrap( final PixelFusion fusion )
+	{
+		if ( fusion instanceof BatchPixelFusion )
+			return (BatchPixelFusion)fusion;
+
+		return new BatchPixelFusionAdapter( fusion );
+	}
+
+	@Override
+	public void fuseRow( final float[][] values, final int[] images, final double[][] localStart, final int length, final float[] out )
+	{
+		if ( localPosition.length < images.length )
+			localPosition = new double[ images.length ][];
+
+		for ( int k = 0; k < images.length; ++k )
+			if ( localPosition[ k ] == null || localPosition[ k ].length != localStart[ k ].length )
+				localPosition[ k ] = new double[ localStart[ k ].length ];
+
+		for ( int i = 0; i < length; ++i )
+		{
+			fusion.clear();
+
+			for ( int k = 0; k < images.length; ++k )
+			{
+				final double[] pos = localPosition[ k ];
+
+				System.arraycopy( localStart[ k ], 0, pos, 0, pos.length );
+				pos[ 0 ] += i;
+
+				fusion.addValue( values[ k ][ i ], images[ k ], pos );
+			}
+
+			out[ i ] = (float)fusion.getValue();
+		}
+	}
+
+	@Override
+	public void clear() { fusion.clear(); }
+
+	@Override
+	public void addValue( final double value, final int imageId, final double[] localPosition ) { fusion.addValue( value, imageId, localPosition ); }
+
+	@Override
+	public double getValue() { return fusion.getValue(); }
+
+	@Override
+	public PixelFusion copy() { return new BatchPixelFusionAdapter( fusion.copy() ); }
+}
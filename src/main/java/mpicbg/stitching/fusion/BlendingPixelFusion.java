@@ -1,20 +1,30 @@
 package mpicbg.stitching.fusion;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
-public class BlendingPixelFusion implements PixelFusion
+public class BlendingPixelFusion implements BatchPixelFusion
 {
 	public static double fractionBlended = 0.2;
+
+	// the distance profiles for each image size and fractionBlended, shared by all instances
+	final static HashMap< String, double[] > profileCache = new HashMap< String, double[] >();
 	
 	final int numDimensions;
 	final int numImages;
 	final long[][] dimensions;
 	final double percentScaling;
 	final double[] border;
+
+	// for each image and dimension the distance to the border at every integer position
+	final double[][][] profiles;
 	
 	final ArrayList< ? extends ImageInterpolation< ? > > images;
 
 	double valueSum, weightSum;
+
+	// the sums of every pixel of a row
+	double[] rowValueSum = new double[ 0 ], rowWeightSum = new double[ 0 ];
 	
 	/**
 	 * Instantiates the per-pixel blending
@@ -36,15 +46,20 @@ public class BlendingPixelFusion implements PixelFusion
 		this.images = images;
 		this.percentScaling = fractionBlended;
 		
-		this.numDimensions = images.get( 0 ).getImg().numDimensions();
+		this.numDimensions = images.get( 0 ).numDimensions();
 		this.numImages = images.size();
 		this.dimensions = new long[ numImages ][ numDimensions ];
 		
 		for ( int i = 0; i < numImages; ++i )
 			for ( int d = 0; d < numDimensions; ++d )
-				dimensions[ i ][ d ] = images.get( i ).getImg().dimension( d ) - 1; 
+				dimensions[ i ][ d ] = images.get( i ).dimension( d ) - 1; 
 
 		this.border = new double[ numDimensions ];
+		this.profiles = new double[ numImages ][ numDimensions ][];
+
+		for ( int i = 0; i < numImages; ++i )
+			for ( int d = 0; d < numDimensions; ++d )
+				profiles[ i ][ d ] = getProfile( dimensions[ i ][ d ], percentScaling );
 
 		// reset
 		clear();
@@ -57,9 +72,10 @@ public class BlendingPixelFusion implements PixelFusion
 	public void addValue( final double value, final int imageId, final double[] localPosition ) 
 	{
 		// we are always inside the image, so we do not want 0.0
-		double weight = Math.max( 0.00001, computeWeight( localPosition, dimensions[ imageId ], border, percentScaling ) );
-		double alpha = 3.0;
-		weight = Math.pow(weight, alpha);
+		double weight = Math.max( 0.00001, computeWeight( localPosition, imageId ) );
+
+		// alpha = 3
+		weight = weight * weight * weight;
 		weightSum += weight;
 		valueSum += value * weight;
 	}
@@ -72,9 +88,132 @@ public class BlendingPixelFusion implements PixelFusion
 		return ( valueSum / weightSum );
 	}
 
+	@Override
+	public void fuseRow( final float[][] values, final int[] images, final double[][] localStart, final int length, final float[] out )
+	{
+		fuseRow( values, images, localStart, length, out, false );
+	}
+
+	/**
+	 * Fuses a row, see {@link #fuseRow(float[][], int[], double[][], int, float[])}. The distance to the border
+	 * in all but the first dimension is the same along the row, so it is computed once per image.
+	 *
+	 * @param ignoreZero - if values of 0 are ignored, the weights are not cubed then as in {@link BlendingPixelFusionIgnoreZero}
+	 */
+	protected void fuseRow( final float[][] values, final int[] images, final double[][] localStart, final int length, final float[] out, final boolean ignoreZero )
+	{
+		if ( rowValueSum.length < length )
+		{
+			rowValueSum = new double[ length ];
+			rowWeightSum = new double[ length ];
+		}
+
+		final double[] vSum = rowValueSum;
+		final double[] wSum = rowWeightSum;
+
+		for ( int i = 0; i < length; ++i )
+			vSum[ i ] = wSum[ i ] = 0;
+
+		for ( int k = 0; k < images.length; ++k )
+		{
+			final int imageId = images[ k ];
+			final double[] start = localStart[ k ];
+			final float[] v = values[ k ];
+
+			double otherDistance = 1;
+
+			for ( int dim = 1; dim < start.length; ++dim )
+				otherDistance *= getDistance( start[ dim ], imageId, dim );
+
+			for ( int i = 0; i < length; ++i )
+			{
+				final double value = v[ i ];
+
+				if ( ignoreZero && value == 0 )
+					continue;
+
+				// we are always inside the image, so we do not want 0.0
+				double weight = Math.max( 0.00001, computeWeight( getDistance( start[ 0 ] + i, imageId, 0 ) * otherDistance ) );
+
+				// alpha = 3
+				if ( !ignoreZero )
+					weight = weight * weight * weight;
+
+				wSum[ i ] += weight;
+				vSum[ i ] += value * weight;
+			}
+		}
+
+		for ( int i = 0; i < length; ++i )
+			out[ i ] = wSum[ i ] == 0 ? 0 : (float)( vSum[ i ] / wSum[ i ] );
+	}
+
 	@Override
 	public PixelFusion copy() { return new BlendingPixelFusion( images ); }
 
+	/**
+	 * Same as {@link #computeWeight(double[], long[], double[], double)}, but looks up the distances
+	 * of integer positions in the precomputed profiles of the image.
+	 *
+	 * @param location - the position in the image
+	 * @param imageId - which image
+	 * @return - the weight
+	 */
+	protected double computeWeight( final double[] location, final int imageId )
+	{
+		double minDistance = 1;
+
+		for ( int dim = 0; dim < location.length; ++dim )
+			minDistance *= getDistance( location[ dim ], imageId, dim );
+
+		return computeWeight( minDistance );
+	}
+
+	/**
+	 * Same as {@link #computeDistance(double, long, double, double)}, but looks up integer positions
+	 * in the precomputed profile of the image.
+	 */
+	protected double getDistance( final double localImgPos, final int imageId, final int dim )
+	{
+		final double[] profile = profiles[ imageId ][ dim ];
+		final int index = (int)localImgPos;
+
+		if ( index == localImgPos && index >= 0 && index < profile.length )
+			return profile[ index ];
+
+		return computeDistance( localImgPos, dimensions[ imageId ][ dim ], border[ dim ], percentScaling );
+	}
+
+	/**
+	 * Returns the distances to the border for all integer positions of an image dimension,
+	 * they are computed once for every size and percentScaling.
+	 *
+	 * @param dimension - the size of the image minus 1
+	 * @param percentScaling - which percentage of the image should be blended
+	 * @return - the profile, must not be modified
+	 */
+	public static double[] getProfile( final long dimension, final double percentScaling )
+	{
+		final String key = dimension + "_" + percentScaling;
+
+		synchronized ( profileCache )
+		{
+			double[] profile = profileCache.get( key );
+
+			if ( profile == null )
+			{
+				profile = new double[ (int)dimension + 1 ];
+
+				for ( int i = 0; i < profile.length; ++i )
+					profile[ i ] = computeDistance( i, dimension, 0, percentScaling );
+
+				profileCache.put( key, profile );
+			}
+
+			return profile;
+		}
+	}
+
 	/**
 	 * From SPIM Registration
 	 * 
@@ -92,23 +231,41 @@ public class BlendingPixelFusion implements PixelFusion
 		double minDistance = 1;
 		
 		for ( int dim = 0; dim < location.length; ++dim )
-		{
-			// the position in the image
-			final double localImgPos = location[ dim ];
-			
-			// the distance to the border that is closer
-			double value = Math.max( 1, Math.min( localImgPos - border[ dim ] + 1, (dimensions[ dim ] - 1) - localImgPos - border[ dim ] + 1 ) );
-						
-			final float imgAreaBlend = Math.round( percentScaling * 0.5f * dimensions[ dim ] );
-			
-			if ( value < imgAreaBlend )
-				value = value / imgAreaBlend;
-			else
-				value = 1;
-			
-			minDistance *= value;
-		}
+			minDistance *= computeDistance( location[ dim ], dimensions[ dim ], border[ dim ], percentScaling );
+
+		return computeWeight( minDistance );
+	}
+
+	/**
+	 * The relative distance to the closer border in one dimension
+	 * 
+	 * @param localImgPos - the position in the image
+	 * @param dimension - the size of the image minus 1
+	 * @param border - the border
+	 * @param percentScaling - which percentage of the image should be blended
+	 * @return - [0...1], 1 if the position is not within the blended area
+	 */
+	final public static double computeDistance( final double localImgPos, final long dimension, final double border, final double percentScaling )
+	{
+		// the distance to the border that is closer
+		double value = Math.max( 1, Math.min( localImgPos - border + 1, (dimension - 1) - localImgPos - border + 1 ) );
+					
+		final float imgAreaBlend = Math.round( percentScaling * 0.5f * dimension );
 		
+		if ( value < imgAreaBlend )
+			value = value / imgAreaBlend;
+		else
+			value = 1;
+
+		return value;
+	}
+
+	/**
+	 * @param minDistance - the product of the relative distances of all dimensions
+	 * @return - the weight
+	 */
+	final public static double computeWeight( final double minDistance )
+	{
 		if ( minDistance == 1 )
 			return 1;
 		else if ( minDistance <= 0 )
@@ -20,13 +20,19 @@ public class BlendingPixelFusionIgnoreZero extends BlendingPixelFusion
 		if ( value != 0.0 )
 		{
 			// we are always inside the image, so we do not want 0.0
-			final double weight = Math.max( 0.00001, computeWeight( localPosition, dimensions[ imageId ], border, percentScaling ) );
+			final double weight = Math.max( 0.00001, computeWeight( localPosition, imageId ) );
 			
 			weightSum += weight;
 			valueSum += value * weight;
 		}
 	}
 
+	@Override
+	public void fuseRow( final float[][] values, final int[] images, final double[][] localStart, final int length, final float[] out )
+	{
+		fuseRow( values, images, localStart, length, out, true );
+	}
+
 	@Override
 	public PixelFusion copy() { return new BlendingPixelFusionIgnoreZero( images ); }
 }
@@ -0,0 +1,452 @@
+package mpicbg.stitching.fusion;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.stitching.ImageCollectionElement;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.imageplus.ImagePlusImgFactory;
+import net.imglib2.multithreading.SimpleMultiThreading;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import stitching.utils.Log;
+
+/**
+ * Fuses the output in independent blocks of fixed size instead of one image. Every block
+ * only considers the {@link ClassifiedRegion}s that intersect it and is handed to a
+ * {@link BlockSink} once it is done, so the memory needed depends on the block size and
+ * not on the size of the fused image.
+ */
+public class BlockFusion
+{
+	/**
+	 * The default size of a block in x, y (and z)
+	 */
+	public static int[] defaultBlockSize = new int[] { 1024, 1024, 64 };
+
+	/**
+	 * Fuses all channels and timepoints block by block, see {@link Fusion#fuse(RealType, ArrayList, ArrayList, int, boolean, int, String, boolean, boolean, boolean)}
+	 * for the parameters.
+	 *
+	 * @param blockSize - the size of the blocks, the blocks at the end of each dimension might be smaller
+	 * @param sink - receives the fused blocks
+	 */
+	public static < T extends RealType< T > & NativeType< T > > void fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models,
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final int[] blockSize, final BlockSink< T > sink )
+	{
+		fuse( targetType, images, models, dimensionality, subpixelResolution, fusionType, ignoreZeroValues, blockSize, sink, null );
+	}
+
+	/**
+	 * Same as {@link #fuse(RealType, ArrayList, ArrayList, int, boolean, int, boolean, int[], BlockSink)}, but only the blocks
+	 * that changed since the last fusion into the same directory are fused and written again.
+	 *
+	 * @param manifest - what was fused before, it is updated once all blocks are written; null to fuse all blocks
+	 */
+	public static < T extends RealType< T > & NativeType< T > > void fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models,
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final int[] blockSize, final BlockSink< T > sink,
+			final FusionManifest manifest )
+	{
+		final int[][] imgSizes = new int[ images.size() ][ dimensionality ];
+
+		for ( int i = 0; i < images.size(); ++i )
+		{
+			imgSizes[ i ][ 0 ] = images.get( i ).getWidth();
+			imgSizes[ i ][ 1 ] = images.get( i ).getHeight();
+			if ( dimensionality == 3 )
+				imgSizes[ i ][ 2 ] = images.get( i ).getNSlices();
+		}
+
+		if ( manifest != null )
+		{
+			final String[] ids = new String[ images.size() ];
+			final String[] fingerprints = new String[ images.size() ];
+
+			for ( int i = 0; i < images.size(); ++i )
+			{
+				ids[ i ] = FusionManifest.getId( images.get( i ) );
+				fingerprints[ i ] = FusionManifest.getFingerprint( images.get( i ) );
+			}
+
+			manifest.setTiles( ids, fingerprints );
+		}
+
+		fuse( targetType, images, null, imgSizes, images.get( 0 ).getNChannels(), images.get( 0 ).getNFrames(), models,
+				dimensionality, subpixelResolution, fusionType, ignoreZeroValues, blockSize, sink, manifest );
+	}
+
+	/**
+	 * Same as {@link #fuse(RealType, ArrayList, ArrayList, int, boolean, int, boolean, int[], BlockSink)}, but the
+	 * images are not loaded before. Each image is loaded once a block needs it and closed again when the loaded images
+	 * exceed the given number of bytes, see {@link TileCache}. Images that are open already are used as they are.
+	 *
+	 * @param elements - the input images
+	 * @param maxBytes - how much memory the loaded images may use, e.g. {@link TileCache#defaultMaxBytes}
+	 */
+	public static < T extends RealType< T > & NativeType< T > > void fuse( final T targetType, final List< ImageCollectionElement > elements, final ArrayList< InvertibleBoundable > models,
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final int[] blockSize, final long maxBytes, final BlockSink< T > sink )
+	{
+		fuse( targetType, elements, models, dimensionality, subpixelResolution, fusionType, ignoreZeroValues, blockSize, maxBytes, sink, null );
+	}
+
+	/**
+	 * Same as {@link #fuse(RealType, List, ArrayList, int, boolean, int, boolean, int[], long, BlockSink)}, but only the blocks
+	 * that changed since the last fusion into the same directory are fused and written again. Images that no changed block
+	 * needs are not loaded at all.
+	 *
+	 * @param manifest - what was fused before, it is updated once all blocks are written; null to fuse all blocks
+	 */
+	public static < T extends RealType< T > & NativeType< T > > void fuse( final T targetType, final List< ImageCollectionElement > elements, final ArrayList< InvertibleBoundable > models,
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final int[] blockSize, final long maxBytes, final BlockSink< T > sink,
+			final FusionManifest manifest )
+	{
+		if ( manifest != null )
+		{
+			final String[] ids = new String[ elements.size() ];
+			final String[] fingerprints = new String[ elements.size() ];
+
+			for ( int i = 0; i < elements.size(); ++i )
+			{
+				ids[ i ] = FusionManifest.getId( elements.get( i ) );
+				fingerprints[ i ] = FusionManifest.getFingerprint( elements.get( i ) );
+			}
+
+			manifest.setTiles( ids, fingerprints );
+		}
+
+		final TileCache cache = new TileCache( elements, subpixelResolution, maxBytes );
+
+		try
+		{
+			fuse( targetType, null, cache, cache.getImgSizes( dimensionality ), cache.getNumChannels(), cache.getNumTimePoints(), models,
+					dimensionality, subpixelResolution, fusionType, ignoreZeroValues, blockSize, sink, manifest );
+		}
+		finally
+		{
+			cache.clear();
+		}
+
+		Log.info( "Loaded " + cache.getNumLoads() + " image files for " + elements.size() + " tiles." );
+	}
+
+	/**
+	 * Fuses block by block, the input is either the images or a {@link TileCache}.
+	 */
+	protected static < T extends RealType< T > & NativeType< T > > void fuse( final T targetType, final ArrayList< ImagePlus > images, final TileCache cache,
+			final int[][] imgSizes, final int numChannels, final int numTimePoints, final ArrayList< InvertibleBoundable > models,
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final int[] blockSize, final BlockSink< T > sink,
+			final FusionManifest manifest )
+	{
+		// first we need to estimate the boundaries of the new image
+		final double[] offset = new double[ dimensionality ];
+		final int[] size = new int[ dimensionality ];
+
+		Fusion.estimateBounds( offset, size, imgSizes, models, dimensionality );
+
+		if ( subpixelResolution )
+			for ( int d = 0; d < size.length; ++d )
+				++size[ d ];
+
+		final int[] myBlockSize = new int[ dimensionality ];
+
+		for ( int d = 0; d < dimensionality; ++d )
+			myBlockSize[ d ] = Math.min( blockSize[ d ], size[ d ] );
+
+		if ( manifest != null )
+			manifest.begin( FusionManifest.getSettings( targetType, offset, size, myBlockSize, subpixelResolution, fusionType, ignoreZeroValues ), models, imgSizes );
+
+		for ( int t = 1; t <= numTimePoints; ++t )
+		{
+			for ( int c = 1; c <= numChannels; ++c )
+			{
+				IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + ", " +
+					"channel: " + c + " of " + numChannels + " in blocks ...");
+
+				ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData =
+						cache == null ? Fusion.getBlockData( images, c, t, subpixelResolution ) : cache.getTiles( c, t );
+
+				// the images loaded on demand are not copied
+				if ( cache == null && subpixelResolution && Fusion.preShiftTranslatedImages )
+					blockData = Fusion.preShift( blockData, models, offset, Fusion.preShiftOrder );
+
+				final PixelFusion fusion = Fusion.createPixelFusion( fusionType, ignoreZeroValues, blockData );
+				final List< ClassifiedRegion > regions = Fusion.buildTileList( blockData.size(), dimensionality, models, blockData, offset );
+
+				sink.begin( t, c, size, myBlockSize );
+				fuseBlocks( targetType, t, c, size, myBlockSize, regions, blockData, offset, models, fusion, sink, manifest );
+				sink.end( t, c );
+			}
+		}
+
+		if ( manifest != null )
+			manifest.write();
+
+		IJ.showStatus( "Fusion complete." );
+
+		// reset the progress bar
+		IJ.showProgress( 1.01 );
+	}
+
+	/**
+	 * Fuses one channel/timepoint block by block, multithreaded. Blocks are processed in
+	 * row-major order, after each block the threads release the images they used and every
+	 * image is unloaded once all blocks that need it are done, so that images loaded on
+	 * demand can be closed. With a {@link FusionManifest} only the blocks that changed are fused.
+	 */
+	protected static < T extends RealType< T > & NativeType< T > > void fuseBlocks( final T targetType, final int t, final int c, final int[] size, final int[] blockSize,
+			final List< ClassifiedRegion > regions, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final double[] offset,
+			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final BlockSink< T > sink, final FusionManifest manifest )
+	{
+		final int numDimensions = size.length;
+		final int[] numBlocks = getNumBlocks( size, blockSize );
+		final List< List< ClassifiedRegion > > regionsPerBlock = assignRegions( regions, numBlocks, blockSize );
+		final List< int[] > imagesPerBlock = new ArrayList< int[] >( regionsPerBlock.size() );
+
+		for ( final List< ClassifiedRegion > blockRegions : regionsPerBlock )
+			imagesPerBlock.add( getImages( blockRegions, input.size() ) );
+
+		// the blocks that are fused
+		final List< Integer > blocks = new ArrayList< Integer >( regionsPerBlock.size() );
+		final boolean[] changed = manifest == null ? null : manifest.getChangedBlocks( t, c, size, blockSize, imagesPerBlock );
+
+		for ( int b = 0; b < regionsPerBlock.size(); ++b )
+			if ( changed == null || changed[ b ] )
+				blocks.add( b );
+
+		final int numBlocksTotal = blocks.size();
+
+		if ( numBlocksTotal == 0 )
+			return;
+
+		// how many blocks still need each image
+		final AtomicInteger[] remaining = new AtomicInteger[ input.size() ];
+
+		for ( int i = 0; i < input.size(); ++i )
+			remaining[ i ] = new AtomicInteger( 0 );
+
+		for ( final int b : blocks )
+			for ( final int i : imagesPerBlock.get( b ) )
+				remaining[ i ].incrementAndGet();
+
+		final AtomicInteger nextBlock = new AtomicInteger( 0 );
+		final AtomicInteger blocksDone = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.min( numBlocksTotal, Runtime.getRuntime().availableProcessors() ) );
+
+		IJ.showProgress( 0 );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					final ImgFactory< T > f = new ImagePlusImgFactory< T >();
+					final RegionFuser< T > fuser = new RegionFuser< T >( input, transform, offset, fusion );
+					final long[] min = new long[ numDimensions ];
+					final long[] dim = new long[ numDimensions ];
+
+					try
+					{
+						for ( int j = nextBlock.getAndIncrement(); j < numBlocksTotal; j = nextBlock.getAndIncrement() )
+						{
+							final int b = blocks.get( j );
+
+							getBlock( b, size, blockSize, numBlocks, min, dim );
+
+							final Img< T > block = f.create( dim, targetType );
+							fuseBlock( block, min, regionsPerBlock.get( b ), fuser );
+							fuser.release();
+
+							for ( final int i : imagesPerBlock.get( b ) )
+								if ( remaining[ i ].decrementAndGet() == 0 )
+									input.get( i ).unload();
+
+							try
+							{
+								sink.add( t, c, min.clone(), block );
+							}
+							catch ( IOException e )
+							{
+								Log.error( e.getMessage() );
+
+								if ( manifest != null )
+									manifest.setFailed();
+							}
+
+							IJ.showProgress( (double)blocksDone.incrementAndGet() / (double)numBlocksTotal );
+						}
+					}
+					catch ( NoninvertibleModelException e )
+					{
+						Log.error( "Cannot invert model, qutting." );
+
+						if ( manifest != null )
+							manifest.setFailed();
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+	}
+
+	/**
+	 * Fuses all regions that intersect a block into the block.
+	 *
+	 * @param block - the output, must be empty
+	 * @param min - the position of the block in the fused image
+	 * @param regions - all regions intersecting the block (or more)
+	 * @param fuser - the per-thread fusion state
+	 */
+	public static < T extends RealType< T > > void fuseBlock( final Img< T > block, final long[] min, final List< ClassifiedRegion > regions, final RegionFuser< T > fuser ) throws NoninvertibleModelException
+	{
+		final ClassifiedRegion bounds = new ClassifiedRegion( block.numDimensions() );
+
+		for ( int d = 0; d < block.numDimensions(); ++d )
+			bounds.set( new Interval( (int)min[ d ], (int)( min[ d ] + block.dimension( d ) - 1 ) ), d );
+
+		// the block in the coordinates of the fused image
+		final RandomAccess< T > out = Views.translate( block, min ).randomAccess();
+
+		for ( final ClassifiedRegion region : regions )
+		{
+			final ClassifiedRegion r = region.intersection( bounds );
+
+			if ( r != null )
+				fuser.fuse( r, out, block, min, 0 );
+		}
+	}
+
+	/**
+	 * @return - all images the regions are classified with, each once
+	 */
+	protected static int[] getImages( final List< ClassifiedRegion > regions, final int numImages )
+	{
+		final boolean[] used = new boolean[ numImages ];
+		int count = 0;
+
+		for ( final ClassifiedRegion region : regions )
+			for ( final int i : region.classArray() )
+				if ( !used[ i ] )
+				{
+					used[ i ] = true;
+					++count;
+				}
+
+		final int[] images = new int[ count ];
+
+		for ( int i = 0, j = 0; i < numImages; ++i )
+			if ( used[ i ] )
+				images[ j++ ] = i;
+
+		return images;
+	}
+
+	/**
+	 * @return - how many blocks there are in each dimension
+	 */
+	public static int[] getNumBlocks( final int[] size, final int[] blockSize )
+	{
+		final int[] numBlocks = new int[ size.length ];
+
+		for ( int d = 0; d < size.length; ++d )
+			numBlocks[ d ] = ( size[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+
+		return numBlocks;
+	}
+
+	/**
+	 * Computes position and size of a block from its index in row-major order.
+	 *
+	 * @param index - the index of the block
+	 * @param size - the size of the fused image
+	 * @param blockSize - the size of the blocks
+	 * @param numBlocks - the number of blocks in each dimension
+	 * @param min - will contain the position of the block
+	 * @param dim - will contain the size of the block
+	 */
+	public static void getBlock( final int index, final int[] size, final int[] blockSize, final int[] numBlocks, final long[] min, final long[] dim )
+	{
+		int rest = index;
+
+		for ( int d = 0; d < size.length; ++d )
+		{
+			min[ d ] = (long)( rest % numBlocks[ d ] ) * blockSize[ d ];
+			dim[ d ] = Math.min( blockSize[ d ], size[ d ] - min[ d ] );
+			rest /= numBlocks[ d ];
+		}
+	}
+
+	/**
+	 * Sorts the regions into the blocks they intersect.
+	 *
+	 * @return - for every block (row-major order) the regions intersecting it
+	 */
+	protected static List< List< ClassifiedRegion > > assignRegions( final List< ClassifiedRegion > regions, final int[] numBlocks, final int[] blockSize )
+	{
+		final int numDimensions = numBlocks.length;
+
+		int numBlocksTotal = 1;
+
+		for ( int d = 0; d < numDimensions; ++d )
+			numBlocksTotal *= numBlocks[ d ];
+
+		final List< List< ClassifiedRegion > > regionsPerBlock = new ArrayList< List< ClassifiedRegion > >( numBlocksTotal );
+
+		for ( int b = 0; b < numBlocksTotal; ++b )
+			regionsPerBlock.add( new ArrayList< ClassifiedRegion >() );
+
+		final int[] first = new int[ numDimensions ];
+		final int[] last = new int[ numDimensions ];
+		final int[] pos = new int[ numDimensions ];
+
+		for ( final ClassifiedRegion region : regions )
+		{
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				first[ d ] = Math.max( 0, region.get( d ).min() / blockSize[ d ] );
+				last[ d ] = Math.min( numBlocks[ d ] - 1, region.get( d ).max() / blockSize[ d ] );
+				pos[ d ] = first[ d ];
+			}
+
+			// iterate over all blocks between first and last
+			boolean hasNext = true;
+
+			while ( hasNext )
+			{
+				int index = 0;
+
+				for ( int d = numDimensions - 1; d >= 0; --d )
+					index = index * numBlocks[ d ] + pos[ d ];
+
+				regionsPerBlock.get( index ).add( region );
+
+				hasNext = false;
+
+				for ( int d = 0; d < numDimensions && !hasNext; ++d )
+				{
+					if ( pos[ d ] < last[ d ] )
+					{
+						++pos[ d ];
+						hasNext = true;
+					}
+					else
+					{
+						pos[ d ] = first[ d ];
+					}
+				}
+			}
+		}
+
+		return regionsPerBlock;
+	}
+}
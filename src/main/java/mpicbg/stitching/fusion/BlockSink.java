@@ -0,0 +1,44 @@
+package mpicbg.stitching.fusion;
+
+import java.io.IOException;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Receives the blocks computed by the {@link BlockFusion}.
+ * 
+ * @param <T>
+ */
+public interface BlockSink< T extends RealType< T > >
+{
+	/**
+	 * Called before the first block of a channel/timepoint is fused
+	 * 
+	 * @param t - the timepoint
+	 * @param c - the channel
+	 * @param size - the size of the complete fused image
+	 * @param blockSize - the size of all blocks except the last ones in each dimension
+	 */
+	void begin( int t, int c, int[] size, int[] blockSize );
+
+	/**
+	 * Called for every fused block, blocks are fused in row-major order but several
+	 * threads call this method concurrently.
+	 * 
+	 * @param t - the timepoint
+	 * @param c - the channel
+	 * @param min - the position of the block in the fused image
+	 * @param block - the fused block, it is not used by the fusion anymore
+	 * @throws IOException - if the block could not be written, the fusion continues with the other blocks
+	 */
+	void add( int t, int c, long[] min, Img< T > block ) throws IOException;
+
+	/**
+	 * Called after the last block of a channel/timepoint has been added
+	 * 
+	 * @param t - the timepoint
+	 * @param c - the channel
+	 */
+	void end( int t, int c );
+}
@@ -35,7 +35,8 @@ public class ClassifiedRegion {
 
 	private final Interval[] intervals;
 	private final Set<Integer> classes = new HashSet<Integer>();
-	private int[] ints = null;
+	// cached by classArray(), regions are read by several threads
+	private volatile int[] ints = null;
 
 	/**
 	 * Creates an empty {@code ClassifiedRegion} of the indicated size
@@ -91,14 +92,17 @@ public class ClassifiedRegion {
 	 * @return A primitive array of all classes associated with this region.
 	 */
 	public int[] classArray() {
-		if (ints == null) {
-			ints = new int[classes.size()];
+		int[] array = ints;
+		if (array == null) {
+			// only publish the array once it is filled
+			array = new int[classes.size()];
 			int index = 0;
 			for (final Integer i : classes) {
-				ints[index++] = i;
+				array[index++] = i;
 			}
+			ints = array;
 		}
-		return ints;
+		return array;
 	}
 
 	/**
@@ -134,6 +138,28 @@ public class ClassifiedRegion {
 		return matches;
 	}
 
+	/**
+	 * @return A new region covering the intersection of this region with the
+	 *         provided target region, carrying the classes of this region. Null
+	 *         if the two regions do not intersect.
+	 */
+	public ClassifiedRegion intersection(final ClassifiedRegion other) {
+		if (!intersects(other)) return null;
+
+		final ClassifiedRegion region = new ClassifiedRegion(size());
+		for (int i = 0; i < size(); i++) {
+			if (i < other.size()) {
+				region.set(new Interval(Math.max(get(i).min(), other.get(i).min()),
+					Math.min(get(i).max(), other.get(i).max())), i);
+			}
+			else {
+				region.set(new Interval(get(i)), i);
+			}
+		}
+		region.addAllClasses(this);
+		return region;
+	}
+
 	/**
 	 * Test if this region is identical to another region
 	 */
@@ -0,0 +1,360 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.NoninvertibleModelException;
+import net.imglib2.AbstractInterval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * One channel/timepoint of the fused image that is only computed where it is looked at. The fused
+ * image is divided into cells like the blocks of the {@link BlockFusion}, each cell is fused from the
+ * {@link ClassifiedRegion}s intersecting it the first time one of its pixels is read. The cells are
+ * kept as long as they fit into a budget of bytes, the cells that were not used for the longest time
+ * are dropped first and fused again if needed.
+ *
+ * The view covers the same interval as the image returned by {@link Fusion#fuse(RealType, ArrayList, ArrayList, int, boolean, int, String, boolean, boolean, boolean)},
+ * starting at 0, the position of pixel 0 in the coordinates of the input images is {@link #getOffset()}.
+ * Any number of threads can read the view, each with its own {@link RandomAccess}. Reading a cell
+ * that cannot be fused because a model is not invertible throws an {@link IllegalStateException}.
+ */
+public class FusedView< T extends RealType< T > & NativeType< T > > extends AbstractInterval implements RandomAccessibleInterval< T >
+{
+	/**
+	 * The default size of a cell in x, y (and z)
+	 */
+	public static int[] defaultCellSize = new int[] { 256, 256, 32 };
+
+	/**
+	 * The default budget in bytes for the fused cells, a quarter of the memory available to Java
+	 */
+	public static long defaultMaxBytes = Runtime.getRuntime().maxMemory() / 4;
+
+	final T targetType;
+	final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input;
+	final ArrayList< InvertibleBoundable > models;
+	final double[] offset;
+	final PixelFusion fusion;
+	final long maxBytes;
+
+	final int[] size, cellSize, numCells;
+	final List< List< ClassifiedRegion > > regionsPerCell;
+	final ImgFactory< T > factory = new ArrayImgFactory< T >();
+
+	// every thread that fuses a cell needs its own interpolators and PixelFusion, the ones not in use are kept here
+	final ArrayList< RegionFuser< T > > idleFusers = new ArrayList< RegionFuser< T > >();
+
+	// the fused cells, least recently used first
+	final LinkedHashMap< Integer, Cell< T > > cells = new LinkedHashMap< Integer, Cell< T > >( 16, 0.75f, true );
+	long usedBytes = 0;
+	int numFusedCells = 0;
+
+	static class Cell< T >
+	{
+		final long[] min, max;
+		Img< T > data;
+		long bytes;
+
+		Cell( final int n )
+		{
+			this.min = new long[ n ];
+			this.max = new long[ n ];
+		}
+	}
+
+	/**
+	 * @param targetType - the type of the fused image
+	 * @param input - the input images, see {@link Fusion#getBlockData(List, int, int, boolean)}
+	 * @param models - the transformation of each image
+	 * @param offset - the position of the fused image, see {@link Fusion#estimateBounds(double[], int[], int[][], ArrayList, int)}
+	 * @param size - the size of the fused image
+	 * @param fusion - how the images are fused, see {@link Fusion#createPixelFusion(int, boolean, ArrayList)}
+	 * @param cellSize - the size of the cells, the cells at the end of each dimension might be smaller
+	 * @param maxBytes - how much memory the fused cells may use, it should hold all cells that are read at the same time or they are fused over and over
+	 */
+	public FusedView( final T targetType, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final ArrayList< InvertibleBoundable > models,
+			final double[] offset, final int[] size, final PixelFusion fusion, final int[] cellSize, final long maxBytes )
+	{
+		super( toLong( size ) );
+
+		this.targetType = targetType.createVariable();
+		this.input = input;
+		this.models = models;
+		this.offset = offset.clone();
+		this.fusion = fusion;
+		this.maxBytes = maxBytes;
+		this.size = size.clone();
+		this.cellSize = new int[ size.length ];
+
+		for ( int d = 0; d < size.length; ++d )
+			this.cellSize[ d ] = Math.max( 1, Math.min( cellSize[ d ], size[ d ] ) );
+
+		this.numCells = BlockFusion.getNumBlocks( size, this.cellSize );
+
+		final List< ClassifiedRegion > regions = Fusion.buildTileList( input.size(), size.length, models, input, offset );
+		this.regionsPerCell = BlockFusion.assignRegions( regions, numCells, this.cellSize );
+	}
+
+	/**
+	 * Creates the view of one channel/timepoint, see {@link Fusion#fuse(RealType, ArrayList, ArrayList, int, boolean, int, String, boolean, boolean, boolean)}
+	 * for the parameters. Only the sizes of the images and the regions are computed here, nothing is fused yet.
+	 *
+	 * @param c - the channel
+	 * @param t - the timepoint
+	 * @param cellSize - the size of the cells, e.g. {@link #defaultCellSize}
+	 * @param maxBytes - how much memory the fused cells may use, e.g. {@link #defaultMaxBytes}
+	 */
+	public static < T extends RealType< T > & NativeType< T > > FusedView< T > create( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models,
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final int c, final int t, final int[] cellSize, final long maxBytes )
+	{
+		final double[] offset = new double[ dimensionality ];
+		final int[] size = new int[ dimensionality ];
+
+		Fusion.estimateBounds( offset, size, images, models, dimensionality );
+
+		if ( subpixelResolution )
+			for ( int d = 0; d < size.length; ++d )
+				++size[ d ];
+
+		final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = Fusion.getBlockData( images, c, t, subpixelResolution );
+		final PixelFusion fusion = Fusion.createPixelFusion( fusionType, ignoreZeroValues, blockData );
+
+		return new FusedView< T >( targetType, blockData, models, offset, size, fusion, cellSize, maxBytes );
+	}
+
+	/**
+	 * @return - the position of pixel 0 in the coordinates of the input images
+	 */
+	public double[] getOffset() { return offset.clone(); }
+
+	/**
+	 * @return - how often a cell was fused so far
+	 */
+	public synchronized int getNumFusedCells() { return numFusedCells; }
+
+	/**
+	 * Drops all fused cells and the interpolators used to fuse them.
+	 */
+	public synchronized void clear()
+	{
+		cells.clear();
+		idleFusers.clear();
+		usedBytes = 0;
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess() { return new FusedRandomAccess(); }
+
+	@Override
+	public RandomAccess< T > randomAccess( final net.imglib2.Interval interval ) { return randomAccess(); }
+
+	/**
+	 * Returns a cell, fuses it if it is not fused yet and drops the least recently used cells if the budget is exceeded.
+	 *
+	 * @param index - the index of the cell in row-major order
+	 * @throws IllegalStateException - if a model cannot be inverted, the cell is not kept then
+	 */
+	protected Cell< T > getCell( final int index )
+	{
+		Cell< T > cell;
+
+		synchronized ( this )
+		{
+			cell = cells.get( index );
+
+			if ( cell == null )
+			{
+				cell = new Cell< T >( size.length );
+				cells.put( index, cell );
+			}
+		}
+
+		// other threads can read other cells in the meantime, but wait for this one
+		synchronized ( cell )
+		{
+			if ( cell.data == null )
+			{
+				final long[] dim = new long[ size.length ];
+				BlockFusion.getBlock( index, size, cellSize, numCells, cell.min, dim );
+
+				final Img< T > data = factory.create( dim, targetType );
+				final RegionFuser< T > fuser = acquireFuser();
+
+				try
+				{
+					BlockFusion.fuseBlock( data, cell.min, regionsPerCell.get( index ), fuser );
+				}
+				catch ( NoninvertibleModelException e )
+				{
+					synchronized ( this )
+					{
+						if ( cells.get( index ) == cell )
+							cells.remove( index );
+					}
+
+					throw new IllegalStateException( "Cannot invert model: " + e, e );
+				}
+				finally
+				{
+					releaseFuser( fuser );
+				}
+
+				long bytes = Math.max( 1, targetType.getBitsPerPixel() / 8 );
+
+				for ( int d = 0; d < size.length; ++d )
+				{
+					cell.max[ d ] = cell.min[ d ] + dim[ d ] - 1;
+					bytes *= dim[ d ];
+				}
+
+				cell.data = data;
+
+				synchronized ( this )
+				{
+					++numFusedCells;
+
+					// it might have been dropped while it was fused
+					if ( cells.get( index ) == cell )
+					{
+						cell.bytes = bytes;
+						usedBytes += bytes;
+						evict( index );
+					}
+				}
+			}
+
+			return cell;
+		}
+	}
+
+	protected synchronized RegionFuser< T > acquireFuser()
+	{
+		if ( idleFusers.isEmpty() )
+			return new RegionFuser< T >( input, models, offset, fusion );
+
+		return idleFusers.remove( idleFusers.size() - 1 );
+	}
+
+	protected void releaseFuser( final RegionFuser< T > fuser )
+	{
+		fuser.release();
+
+		synchronized ( this )
+		{
+			idleFusers.add( fuser );
+		}
+	}
+
+	/**
+	 * Drops the least recently used cells until the budget is met again, must hold the lock of the view.
+	 * Cells that are still read keep their data until they are left.
+	 *
+	 * @param keep - the cell that is just used
+	 */
+	protected void evict( final int keep )
+	{
+		final Iterator< Map.Entry< Integer, Cell< T > > > it = cells.entrySet().iterator();
+
+		while ( usedBytes > maxBytes && it.hasNext() )
+		{
+			final Map.Entry< Integer, Cell< T > > e = it.next();
+
+			if ( e.getKey() == keep )
+				continue;
+
+			usedBytes -= e.getValue().bytes;
+			it.remove();
+		}
+	}
+
+	protected static long[] toLong( final int[] size )
+	{
+		final long[] dim = new long[ size.length ];
+
+		for ( int d = 0; d < size.length; ++d )
+			dim[ d ] = size[ d ];
+
+		return dim;
+	}
+
+	/**
+	 * Reads from the cell the current position is in, a new cell is looked up only when the position leaves it.
+	 * Positions outside of the fused image are 0.
+	 */
+	public class FusedRandomAccess extends Point implements RandomAccess< T >
+	{
+		final T outside;
+		Cell< T > cell = null;
+		RandomAccess< T > cellAccess = null;
+
+		public FusedRandomAccess()
+		{
+			super( size.length );
+
+			this.outside = targetType.createVariable();
+			this.outside.setZero();
+		}
+
+		@Override
+		public T get()
+		{
+			if ( cell == null || !isInside( cell ) )
+			{
+				int index = 0;
+
+				for ( int d = size.length - 1; d >= 0; --d )
+				{
+					if ( position[ d ] < 0 || position[ d ] >= size[ d ] )
+						return outside;
+
+					index = index * numCells[ d ] + (int)( position[ d ] / cellSize[ d ] );
+				}
+
+				cell = getCell( index );
+				cellAccess = cell.data.randomAccess();
+			}
+
+			for ( int d = 0; d < n; ++d )
+				cellAccess.setPosition( position[ d ] - cell.min[ d ], d );
+
+			return cellAccess.get();
+		}
+
+		protected boolean isInside( final Cell< T > c )
+		{
+			for ( int d = 0; d < n; ++d )
+				if ( position[ d ] < c.min[ d ] || position[ d ] > c.max[ d ] )
+					return false;
+
+			return true;
+		}
+
+		@Override
+		public FusedRandomAccess copy()
+		{
+			final FusedRandomAccess copy = new FusedRandomAccess();
+			copy.setPosition( this );
+			copy.cell = cell;
+			copy.cellAccess = cellAccess == null ? null : cellAccess.copyRandomAccess();
+
+			return copy;
+		}
+
+		@Override
+		public FusedRandomAccess copyRandomAccess() { return copy(); }
+	}
+}
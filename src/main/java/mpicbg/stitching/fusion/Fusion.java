@@ -7,24 +7,31 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.io.FileSaver;
+import ij.process.FloatProcessor;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.Stack;
-import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import mpicbg.imglib.cursor.LocalizableByDimCursor;
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.NoninvertibleModelException;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
-import net.imglib2.RealRandomAccess;
 import net.imglib2.exception.ImgLibException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
@@ -35,7 +42,6 @@ import net.imglib2.img.imageplus.ImagePlusImgFactory;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
-import net.imglib2.multithreading.Chunk;
 import net.imglib2.multithreading.SimpleMultiThreading;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
@@ -55,6 +61,55 @@ public class Fusion
 {
 	public static long redrawDelay = 500;
 
+	/**
+	 * Regions with more pixels are split into several tasks when fusing in memory
+	 */
+	public static long pixelsPerTask = 64 * 1024;
+
+	/**
+	 * If several channels/timepoints are fused at the same time by one set of threads
+	 */
+	public static boolean fuseVolumesInParallel = true;
+
+	/**
+	 * How much additional memory the channels/timepoints fused at the same time may use
+	 * (the planes loaded from virtual input stacks, the float copies of RGB input for subpixel
+	 * resolution and the output slices when writing to disk)
+	 */
+	public static long maxBytesParallelVolumes = Runtime.getRuntime().maxMemory() / 4;
+
+	/**
+	 * If images placed by a translation are resampled once at their subpixel shift for subpixel
+	 * resolution, so that the fusion reads them instead of interpolating every pixel (needs a float
+	 * copy of each image), see {@link ShiftedImageInterpolation}
+	 */
+	public static boolean preShiftTranslatedImages = false;
+
+	/**
+	 * The interpolation for resampling the shifted images, 1 == linear (as without resampling), 3 == cubic
+	 */
+	public static int preShiftOrder = 1;
+
+	/**
+	 * One channel and timepoint that is fused
+	 */
+	protected static class Volume< T extends RealType< T > >
+	{
+		final int t, c;
+		final Img< T > output;
+		final ArrayList< ImageInterpolation< ? extends RealType< ? > > > input;
+		final PixelFusion fusion;
+
+		public Volume( final int t, final int c, final Img< T > output, final ArrayList< ImageInterpolation< ? extends RealType< ? > > > input, final PixelFusion fusion )
+		{
+			this.t = t;
+			this.c = c;
+			this.output = output;
+			this.input = input;
+			this.fusion = fusion;
+		}
+	}
+
 	/**
 	 * 
 	 * @param targetType
@@ -90,13 +145,29 @@ public class Fusion
 		else
 			stack = null;
 
+		// several channels/timepoints are fused together, but not with the fast fusion without overlap
+		final int numVolumes = numTimePoints * numChannels;
+		final int numParallel = noOverlap && !subpixelResolution && outputDirectory == null ? 1 :
+			getNumParallelVolumes( numVolumes, images, size, targetType.getBitsPerPixel() / 8, subpixelResolution, outputDirectory != null );
+
 		//"Overlay into composite image"
-		for ( int t = 1; t <= numTimePoints; ++t )
+		for ( int first = 0; first < numVolumes; first += numParallel )
 		{
-			for ( int c = 1; c <= numChannels; ++c )
+			final int last = Math.min( numVolumes, first + numParallel );
+			final ArrayList< Volume< T > > volumes = new ArrayList< Volume< T > >();
+
+			if ( last - first == 1 )
+				IJ.showStatus("Fusing time point: " + ( first / numChannels + 1 ) + " of " + numTimePoints + ", " +
+					"channel: " + ( first % numChannels + 1 ) + " of " + numChannels + "...");
+			else
+				IJ.showStatus("Fusing channels/time points " + ( first + 1 ) + "-" + last + " of " + numVolumes + "...");
+
+			// in the order of the stack, timepoints first
+			for ( int v = first; v < last; ++v )
 			{
-				IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + ", " +
-					"channel: " + c + " of " + numChannels + "...");
+				final int t = v / numChannels + 1;
+				final int c = v % numChannels + 1;
+
 				// create the 2d/3d target image for the current channel and timepoint 
 				final Img< T > out;
 				
@@ -106,141 +177,54 @@ public class Fusion
 				else
 					out = f.create( new int[] { size[ 0 ], size[ 1 ] }, targetType ); // just create a slice
 
-				// init the fusion
-				PixelFusion fusion = null;
-				
-				if ( fusionType == 1 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new AveragePixelFusionIgnoreZero();
-					else
-						fusion = new AveragePixelFusion();
-				}
-				else if ( fusionType == 2 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new MedianPixelFusionIgnoreZero();
-					else
-						fusion = new MedianPixelFusion();
-				}
-				else if ( fusionType == 3 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new MaxPixelFusionIgnoreZero();
-					else
-						fusion = new MaxPixelFusion();
-				}
-				else if ( fusionType == 4 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new MinPixelFusionIgnoreZero();
-					else
-						fusion = new MinPixelFusion();	
-				}
-				else if ( fusionType == 5 )
-				{
-					fusion = new OverlapFusion();
-				}
-				
-				// extract the complete blockdata
-				if ( subpixelResolution )
-				{
-					final ArrayList< ImageInterpolation< FloatType > > blockData = new ArrayList< ImageInterpolation< FloatType > >();
+				// extract the complete blockdata and init the fusion
+				ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = getBlockData( images, c, t, subpixelResolution );
 
-					// for linear interpolation we want to mirror, otherwise we get black areas at the first and last pixel of each image
-					final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactory = new NLinearInterpolatorFactory< FloatType >();// new OutOfBoundsStrategyMirrorFactory<FloatType>() );
-					
-					for ( final ImagePlus imp : images )
-						blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactory, true ) );
-					
-					// init blending with the images
-					if ( fusionType == 0 )
-					{
-						if ( ignoreZeroValues )
-							fusion = new BlendingPixelFusionIgnoreZero( blockData );
-						else
-							fusion = new BlendingPixelFusion( blockData );
-					}
-					
-					if ( outputDirectory == null )
-					{
-						fuseBlock( out, blockData, offset, models, fusion, displayImages );
-					}
-					else
-					{
-						final int numSlices;
-						
-						if ( dimensionality == 2 )
-							numSlices = 1;
-						else
-							numSlices = size[ 2 ];
-						
-						writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory );
-					}
-				}
-				else
-				{
-					// can be a mixture of different RealTypes
-					final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
+				if ( subpixelResolution && preShiftTranslatedImages )
+					blockData = preShift( blockData, models, offset, preShiftOrder );
 
-					final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactoryFloat = new NearestNeighborInterpolatorFactory< FloatType >();// new OutOfBoundsStrategyValueFactory<FloatType>() );
-					final InterpolatorFactory< UnsignedShortType, RandomAccessible< UnsignedShortType > > interpolatorFactoryShort = new NearestNeighborInterpolatorFactory< UnsignedShortType >();// new OutOfBoundsStrategyValueFactory<UnsignedShortType>() );
-					final InterpolatorFactory< UnsignedByteType, RandomAccessible< UnsignedByteType > > interpolatorFactoryByte = new NearestNeighborInterpolatorFactory< UnsignedByteType >();// new OutOfBoundsStrategyValueFactory<UnsignedByteType>() );
+				final PixelFusion fusion = createPixelFusion( fusionType, ignoreZeroValues, blockData );
 
-					for ( final ImagePlus imp : images )
-					{
-						if ( imp.getType() == ImagePlus.GRAY32 )
-							blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryFloat, false ) );
-						else if ( imp.getType() == ImagePlus.GRAY16 )
-							blockData.add( new ImageInterpolation<UnsignedShortType>( ImageJFunctions.wrapShort( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryShort, false ) );
-						else
-							blockData.add( new ImageInterpolation<UnsignedByteType>( ImageJFunctions.wrapByte( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryByte, false ) );
-					}
-					
-					// init blending with the images
-					if ( fusionType == 0 )
-					{
-						if ( ignoreZeroValues )
-							fusion = new BlendingPixelFusionIgnoreZero( blockData );
-						else
-							fusion = new BlendingPixelFusion( blockData );					
-					}
-					
-					if ( outputDirectory == null )
-					{
-						if ( noOverlap )
-							fuseBlockNoOverlap( out, blockData, offset, models, displayImages );
-						else
-							fuseBlock( out, blockData, offset, models, fusion, displayImages );
-					}
-					else
-					{
-						final int numSlices;
-						
-						if ( dimensionality == 2 )
-							numSlices = 1;
-						else
-							numSlices = size[ 2 ];
-						
-						writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory );
-					}
-				}
+				volumes.add( new Volume< T >( t, c, out, blockData, fusion ) );
+			}
+
+			if ( outputDirectory == null )
+			{
+				// there is no fast fusion if we need to interpolate
+				if ( noOverlap && !subpixelResolution )
+					fuseBlockNoOverlap( volumes.get( 0 ).output, volumes.get( 0 ).input, offset, models, displayImages );
+				else
+					fuseBlock( volumes, offset, models, displayImages );
+			}
+			else
+			{
+				final int numSlices;
 				
-				// add to stack
-				try 
+				if ( dimensionality == 2 )
+					numSlices = 1;
+				else
+					numSlices = size[ 2 ];
+				
+				writeBlock( volumes, numSlices, numTimePoints, numChannels, offset, models, outputDirectory );
+			}
+			
+			// add to stack
+			try 
+			{
+				if ( stack != null )
 				{
-					if ( stack != null )
+					for ( final Volume< T > volume : volumes )
 					{
-						final ImagePlus outImp = ((ImagePlusImg<?, ?>)out).getImagePlus();
-						for ( int z = 1; z <= out.dimension( 2 ); ++z )
+						final ImagePlus outImp = ((ImagePlusImg<?, ?>)volume.output).getImagePlus();
+						for ( int z = 1; z <= volume.output.dimension( 2 ); ++z )
 							stack.addSlice( "", outImp.getStack().getProcessor( z ) );
 					}
-				} 
-				catch (ImgLibException e) 
-				{
-					Log.error( "Output image has no ImageJ type: " + e );
-				}				
-			}
+				}
+			} 
+			catch (ImgLibException e) 
+			{
+				Log.error( "Output image has no ImageJ type: " + e );
+			}				
 		}
 
 		IJ.showStatus( "Fusion complete." );
@@ -273,93 +257,391 @@ public class Fusion
 	}
 	
 	/**
-	 * Fuse one slice/volume (one channel)
+	 * @param numVolumes - how many channels/timepoints there are
+	 * @param images - the input, images in memory are wrapped for fusion, virtual stacks are loaded
+	 * @param size - the size of the output
+	 * @param bytesPerPixel - of the output
+	 * @param toDisk - if the output is written slice by slice
+	 * @return - how many channels/timepoints can be fused at the same time within {@link #maxBytesParallelVolumes}
+	 */
+	protected static int getNumParallelVolumes( final int numVolumes, final List< ImagePlus > images, final int[] size, final int bytesPerPixel,
+			final boolean subpixelResolution, final boolean toDisk )
+	{
+		if ( !fuseVolumesInParallel || numVolumes < 2 )
+			return 1;
+
+		// the memory needed for each additional volume, the output stack holds all volumes anyways
+		long bytes = 0;
+
+		for ( final ImagePlus imp : images )
+		{
+			final long numPixels = (long)imp.getWidth() * imp.getHeight() * imp.getNSlices();
+
+			// we cannot tell how much memory the input needs
+			if ( imp.getBytesPerPixel() <= 0 )
+				return 1;
+
+			// a virtual stack loads all planes of a channel/timepoint when they are wrapped for fusion
+			if ( imp.getStack().isVirtual() )
+				bytes += numPixels * imp.getBytesPerPixel();
+
+			if ( subpixelResolution && ( imp.getType() == ImagePlus.COLOR_RGB || preShiftTranslatedImages ) )
+				bytes += numPixels * 4;
+		}
+
+		if ( toDisk )
+			bytes += (long)size[ 0 ] * size[ 1 ] * Math.max( 1, bytesPerPixel );
+
+		if ( bytes == 0 )
+			return numVolumes;
+
+		return (int)Math.max( 1, Math.min( numVolumes, maxBytesParallelVolumes / bytes ) );
+	}
+
+	/**
+	 * Wraps one channel and timepoint of all input images so that they can be fused. With subpixel
+	 * resolution all images are linearly interpolated as float, the pixels are converted as they are
+	 * read (only RGB images are copied). Otherwise they are wrapped without copying and read with
+	 * nearest neighbor interpolation.
 	 * 
-	 * @param output - same the type of the ImagePlus input
-	 * @param input - FloatType, because of Interpolation that needs to be done
+	 * @param images - all input images
+	 * @param c - the channel
+	 * @param t - the timepoint
+	 * @param subpixelResolution - if we need to interpolate
+	 * @return - one {@link ImageInterpolation} per input image
+	 */
+	public static ArrayList< ImageInterpolation< ? extends RealType< ? > > > getBlockData( final List< ImagePlus > images, final int c, final int t, final boolean subpixelResolution )
+	{
+		// can be a mixture of different RealTypes
+		final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
+
+		for ( final ImagePlus imp : images )
+			blockData.add( getBlockData( imp, c, t, subpixelResolution ) );
+
+		return blockData;
+	}
+
+	/**
+	 * Wraps one channel and timepoint of one input image so that it can be fused, see {@link #getBlockData(List, int, int, boolean)}.
+	 */
+	public static ImageInterpolation< ? extends RealType< ? > > getBlockData( final ImagePlus imp, final int c, final int t, final boolean subpixelResolution )
+	{
+		if ( subpixelResolution )
+		{
+			// for linear interpolation we want to mirror, otherwise we get black areas at the first and last pixel of each image
+			final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactory = new NLinearInterpolatorFactory< FloatType >();// new OutOfBoundsStrategyMirrorFactory<FloatType>() );
+
+			// 8 and 16 bit images are converted to float while interpolating instead of copying them, only RGB needs a copy
+			if ( imp.getType() == ImagePlus.GRAY32 )
+				return new ImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactory, true );
+			else if ( imp.getType() == ImagePlus.GRAY16 )
+				return ImageInterpolation.convertToFloat( ImageJFunctions.wrapShort( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactory, true );
+			else if ( imp.getType() == ImagePlus.GRAY8 )
+				return ImageInterpolation.convertToFloat( ImageJFunctions.wrapByte( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactory, true );
+			else
+				return new ImageInterpolation<FloatType>( ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactory, true );
+		}
+
+		if ( imp.getType() == ImagePlus.GRAY32 )
+			return new ImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), new NearestNeighborInterpolatorFactory< FloatType >(), false );
+		else if ( imp.getType() == ImagePlus.GRAY16 )
+			return new ImageInterpolation<UnsignedShortType>( ImageJFunctions.wrapShort( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), new NearestNeighborInterpolatorFactory< UnsignedShortType >(), false );
+		else
+			return new ImageInterpolation<UnsignedByteType>( ImageJFunctions.wrapByte( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), new NearestNeighborInterpolatorFactory< UnsignedByteType >(), false );
+	}
+
+	/**
+	 * Resamples all images that are placed by a translation at their subpixel shift relative to the
+	 * output, see {@link ShiftedImageInterpolation}. Images with an integer shift or another model are
+	 * kept as they are. The images are resampled in parallel.
+	 * 
+	 * @param blockData - the input images, see {@link #getBlockData(List, int, int, boolean)}
+	 * @param models - the transformation of each image
+	 * @param offset - the position of the output
+	 * @param order - 1 == linear, 3 == cubic
+	 * @return - the input images, the translated ones replaced by their shifted copies
+	 */
+	public static ArrayList< ImageInterpolation< ? extends RealType< ? > > > preShift( final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData,
+			final ArrayList< InvertibleBoundable > models, final double[] offset, final int order )
+	{
+		final ArrayList< ImageInterpolation< ? extends RealType< ? > > > shifted = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >( blockData );
+		final AtomicInteger ai = new AtomicInteger( 0 );
+
+		// every thread holds a copy of the image it resamples, so not more threads than processors
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( blockData.size(), Runtime.getRuntime().availableProcessors() ) ) );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for ( int i = ai.getAndIncrement(); i < blockData.size(); i = ai.getAndIncrement() )
+					{
+						final double[] t = RegionFuser.getTranslation( models.get( i ), offset.length );
+
+						if ( t == null || blockData.get( i ).numDimensions() != offset.length )
+							continue;
+
+						// the fraction of a pixel every output pixel is off in the input
+						final double[] shift = new double[ offset.length ];
+						boolean isInteger = true;
+
+						for ( int d = 0; d < offset.length; ++d )
+						{
+							final double s = offset[ d ] - t[ d ];
+							shift[ d ] = s - Math.floor( s );
+
+							if ( shift[ d ] != 0 )
+								isInteger = false;
+						}
+
+						if ( isInteger )
+							continue;
+
+						// too large images are interpolated while fusing
+						final ShiftedImageInterpolation image = ShiftedImageInterpolation.create( blockData.get( i ).getImg(), shift, order );
+
+						if ( image != null )
+							shifted.set( i, image );
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		return shifted;
+	}
+
+	/**
+	 * Creates the {@link PixelFusion} for a fusion type as listed in the dialogs.
+	 * 
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min, 5 == overlap
+	 * @param ignoreZeroValues - if pixels with value 0 should be ignored
+	 * @param blockData - all input images, needed for blending
+	 * @return - the {@link PixelFusion} or null if the type is unknown
+	 */
+	public static PixelFusion createPixelFusion( final int fusionType, final boolean ignoreZeroValues, final ArrayList< ? extends ImageInterpolation< ? > > blockData )
+	{
+		if ( fusionType == 0 )
+		{
+			if ( ignoreZeroValues )
+				return new BlendingPixelFusionIgnoreZero( blockData );
+			else
+				return new BlendingPixelFusion( blockData );
+		}
+		else if ( fusionType == 1 )
+		{
+			if ( ignoreZeroValues )
+				return new AveragePixelFusionIgnoreZero();
+			else
+				return new AveragePixelFusion();
+		}
+		else if ( fusionType == 2 )
+		{
+			if ( ignoreZeroValues )
+				return new MedianPixelFusionIgnoreZero( blockData.size() );
+			else
+				return new MedianPixelFusion( blockData.size() );
+		}
+		else if ( fusionType == 3 )
+		{
+			if ( ignoreZeroValues )
+				return new MaxPixelFusionIgnoreZero();
+			else
+				return new MaxPixelFusion();
+		}
+		else if ( fusionType == 4 )
+		{
+			if ( ignoreZeroValues )
+				return new MinPixelFusionIgnoreZero();
+			else
+				return new MinPixelFusion();	
+		}
+		else if ( fusionType == 5 )
+		{
+			return new OverlapFusion();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Fuse one or more slices/volumes (channels/timepoints) of the same size. The regions (split into
+	 * parts of at most {@link #pixelsPerTask} pixels) of all volumes are the tasks of one executor,
+	 * every worker keeps its own interpolators and {@link PixelFusion} for all regions.
+	 * 
+	 * @param volumes - the output (same type as the ImagePlus input), input and fusion of each channel/timepoint
 	 * @param transform - the transformation
+	 * @param displayFusion - if the output of the first volume is shown while fusing
 	 */
-	protected static <T extends RealType<T>> void fuseBlock( final Img<T> output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final double[] offset, 
-			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final boolean displayFusion )
+	protected static <T extends RealType<T>> void fuseBlock( final List< Volume< T > > volumes, final double[] offset, 
+			final ArrayList< InvertibleBoundable > transform, final boolean displayFusion )
 	{
-		final int numDimensions = output.numDimensions();
-		final int numImages = input.size();
-		long size = output.dimension( 0 );
+		final Img<T> firstOutput = volumes.get(0).output;
+		final int numDimensions = firstOutput.numDimensions();
+		final int numImages = volumes.get(0).input.size();
+		long size = firstOutput.dimension( 0 );
 
-		for (int d = 1; d < output.numDimensions(); ++d) {
-			size *= output.dimension(d);
+		for (int d = 1; d < firstOutput.numDimensions(); ++d) {
+			size *= firstOutput.dimension(d);
 		}
 
+		// the regions only depend on the size of the input images, which is the same for all volumes
 		final List<ClassifiedRegion> tiles =
-			buildTileList(numImages, numDimensions, transform, input, offset);
+			buildTileList(numImages, numDimensions, transform, volumes.get(0).input, offset);
+
+		// large regions are split into several tasks, small ones are one task each
+		final List<ClassifiedRegion> tasks = splitRegions(tiles, pixelsPerTask);
+		final int numTasks = tasks.size() * volumes.size();
 
 		IJ.showProgress( 0 );
 
-		final ImagePlus[] fusionImp = new ImagePlus[1];
+		ImagePlus fusionImp = null;
 
 		if (displayFusion) {
 			try {
-				fusionImp[0] = ((ImagePlusImg<?, ?>) output).getImagePlus();
-				fusionImp[0].setTitle("fusing...");
-				fusionImp[0].show();
+				fusionImp = ((ImagePlusImg<?, ?>) firstOutput).getImagePlus();
+				fusionImp.setTitle("fusing...");
+				fusionImp.show();
 			}
 			catch (ImgLibException e) {
 				Log.error("Output image has no ImageJ type: " + e);
 			}
 		}
 
-    final Thread[] threads = SimpleMultiThreading.newThreads();
-		final TileProcessor<T>[] processors = new TileProcessor[threads.length];
-		final List<ArrayList<RealRandomAccess<? extends RealType<?>>>> interpolators =
-				new ArrayList<ArrayList<RealRandomAccess<? extends RealType<?>>>>();
-		final long positionsPerThread = size / threads.length;
-
-		// These fields need to be used within each thread, but modified from
-    // the outer loop. Thus the use of arrays/vectors.
-		final int[] count = new int[1]; // positions processed
-		final ClassifiedRegion[] currentTile = new ClassifiedRegion[1]; // current region being processed
-		final Vector<Chunk> threadChunks = new Vector<Chunk>(); // work divisions for current region
-		final int[] loopDim = new int[1]; // Dimension to split up work on
-
-		// Initialize the TileProcessors. These will be reused by each thread.
-		for (int i = 0; i < threads.length; ++i) {
-			processors[i] =
-				new TileProcessor<T>(i, interpolators, input, threadChunks, numImages,
-					output, fusion, currentTile, transform, fusionImp, count,
-					positionsPerThread, offset, loopDim);
-		}
+		// every region (part) of every volume is a task of one executor, there is no barrier between regions or volumes
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numTasks, Runtime.getRuntime().availableProcessors())));
+
+		// the interpolators and the PixelFusion of each worker for each volume, created when needed
+		final ThreadLocal<List<RegionFuser<T>>> fusers = new ThreadLocal<List<RegionFuser<T>>>() {
+
+			@Override
+			protected List<RegionFuser<T>> initialValue() {
+				final List<RegionFuser<T>> list = new ArrayList<RegionFuser<T>>();
 
-		// Process each tile
-		for (int tileIndex = 0; tileIndex < tiles.size(); tileIndex++) {
-			currentTile[0] = tiles.get(tileIndex);
+				for (int v = 0; v < volumes.size(); ++v)
+					list.add(null);
 
-			// Initialize each thread for this tile
-			for (int threadID = 0; threadID < threads.length; ++threadID) {
-				threads[threadID] = new Thread(processors[threadID]);
+				return list;
 			}
+		};
 
-			// Decide which dimension to use to split up work for each thread.
-			// We want to pick the largest dimension as this gives us the best chance
-			// of evenly dividing work when using multiple threads
-			int dimensionSize = -1;
-			for (int d=0; d<currentTile[0].size(); d++) {
-				int tmpSize = currentTile[0].get(d).max() - currentTile[0].get(d).min() + 1;
-				if (tmpSize > dimensionSize) {
-					dimensionSize = tmpSize;
-					loopDim[0] = d;
+		final ThreadLocal<List<RandomAccess<T>>> outs = new ThreadLocal<List<RandomAccess<T>>>() {
+
+			@Override
+			protected List<RandomAccess<T>> initialValue() {
+				final List<RandomAccess<T>> list = new ArrayList<RandomAccess<T>>();
+
+				for (int v = 0; v < volumes.size(); ++v)
+					list.add(null);
+
+				return list;
+			}
+		};
+
+		final List<Future<Long>> results = new ArrayList<Future<Long>>(numTasks);
+
+		// all tasks of one volume follow each other
+		for (int i = 0; i < numTasks; ++i) {
+			final int v = i / tasks.size();
+			final ClassifiedRegion task = tasks.get(i % tasks.size());
+
+			results.add(executor.submit(new Callable<Long>() {
+
+				@Override
+				public Long call() throws NoninvertibleModelException {
+					final Volume<T> volume = volumes.get(v);
+
+					if (fusers.get().get(v) == null) {
+						fusers.get().set(v, new RegionFuser<T>(volume.input, transform, offset, volume.fusion));
+						outs.get().set(v, volume.output.randomAccess());
+					}
+
+					final RegionFuser<T> fuser = fusers.get().get(v);
+					final long before = fuser.getCount();
+					fuser.fuse(task, outs.get().get(v), volume.output, new long[numDimensions], 0);
+
+					return fuser.getCount() - before;
 				}
+			}));
+		}
+
+		// this thread shows the progress while the workers fuse
+		final long numPixels = size * volumes.size();
+		long pixelsDone = 0;
+		long lastDraw = 0;
+
+		try {
+			for (final Future<Long> result : results) {
+				pixelsDone += result.get();
+
+				lastDraw = drawFusion(lastDraw, fusionImp);
+				IJ.showProgress((double) pixelsDone / numPixels);
+			}
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof NoninvertibleModelException)
+				Log.error("Cannot invert model, qutting.");
+			else
+				Log.error("Fusion failed: " + e.getCause());
+		}
+		catch (InterruptedException e) {
+			Log.error("Fusion was interrupted: " + e);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		if (fusionImp != null) fusionImp.hide();
+	}
+
+	/**
+	 * Splits regions with more than the given number of pixels along their largest
+	 * dimension, so that the work can be distributed evenly over the threads.
+	 * 
+	 * @param regions - the regions
+	 * @param maxPixels - how many pixels a part may have at most (unless a single plane of the region is larger)
+	 * @return - the regions and parts of regions, in the same order
+	 */
+	public static List<ClassifiedRegion> splitRegions(final List<ClassifiedRegion> regions, final long maxPixels)
+	{
+		final List<ClassifiedRegion> parts = new ArrayList<ClassifiedRegion>();
+
+		for (final ClassifiedRegion r : regions) {
+			long numPixels = 1;
+			int largestDim = 0;
+
+			for (int d = 0; d < r.size(); d++) {
+				numPixels *= r.get(d).max() - r.get(d).min() + 1;
+
+				if (r.get(d).max() - r.get(d).min() > r.get(largestDim).max() - r.get(largestDim).min())
+					largestDim = d;
+			}
+
+			final int length = r.get(largestDim).max() - r.get(largestDim).min() + 1;
+			final int numParts = (int) Math.min(length, (numPixels + maxPixels - 1) / maxPixels);
+
+			if (numParts <= 1) {
+				parts.add(r);
+				continue;
 			}
 
-			// Specify the loop ranges for each thread
-			threadChunks.clear();
-			threadChunks.addAll(SimpleMultiThreading.divideIntoChunks(dimensionSize,
-				threads.length));
+			for (int i = 0; i < numParts; i++) {
+				final ClassifiedRegion bounds = new ClassifiedRegion(r.size());
+
+				for (int d = 0; d < r.size(); d++)
+					bounds.set(r.get(d), d);
+
+				final int start = r.get(largestDim).min() + (int) ((long) length * i / numParts);
+				final int end = r.get(largestDim).min() + (int) ((long) length * (i + 1) / numParts) - 1;
+				bounds.set(new Interval(start, end), largestDim);
 
-			// Start the work for this tile
-			SimpleMultiThreading.startAndJoin(threads);
+				parts.add(r.intersection(bounds));
+			}
 		}
 
-		if (fusionImp[0] != null) fusionImp[0].hide();
+		return parts;
 	}
 
 	/**
@@ -369,7 +651,7 @@ public class Fusion
 	 * {@link ClassifiedRegion}s is created such that no region overlaps. Each
 	 * region is classified based on what source images overlapped with it.
 	 */
-	private static List<ClassifiedRegion> buildTileList(int numImages,
+	static List<ClassifiedRegion> buildTileList(int numImages,
 		int numDimensions, ArrayList<InvertibleBoundable> transform,
 		ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input, double[] offset)
 	{
@@ -385,18 +667,37 @@ public class Fusion
 				// Sets each interval to the smallest possible, by rounding the min up and the max down
 				Interval ival =
 					new Interval((int) Math.ceil(min[d]), (int) Math.floor(min[d] +
-						input.get(i).getImg().dimension(d) - 1));
+						input.get(i).dimension(d) - 1));
 				// Build our list of positions
 				shape.set(ival, d);
 			}
 			rawTiles.push(shape);
 		}
 
+		return buildRegions(rawTiles, true);
+	}
+
+	/**
+	 * Splits possibly overlapping tiles into non-overlapping {@link ClassifiedRegion}s,
+	 * each region is classified by all tiles that cover it.
+	 * 
+	 * @param tiles - the tiles, each classified by its own index
+	 * @param useIndex - if a {@link RegionIndex} should be used to find intersecting regions,
+	 *          otherwise every tile is compared with all regions placed so far
+	 * @return - the regions
+	 */
+	public static List<ClassifiedRegion> buildRegions(final Collection<ClassifiedRegion> tiles,
+		final boolean useIndex)
+	{
+		final Stack<ClassifiedRegion> rawTiles = new Stack<ClassifiedRegion>();
+		rawTiles.addAll(tiles);
+
 		// Set of placed tiles. Goal is to move all of the known positions
 		// to this set, creating new regions as needed such that there is no
 		// overlap between regions. Then use this set to drive iteration and
-		// fusion.
-		final Set<ClassifiedRegion> placedTiles = new HashSet<ClassifiedRegion>();
+		// fusion. The index finds the placed tiles a query tile intersects.
+		final RegionIndex placedTiles =
+			useIndex ? RegionIndex.create(tiles) : new RegionIndex(null);
 
 		// Process each position. We need to look through all placed regions and
 		// if we find an intersection, create a new set of regions, add them
@@ -404,33 +705,22 @@ public class Fusion
 		while (!rawTiles.isEmpty()) {
 			// Get the next tile to process
 			ClassifiedRegion queryTile = rawTiles.pop();
-			ClassifiedRegion toRemove = null;
-			//TODO instead of iterating we really should use a look up tree structure, as this
-			// is still quite slow with larger datasets.
-			// Iterate over all placed shapes.
-			for (ClassifiedRegion placedTile : placedTiles) {
-				if (queryTile.intersects(placedTile)) {
-					// can't remove while iterating
-					toRemove = placedTile;
-					// The first time we find an overlapping between tiles, we split the
-					// two tiles into tile components and place them in the appropriate
-					// lists. Then quit this loop (as our query shape is no longer valid)
-					// and continue the process
-					splitOverlappingRegions(placedTiles, rawTiles, queryTile, placedTile);
-					break;
-				}
-			}
-			// If we found an intersection, the query tile and placed tile were broken
-			// down and should be discarded
-			if (toRemove != null) {
-				placedTiles.remove(toRemove);
+			// Find the first placed shape that intersects
+			ClassifiedRegion placedTile = placedTiles.findIntersecting(queryTile);
+
+			// If we found an intersection, the query tile and placed tile are broken
+			// down and discarded. We split the two tiles into tile components and
+			// place them in the appropriate lists, then continue the process.
+			if (placedTile != null) {
+				placedTiles.remove(placedTile);
+				splitOverlappingRegions(placedTiles, rawTiles, queryTile, placedTile);
 			}
 			// No intersections found, so just place the tile and continue.
 			else {
 				placedTiles.add(queryTile);
 			}
 		}
-		return new ArrayList<ClassifiedRegion>(placedTiles);
+		return new ArrayList<ClassifiedRegion>(placedTiles.getRegions());
 	}
 
 	/**
@@ -441,7 +731,7 @@ public class Fusion
 	 * currently investigating for overlap, so any children of the query tile must be added back to
 	 * the set of tiles that will be used for further overlap checks.
 	 */
-	private static void splitOverlappingRegions(Set<ClassifiedRegion> placedTiles,
+	private static void splitOverlappingRegions(RegionIndex placedTiles,
 		Stack<ClassifiedRegion> rawTiles, ClassifiedRegion queryTile, ClassifiedRegion placedTile)
 	{
 		// Tiles are different but overlapping. So we need to identify the start and end points of
@@ -510,213 +800,6 @@ public class Fusion
 			placedTiles, rawTiles);
 	}
 
-	/**
-	 * Helper class to perform tile processing (iteration through a region, fusion
-	 * of input pixels, and population of output pixels). Array fields allow one
-	 * to be created per thread, then have values modified externally.
-	 */
-	private static class TileProcessor<T extends RealType<T>> implements Runnable {
-
-			private int loopOffset;
-			private int loopSize;
-			private final int[] loopDim;
-
-			private Vector<Chunk> threadChunks;
-			private final int threadNumber; // thread id
-			private ClassifiedRegion[] currentTile;
-			private ArrayList<InvertibleBoundable> transform;
-			private ImagePlus[] fusionImp;
-			private int[] count;
-			private double positionsPerThread;
-			private double[] offset;
-			private long[] lastDraw = new long[1];
-			private final ArrayList<RealRandomAccess<? extends RealType<?>>> in;
-			private final double[][] inPos;
-			private final PixelFusion myFusion;
-			private final RandomAccess<T> out;
-
-		public TileProcessor(int threadNumber,
-			List<ArrayList<RealRandomAccess<? extends RealType<?>>>> interpolators,
-			ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
-			Vector<Chunk> threadChunks, int numImages, Img<T> output,
-			PixelFusion fusion, ClassifiedRegion[] currentTile,
-			ArrayList<InvertibleBoundable> transform, ImagePlus[] fusionImp,
-			int[] count, double positionsPerThread, double[] offset, int[] loopDim)
-		{
-			this.threadNumber = threadNumber;
-			this.threadChunks = threadChunks;
-			this.currentTile = currentTile;
-			this.transform = transform;
-			this.fusionImp = fusionImp;
-			this.count = count;
-			this.positionsPerThread = positionsPerThread;
-			this.offset = offset;
-			this.loopDim = loopDim;
-
-			in = getThreadInterpolators(interpolators, threadNumber, input, numImages);
-			inPos = new double[numImages][output.numDimensions()];
-			myFusion = fusion.copy();
-			out = output.randomAccess();
-		}
-
-			@Override
-			public void run() {
-
-				// get chunk of pixels to process
-				final Chunk myChunk = threadChunks.get(threadNumber);
-				loopOffset = (int) myChunk.getStartPosition();
-				loopSize = (int) myChunk.getLoopSize();
-
-				try {
-					// Process each tile index assigned to this thread
-					// For each position in this tile, fuse its pixels across the
-					// appropriate images
-					// NB: recursion is necessary because there are an arbitrary
-					// number of dimensions in the tile
-					processTile(currentTile[0], 0, myFusion, transform, in, out, inPos,
-						threadNumber, count, lastDraw, fusionImp[0]);
-				}
-				catch (NoninvertibleModelException e) {
-					Log.error("Cannot invert model, qutting.");
-					return;
-				}
-
-			}
-
-			/**
-		 * Helper method to lazily initialize the input image interpolators,
-		 * creating one list per thread.
-		 */
-			private
-				ArrayList<RealRandomAccess<? extends RealType<?>>>
-				getThreadInterpolators(
-					List<ArrayList<RealRandomAccess<? extends RealType<?>>>> interpolators,
-					int threadNumber,
-					ArrayList<? extends ImageInterpolation<? extends RealType<?>>> input,
-					int numImages)
-			{
-				ArrayList<RealRandomAccess<? extends RealType<?>>> in = null;
-				if (threadNumber >= interpolators.size()) {
-					in = new ArrayList<RealRandomAccess<? extends RealType<?>>>();
-					for (int i = 0; i < numImages; ++i) {
-						in.add(input.get(i).createInterpolator());
-					}
-					interpolators.add(in);
-				}
-				else {
-					in = interpolators.get(threadNumber);
-				}
-				return in;
-			}
-
-			/**
-			 * Intermediate helper method to delegate to
-			 * {@link #processTile(ClassifiedRegion, int[], int, PixelFusion, ArrayList, ArrayList, LocalizableByDimCursor, float[], int[], int, int[], long[], ImagePlus)}
-			 */
-		private void processTile(ClassifiedRegion r, int depth,
-			PixelFusion myFusion, ArrayList<InvertibleBoundable> transform,
-			ArrayList<RealRandomAccess<? extends RealType<?>>> in,
-			RandomAccess<T> out, double[][] inPos,
-			int threadNumber, int[] count, long[] lastDraw, ImagePlus fusionImp)
-			throws NoninvertibleModelException
-		{
-			processTile(r, r.classArray(), depth, myFusion, transform, in, out,
-				inPos, threadNumber, count, lastDraw, fusionImp);
-		}
-
-		/**
-		 * Helper method to fuse all the positions of a given
-		 * {@link ClassifiedRegion}. Since we do not know the dimensionality of the
-		 * region, we recurse over each position of each dimension. The tail step of
-		 * each descent iterates over all the images (classes) of the given region,
-		 * fusing the pixel values at the current position of each associated image.
-		 * This final value is then set in the output.
-		 */
-		private void processTile(ClassifiedRegion r, int[] images, int depth,
-			PixelFusion myFusion, ArrayList<InvertibleBoundable> transform,
-			ArrayList<RealRandomAccess<? extends RealType<?>>> in,
-			RandomAccess<T> out, double[][] inPos,
-			int threadNumber, int[] count, long[] lastDraw, ImagePlus fusionImp)
-			throws NoninvertibleModelException
-		{
-			// NB: there are two process tile methods, one for in-memory fusion
-			// and one for writing to disk. They are slightly different, but
-			// if one is updated the other should be as well!
-			if (depth < r.size()) {
-				Interval d = r.get(depth);
-
-				// The intervals of the given region define the bounds of
-				// iteration
-				// So we are recursively defining a nested iteration order to
-				// cover each position of the region
-				int start = d.min();
-				int end = d.max();
-
-				// If this is the dimension being split up for multi-threading we
-				// need to update the iteration bounds.
-				if (depth == loopDim[0]) {
-					start += loopOffset;
-					end = start + loopSize - 1;
-				}
-
-				out.setPosition(start, depth);
-
-				// NB: can't make this loop inclusive since we don't want the out.fwd
-				// call to go out of bounds, and we can't setPosition (-1) or we
-				// get AIOOB exceptions. So we loop 1 time less than desired, then
-				// do a straight read after the loop.
-				for (int i = start; i < end; i++) {
-					// Recurse to the next depth (dimension)
-					processTile(r, images, depth + 1, myFusion, transform, in, out,
-						inPos, threadNumber, count, lastDraw, fusionImp);
-					// move forward
-					out.fwd(depth);
-				}
-
-				// Need to read the final position.
-				processTile(r, images, depth + 1, myFusion, transform, in, out,
-					inPos, threadNumber, count, lastDraw, fusionImp);
-				return;
-			}
-
-			// compute fusion for this position
-			myFusion.clear();
-
-			// Loop over the images in this region
-			for (int d = 0; d < r.size(); d++) {
-				final double value = out.getDoublePosition(d) + offset[d];
-
-				for (int index = 0; index < images.length; index++) {
-					// Get the positions for the current image
-					inPos[images[index]][d] = value;
-				}
-			}
-
-			// Get the value at each input position
-			for (int index = 0; index < images.length; index++) {
-				final int image = images[index];
-				// Transform to get input position
-				transform.get(image).applyInverseInPlace(inPos[image]);
-				in.get(image).setPosition(inPos[image]);
-				// fuse
-				myFusion.addValue(in.get(image).get().getRealFloat(), image, inPos[image]);
-			}
-
-			// set value
-			out.get().setReal(myFusion.getValue());
-
-			// Display progress if on thread 0
-			if (threadNumber == 0) {
-				count[0]++;
-				// just every 10000'th pixel
-				if (count[0] % 10000 == 0) {
-					lastDraw[0] = drawFusion(lastDraw[0], fusionImp);
-					IJ.showProgress(count[0] / positionsPerThread);
-				}
-			}
-		}
-	}
-	
 	/**
 	 * Recursive method to construct all possible {@link ClassifiedRegion}
 	 * combinations from an arbitrary number of {@link Interval} lists. One list
@@ -727,7 +810,7 @@ public class Fusion
 	 */
 	private static void buildAllRegions(List<Interval>[] allIntervals,
 		int[] ivalIndices, int depth, ClassifiedRegion queryTile,
-		ClassifiedRegion placedTile, Set<ClassifiedRegion> placedTiles,
+		ClassifiedRegion placedTile, RegionIndex placedTiles,
 		Stack<ClassifiedRegion> rawTiles)
 	{
 		if (depth != ivalIndices.length) {
@@ -779,253 +862,526 @@ public class Fusion
 	}
 
 	/**
-	 * Fuse one slice/volume (one channel)
+	 * Fuse one slice/volume (one channel) without interpolation, every image is copied into the output
+	 * at its rounded translation, where images overlap one of them wins. The rows of all images are
+	 * split into tasks of about {@link #pixelsPerTask} pixels that are distributed over one thread per
+	 * core, each row is copied directly into the output (pixel by pixel if the types differ).
 	 * 
 	 * @param output - same the type of the ImagePlus input
-	 * @param input - FloatType, because of Interpolation that needs to be done
+	 * @param input - the images, not interpolated
 	 * @param transform - the transformation
+	 * @param displayFusion - if the output is shown while fusing
 	 */
 	protected static <T extends RealType<T>> void fuseBlockNoOverlap( final Img<T> output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final double[] offset, 
 			final ArrayList< InvertibleBoundable > transform, final boolean displayFusion )
 	{
 		final int numDimensions = output.numDimensions();
 		final int numImages = input.size();
-				
-		// run multithreaded
-		final AtomicInteger ai = new AtomicInteger(0);					
-        final Thread[] threads = SimpleMultiThreading.newThreads( numImages );
-        
-        for (int ithread = 0; ithread < threads.length; ++ithread)
-            threads[ithread] = new Thread( new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                	// Thread ID
-                	final int myImage = ai.getAndIncrement();
-                	
-                	// only the first thread does preview and update the status bar
-                	// this requires no synchronized stuff
-            		long lastDraw = 0;
-            		ImagePlus fusionImp = null;
-
-                	if ( displayFusion && myImage == 0 )
-                	{
-                		try
-            			{
-            				fusionImp = ((ImagePlusImg<?, ?>) output).getImagePlus();
-            				fusionImp.setTitle( "fusing..." );
-            				fusionImp.show();
-            			}
-            			catch ( ImgLibException e )
-            			{
-            				Log.error( "Output image has no ImageJ type: " + e );
-            			}                		
-                	}
-
-                	final Img< ? extends RealType<?> > image = input.get( myImage ).getImg();
-                	final int[] translation = new int[ numDimensions ];
-                	
-                	final InvertibleBoundable t = transform.get( myImage );
-            		final double[] tmp = new double[ numDimensions ];
-            		t.applyInPlace( tmp );
- 
-            		for ( int d = 0; d < numDimensions; ++d )
-            			translation[ d ] = (int) Math.round( tmp[ d ] );
-
-            		final Cursor< ? extends RealType<?> > cursor = image.localizingCursor();
-            		final RandomAccess< ? extends RealType<?> > randomAccess = output.randomAccess();
-            		final int[] pos = new int[ numDimensions ];
-            		
-            		int j = 0;
-            		while ( cursor.hasNext() )
-            		{
-            			cursor.fwd();
-            			cursor.localize( pos );
-            			
-        				// just thread 0
-        				if ( myImage == 0 )
-        				{
-        					// just every 10000'th pixel
-        					if ( j++ % 10000 == 0 )
-        					{
-                				lastDraw = drawFusion( lastDraw, fusionImp );
-        						IJ.showProgress( (double)j / (double)image.size() );
-        					}
-        				}
-          				
-                		for ( int d = 0; d < numDimensions; ++d )
-                		{
-                			pos[ d ] += translation[ d ];
-                			pos[ d ] -= offset[ d ];
-                		}
-                		
-                		randomAccess.setPosition( pos );
-                		randomAccess.get().setReal( cursor.get().getRealFloat() );
-            		}
-            		
-    				if ( fusionImp != null )
-    					fusionImp.hide();
-                 }
-            });
-        
-        SimpleMultiThreading.startAndJoin( threads );        
+
+		// where each image starts in the output
+		final long[][] outMin = new long[ numImages ][ numDimensions ];
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			final double[] tmp = new double[ numDimensions ];
+			transform.get( i ).applyInPlace( tmp );
+
+			for ( int d = 0; d < numDimensions; ++d )
+				outMin[ i ][ d ] = (long)Math.floor( Math.round( tmp[ d ] ) - offset[ d ] );
+		}
+
+		// the tasks, each is a range of rows (y and z) of one image: { image, first row, last row }
+		final ArrayList< int[] > tasks = new ArrayList< int[] >();
+		long numPixels = 0;
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			final int width = (int)input.get( i ).dimension( 0 );
+			final int numRows = (int)( input.get( i ).dimension( 1 ) * ( numDimensions > 2 && input.get( i ).numDimensions() > 2 ? input.get( i ).dimension( 2 ) : 1 ) );
+			final int rowsPerTask = (int)Math.max( 1, pixelsPerTask / Math.max( 1, width ) );
+
+			for ( int row = 0; row < numRows; row += rowsPerTask )
+				tasks.add( new int[] { i, row, Math.min( numRows, row + rowsPerTask ) - 1 } );
+
+			numPixels += (long)width * numRows;
+		}
+
+		IJ.showProgress( 0 );
+
+		ImagePlus fusionImp = null;
+
+		if ( displayFusion )
+		{
+			try
+			{
+				fusionImp = ((ImagePlusImg<?, ?>) output).getImagePlus();
+				fusionImp.setTitle( "fusing..." );
+				fusionImp.show();
+			}
+			catch ( ImgLibException e )
+			{
+				Log.error( "Output image has no ImageJ type: " + e );
+			}
+		}
+
+		final ImagePlus fusionDisplay = fusionImp;
+		final long totalPixels = numPixels;
+		final AtomicInteger nextTask = new AtomicInteger( 0 );
+		final AtomicLong pixelsDone = new AtomicLong( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.min( tasks.size(), Runtime.getRuntime().availableProcessors() ) );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+		{
+			final int threadNumber = ithread;
+
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					final RandomAccess< T > out = output.randomAccess();
+					final long[] srcPos = new long[ numDimensions ];
+					long lastDraw = 0;
+
+					for ( int i = nextTask.getAndIncrement(); i < tasks.size(); i = nextTask.getAndIncrement() )
+					{
+						final int[] task = tasks.get( i );
+						final Img< ? extends RealType< ? > > image = input.get( task[ 0 ] ).getImg();
+						final RandomAccess< ? extends RealType< ? > > in = image.randomAccess();
+
+						for ( int row = task[ 1 ]; row <= task[ 2 ]; ++row )
+							copyRow( image, in, row, outMin[ task[ 0 ] ], output, out, srcPos );
+
+						final long done = pixelsDone.addAndGet( image.dimension( 0 ) * ( task[ 2 ] - task[ 1 ] + 1 ) );
+
+						// just thread 0
+						if ( threadNumber == 0 )
+						{
+							lastDraw = drawFusion( lastDraw, fusionDisplay );
+							IJ.showProgress( (double)done / totalPixels );
+						}
+					}
+				}
+			});
+		}
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		if ( fusionImp != null )
+			fusionImp.hide();
+	}
+
+	/**
+	 * Copies one row of an image into the output, the parts outside of the output are left out.
+	 * 
+	 * @param in - a {@link RandomAccess} on the image, used if the types differ
+	 * @param row - the row, y + z * height
+	 * @param outMin - where the image starts in the output
+	 * @param out - a {@link RandomAccess} on the output, used if the types differ
+	 * @param srcPos - temporary array
+	 */
+	private static <T extends RealType<T>> void copyRow( final Img< ? extends RealType< ? > > image, final RandomAccess< ? extends RealType< ? > > in, final int row,
+			final long[] outMin, final Img< T > output, final RandomAccess< T > out, final long[] srcPos )
+	{
+		final int n = output.numDimensions();
+		final long height = image.dimension( 1 );
+
+		srcPos[ 1 ] = row % height;
+		if ( n > 2 )
+			srcPos[ 2 ] = row / height;
+
+		// the row in the output
+		final long outY = srcPos[ 1 ] + outMin[ 1 ];
+		final long outZ = n > 2 ? srcPos[ 2 ] + outMin[ 2 ] : 0;
+
+		if ( outY < 0 || outY >= output.dimension( 1 ) || ( n > 2 && ( outZ < 0 || outZ >= output.dimension( 2 ) ) ) )
+			return;
+
+		// the part of the row inside the output
+		final long startX = Math.max( 0, -outMin[ 0 ] );
+		final long endX = Math.min( image.dimension( 0 ), output.dimension( 0 ) - outMin[ 0 ] );
+
+		if ( startX >= endX )
+			return;
+
+		final int length = (int)( endX - startX );
+		final long srcZ = n > 2 ? srcPos[ 2 ] : 0;
+
+		srcPos[ 0 ] = startX;
+
+		final Object srcArray = RegionFuser.getStorageArray( image, srcZ );
+		final Object outArray = RegionFuser.getStorageArray( output, outZ );
+
+		if ( srcArray != null && outArray != null && srcArray.getClass() == outArray.getClass() )
+		{
+			System.arraycopy(
+					srcArray, RegionFuser.getIndex( image, startX, srcPos[ 1 ], srcZ ),
+					outArray, RegionFuser.getIndex( output, startX + outMin[ 0 ], outY, outZ ), length );
+		}
+		else
+		{
+			// different types, convert pixel by pixel
+			for ( int d = 0; d < image.numDimensions(); ++d )
+				in.setPosition( srcPos[ d ], d );
+
+			out.setPosition( startX + outMin[ 0 ], 0 );
+			out.setPosition( outY, 1 );
+			if ( n > 2 )
+				out.setPosition( outZ, 2 );
+
+			for ( int x = 0; x < length; ++x )
+			{
+				out.get().setReal( in.get().getRealFloat() );
+
+				if ( x < length - 1 )
+				{
+					in.fwd( 0 );
+					out.fwd( 0 );
+				}
+			}
+		}
 	}
 
 	/**
-	 * Fuse one slice/volume (one channel)
+	 * Fuse one or more slices/volumes (channels/timepoints) slice by slice and write each slice to disk. Several
+	 * slices, also of different volumes, are fused in parallel, each thread has its own interpolators and
+	 * {@link PixelFusion}. Finished slices are handed to a {@link SliceWriter} so that fusion continues while
+	 * the disk is busy. The output slices are recycled once written, so never more than one slice per fusion
+	 * thread plus the slices queued for writing are kept in memory.
 	 * 
-	 * @param outputSlice - same the type of the ImagePlus input, just one slice which will be written to the output directory
-	 * @param input - FloatType, because of Interpolation that needs to be done
+	 * @param volumes - the input and fusion of each channel/timepoint, the output is just one slice which will be written to the output directory
 	 * @param transform - the transformation
 	 */
-	protected static <T extends RealType<T>> void writeBlock( final Img<T> outputSlice, final int numSlices, final int t, final int numTimePoints, final int c, final int numChannels, 
-			final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final double[] offset, 
-			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final String outputDirectory )
+	protected static <T extends RealType<T>> void writeBlock( final List< Volume< T > > volumes, final int numSlices, final int numTimePoints, final int numChannels, 
+			final double[] offset, final ArrayList< InvertibleBoundable > transform, final String outputDirectory )
 	{
-		final int numImages = input.size();
+		final Img<T> outputSlice = volumes.get( 0 ).output;
+		final int numImages = volumes.get( 0 ).input.size();
 		final int numDimensions = offset.length;
+		final int numTasks = numSlices * volumes.size();
+		final int[] sliceSize = new int[] { (int)outputSlice.dimension( 0 ), (int)outputSlice.dimension( 1 ) };
+		final T type = outputSlice.firstElement().createVariable();
 
+		// the regions only depend on the size of the input images, which is the same for all volumes
 		final List<ClassifiedRegion> tiles =
-				buildTileList(numImages, numDimensions, transform, input, offset);
-		
-		final ArrayList<RealRandomAccess<? extends RealType<?>>> in = new ArrayList<RealRandomAccess<? extends RealType<?>>>();
-		
-		for ( int i = 0; i < numImages; ++i )
-			in.add( input.get( i ).createInterpolator() );
-		
-		final PixelFusion myFusion = fusion.copy();
-		
-		try 
-		{
-			final long sliceSize = outputSlice.size();
-			for ( int slice = 0; slice < numSlices; ++slice )
+				buildTileList(numImages, numDimensions, transform, volumes.get( 0 ).input, offset);
+
+		// run multithreaded, every thread fuses complete slices
+		final AtomicInteger nextSlice = new AtomicInteger( 0 );
+		final AtomicInteger slicesDone = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.min( numTasks, Runtime.getRuntime().availableProcessors() ) );
+
+		// writes the finished slices while we fuse the next ones
+		final SliceWriter writer = new SliceWriter();
+
+		// the slices that are not being fused or written, created on demand up to the maximal number
+		final int maxSlices = Math.max( volumes.size(), threads.length + SliceWriter.defaultQueueSize + SliceWriter.defaultNumWriterThreads );
+		final BlockingQueue< Img< T > > freeSlices = new ArrayBlockingQueue< Img< T > >( maxSlices );
+		final AtomicInteger numCreatedSlices = new AtomicInteger( volumes.size() );
+
+		for ( final Volume< T > volume : volumes )
+			freeSlices.add( volume.output );
+
+		IJ.showProgress( 0 );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
 			{
-				IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + ", " +
-						"channel: " + c + " of " + numChannels + ", slice: " + (slice + 1) + " of " +
-						numSlices + "...");
+				@Override
+				public void run()
+				{
+					// the interpolators and the PixelFusion of this thread for each volume, created when needed
+					final List< RegionFuser< T > > fusers = new ArrayList< RegionFuser< T > >();
 
-				final RandomAccess<T> out = outputSlice.randomAccess();
-				final double[][] inPos = new double[ numImages ][ numDimensions ];
-				final int[] count = new int[1];
+					for ( int v = 0; v < volumes.size(); ++v )
+						fusers.add( null );
 
-				IJ.showProgress(0);
-				
-				// just like fuseBlock but pin to the current slice #
-				for (long tileIndex=0; tileIndex<tiles.size(); tileIndex++) {
-					ClassifiedRegion currentTile = tiles.get((int) tileIndex);
-					writeTile(currentTile, 0, slice, myFusion, transform, offset, in, out, inPos, count, sliceSize, numSlices);
-				}
-				
-				
-				// write the slice
-				final ImagePlus outImp = ((ImagePlusImg<?,?>)outputSlice).getImagePlus();
-				final FileSaver fs = new FileSaver( outImp );
-				fs.saveAsTiff( new File( outputDirectory, "img_t" + lz( t, numTimePoints ) + "_z" + lz( slice+1, numSlices ) + "_c" + lz( c, numChannels ) ).getAbsolutePath() );
+					try
+					{
+						for ( int i = nextSlice.getAndIncrement(); i < numTasks; i = nextSlice.getAndIncrement() )
+						{
+							// all slices of one volume follow each other
+							final int v = i / numSlices;
+							final int z = i % numSlices;
+							final Volume< T > volume = volumes.get( v );
+
+							if ( fusers.get( v ) == null )
+								fusers.set( v, new RegionFuser< T >( volume.input, transform, offset, volume.fusion ) );
+
+							Img< T > s = freeSlices.poll();
+
+							if ( s == null )
+							{
+								if ( numCreatedSlices.getAndIncrement() < maxSlices )
+									s = outputSlice.factory().create( sliceSize, type );
+								else
+									s = freeSlices.take();
+							}
+
+							final Img< T > slice = s;
+
+							fuseSlice( slice, slice.randomAccess(), z, tiles, fusers.get( v ) );
+
+							// write the slice in the background, afterwards it can be reused
+							final ImagePlus outImp = ((ImagePlusImg<?,?>)slice).getImagePlus();
+							final File file = new File( outputDirectory, "img_t" + lz( volume.t, numTimePoints ) + "_z" + lz( z+1, numSlices ) + "_c" + lz( volume.c, numChannels ) );
+
+							writer.write( outImp, file, new Runnable()
+							{
+								@Override
+								public void run() { freeSlices.add( slice ); }
+							});
+
+							final int done = slicesDone.incrementAndGet();
+
+							if ( volumes.size() == 1 )
+								IJ.showStatus("Fusing time point: " + volume.t + " of " + numTimePoints + ", " +
+										"channel: " + volume.c + " of " + numChannels + ", slice: " + done + " of " +
+										numSlices + "...");
+							else
+								IJ.showStatus("Fusing " + volumes.size() + " channels/time points, slice: " + done + " of " +
+										numTasks + "...");
+
+							IJ.showProgress( (double)done / (double)numTasks );
+						}
+					}
+					catch ( NoninvertibleModelException e )
+					{
+						Log.error( "Cannot invert model, qutting." );
+					}
+					catch ( ImgLibException e )
+					{
+						Log.error( "Output image has no ImageJ type: " + e );
+					}
+					catch ( InterruptedException e )
+					{
+						Log.error( "Fusion was interrupted: " + e );
+					}
+					catch ( IOException e )
+					{
+						// writing failed, stop all threads, close() reports it
+						nextSlice.set( numTasks );
+					}
 				}
-		} 
-		catch ( NoninvertibleModelException e ) 
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		try
 		{
-			Log.error( "Cannot invert model, qutting." );
-			return;
-		} 
-		catch ( ImgLibException e ) 
+			writer.close();
+		}
+		catch ( InterruptedException e )
 		{
-			Log.error( "Output image has no ImageJ type: " + e );
-			return;
+			Log.error( "Writing slices was interrupted: " + e );
 		}
+		catch ( IOException e )
+		{
+			Log.error( "Not all slices were written: " + e.getMessage() );
+		}
+
+		Log.debug( "Wrote " + writer.getSlicesWritten() + " slices (" + writer.getBytesWritten() + " bytes), " +
+				"at most " + writer.getMaxQueueDepth() + " slices were waiting to be written." );
 	}
 
 	/**
-	 * Helper method to fuse all the positions of a given
-	 * {@link ClassifiedRegion}. Since we do not know the dimensionality of
-	 * the region, we recurse over each position of each dimension. The tail
-	 * step of each descent iterates over all the images (classes) of the
-	 * given region, fusing the pixel values at the current position of each
-	 * associated image. This final value is then set in the output.
+	 * Fuses a 3d image directly into its projection along z, the fused volume is never assembled. The
+	 * slices are fused in parallel as by {@link #writeBlock(List, int, int, int, double[], ArrayList, String)}
+	 * and added into one projection per thread, so the memory needed depends on the size of a slice only.
+	 * The other parameters are the same as for {@link #fuse(RealType, ArrayList, ArrayList, int, boolean, int, String, boolean, boolean, boolean)}.
+	 * 
+	 * @param projectionType - 0 == max (of type T), 1 == sum, 2 == mean (both 32-bit)
+	 * @return - the projection of each channel and timepoint
 	 */
-	private static <T extends RealType<T>> void writeTile(ClassifiedRegion r,
-		int depth, final int slice, PixelFusion myFusion,
-		ArrayList<InvertibleBoundable> transform, double[] offset,
-		ArrayList<RealRandomAccess<? extends RealType<?>>> in,
-		RandomAccess<T> out, double[][] inPos, int[] count,
-		final long sliceSize, final int numSlices)
-		throws NoninvertibleModelException
+	public static < T extends RealType< T > & NativeType< T > > ImagePlus fuseProjection( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models,
+			final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final int projectionType )
 	{
-		//NB: there are two process tile methods, one for in-memory fusion
-		// and one for writing to disk. They are slightly different, but
-		// if one is updated the other should be as well!
-		// For 3D datasets, we fix the last dimension to the given slice #
-		if (depth < out.numDimensions()) {
-			Interval d = r.get(depth);
-			// The intervals of the given region define the bounds of iteration
-			// So we are recursively defining a nested iteration order to cover
-			// each position of the region
-			int start = d.min();
-			int end = d.max();
-
-			out.setPosition(start, depth);
-
-			for (int i=start; i < end; i++) {
-				// The position array will be used to set the in and out positions.
-				// It specifies where we are in the output image
-				// Recurse to the next depth (dimension)
-				writeTile(r, depth+1, slice, myFusion, transform, offset, in, out, inPos,
-					count, sliceSize, numSlices );
-				out.fwd(depth);
-			}
+		final int dimensionality = 3;
+		final double[] offset = new double[ dimensionality ];
+		final int[] size = new int[ dimensionality ];
+		final int numTimePoints = images.get( 0 ).getNFrames();
+		final int numChannels = images.get( 0 ).getNChannels();
 
-			writeTile(r, depth+1, slice, myFusion, transform, offset, in, out, inPos,
-				count, sliceSize, numSlices );
-			return;
-		}
+		estimateBounds( offset, size, images, models, dimensionality );
 
-		// compute fusion for this position
-		myFusion.clear();
+		if ( subpixelResolution )
+			for ( int d = 0; d < size.length; ++d )
+				++size[ d ];
 
-		final int[] images = r.classArray();
+		final ImageStack stack = new ImageStack( size[ 0 ], size[ 1 ] );
 
-		// Loop over the images in this region
-		for (int d = 0; d < out.numDimensions(); d++) {
-			final double value = out.getDoublePosition(d) + offset[d];
+		for ( int t = 1; t <= numTimePoints; ++t )
+		{
+			for ( int c = 1; c <= numChannels; ++c )
+			{
+				IJ.showStatus("Fusing projection of time point: " + t + " of " + numTimePoints + ", " +
+					"channel: " + c + " of " + numChannels + "...");
 
-			for (int index = 0; index < images.length; index++) {
-				// Get the positions for the current image
-				inPos[images[index]][d] = value;
-			}
-		}
+				ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = getBlockData( images, c, t, subpixelResolution );
+
+				if ( subpixelResolution && preShiftTranslatedImages )
+					blockData = preShift( blockData, models, offset, preShiftOrder );
 
-		if (r.size() > out.numDimensions()) {
-			final int dim = r.size() - 1;
-			final double value = slice + offset[dim];
-			for (int index = 0; index < images.length; index++) {
-				// Get the positions for the current image
-				inPos[images[index]][dim] = value;
+				final PixelFusion fusion = createPixelFusion( fusionType, ignoreZeroValues, blockData );
+				final float[] projection = projectBlock( targetType, blockData, fusion, size, offset, models, projectionType );
+
+				if ( projectionType == 0 )
+				{
+					// the maximum is one of the fused values, so it is of the target type
+					final Img< T > out = new ImagePlusImgFactory< T >().create( new int[] { size[ 0 ], size[ 1 ] }, targetType );
+					int i = 0;
+
+					for ( final T type : out )
+						type.setReal( projection[ i++ ] );
+
+					try
+					{
+						stack.addSlice( "", ((ImagePlusImg<?, ?>)out).getImagePlus().getProcessor() );
+					}
+					catch ( ImgLibException e )
+					{
+						Log.error( "Output image has no ImageJ type: " + e );
+					}
+				}
+				else
+				{
+					stack.addSlice( "", new FloatProcessor( size[ 0 ], size[ 1 ], projection, null ) );
+				}
 			}
 		}
 
-		// Get the value at each input position
-		for (int index = 0; index < images.length; index++) {
-			final int image = images[index];
-			// Transform to get input position
-			transform.get(image).applyInverseInPlace(inPos[image]);
-			in.get(image).setPosition(inPos[image]);
-			// fuse
-			myFusion.addValue(in.get(image).get().getRealFloat(), image, inPos[image]);
-		}
+		IJ.showStatus( "Fusion complete." );
+		IJ.showProgress( 1.01 );
+
+		final ImagePlus result = new ImagePlus( "", stack );
+		result.setDimensions( numChannels, 1, numTimePoints );
+
+		if ( numChannels > 1 || numTimePoints > 1 )
+			return CompositeImageFixer.makeComposite( result, CompositeImage.COMPOSITE );
+		return result;
+	}
+
+	/**
+	 * Fuses one channel/timepoint slice by slice and projects it along z, every thread fuses complete
+	 * slices into its own slice and projection. The projections of the threads are combined at the end.
+	 * 
+	 * @param size - the size of the fused volume
+	 * @param projectionType - 0 == max, 1 == sum, 2 == mean
+	 * @return - the projection, x changing fastest
+	 */
+	protected static < T extends RealType< T > & NativeType< T > > float[] projectBlock( final T targetType, final ArrayList< ImageInterpolation< ? extends RealType< ? > > > input,
+			final PixelFusion fusion, final int[] size, final double[] offset, final ArrayList< InvertibleBoundable > transform, final int projectionType )
+	{
+		final int numSlices = size[ 2 ];
+		final int numPixels = size[ 0 ] * size[ 1 ];
+		final int[] sliceSize = new int[] { size[ 0 ], size[ 1 ] };
 
-		// set value
-		out.get().setReal(myFusion.getValue());
+		final List<ClassifiedRegion> tiles = buildTileList( input.size(), size.length, transform, input, offset );
 
-		// set value
-		out.get().setReal(myFusion.getValue());
+		final AtomicInteger nextSlice = new AtomicInteger( 0 );
+		final AtomicInteger slicesDone = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numSlices, Runtime.getRuntime().availableProcessors() ) ) );
+		final float[][] projections = new float[ threads.length ][];
 
-		// Update progress if necessary
-		count[0]++;
-		if (count[0] % 10000 == 0) {
-			IJ.showProgress( (double)( count[0] + ( slice * sliceSize ) ) / (double)( numSlices * sliceSize ) );
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+		{
+			final int threadNumber = ithread;
+
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					final RegionFuser< T > fuser = new RegionFuser< T >( input, transform, offset, fusion );
+					final Img< T > slice = new ArrayImgFactory< T >().create( sliceSize, targetType );
+					final RandomAccess< T > out = slice.randomAccess();
+					final float[] projection = new float[ numPixels ];
+
+					if ( projectionType == 0 )
+						Arrays.fill( projection, -Float.MAX_VALUE );
+
+					try
+					{
+						for ( int z = nextSlice.getAndIncrement(); z < numSlices; z = nextSlice.getAndIncrement() )
+						{
+							fuseSlice( slice, out, z, tiles, fuser );
+
+							int i = 0;
+
+							if ( projectionType == 0 )
+							{
+								for ( final T type : slice )
+								{
+									final float value = type.getRealFloat();
+
+									if ( value > projection[ i ] )
+										projection[ i ] = value;
+
+									++i;
+								}
+							}
+							else
+							{
+								for ( final T type : slice )
+									projection[ i++ ] += type.getRealFloat();
+							}
+
+							IJ.showProgress( (double)slicesDone.incrementAndGet() / (double)numSlices );
+						}
+					}
+					catch ( NoninvertibleModelException e )
+					{
+						Log.error( "Cannot invert model, qutting." );
+					}
+
+					projections[ threadNumber ] = projection;
+				}
+			});
 		}
 
+		SimpleMultiThreading.startAndJoin( threads );
+
+		// combine the projections of all threads
+		final float[] projection = projections[ 0 ];
+
+		for ( int j = 1; j < projections.length; ++j )
+			for ( int i = 0; i < numPixels; ++i )
+			{
+				if ( projectionType == 0 )
+					projection[ i ] = Math.max( projection[ i ], projections[ j ][ i ] );
+				else
+					projection[ i ] += projections[ j ][ i ];
+			}
+
+		if ( projectionType == 2 )
+			for ( int i = 0; i < numPixels; ++i )
+				projection[ i ] /= numSlices;
+
+		return projection;
+	}
+
+	/**
+	 * Fuses one z-slice of all {@link ClassifiedRegion}s into a 2d output slice. Regions that
+	 * do not contain the slice are skipped, so the slice has to be cleared first as it is
+	 * reused for the next slice.
+	 * 
+	 * @param slice - the 2d output
+	 * @param out - a {@link RandomAccess} on the output
+	 * @param z - which slice, ignored for 2d regions
+	 * @param tiles - all regions
+	 * @param fuser - the per-thread fusion state
+	 */
+	protected static <T extends RealType<T>> void fuseSlice( final Img<T> slice, final RandomAccess<T> out, final int z,
+			final List<ClassifiedRegion> tiles, final RegionFuser<T> fuser ) throws NoninvertibleModelException
+	{
+		for ( final T type : slice )
+			type.setZero();
+
+		final long[] min = new long[ slice.numDimensions() ];
+
+		for ( final ClassifiedRegion region : tiles )
+			if ( region.size() < 3 || region.get( 2 ).contains( z ) == 0 )
+				fuser.fuse( region, out, slice, min, z );
 	}
 
 	private static final String lz( final int num, final int max )
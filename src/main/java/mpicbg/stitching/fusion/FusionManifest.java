@@ -0,0 +1,393 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.stitching.ImageCollectionElement;
+import mpicbg.stitching.TextFileAccess;
+import net.imglib2.type.numeric.RealType;
+import stitching.utils.Log;
+
+/**
+ * Remembers what went into every block the {@link BlockFusion} wrote with a {@link TiffBlockSink}, so
+ * that fusing the same tiles again only rewrites the blocks that would change. The manifest is a text
+ * file in the output directory listing the settings of the fusion, every tile (its id, a fingerprint of
+ * its file and where the model puts its corners) and for every block the tiles that contribute to it.
+ *
+ * A block is fused again if the settings changed (e.g. the size or position of the fused image), if the
+ * tiles contributing to it are not the same (a tile moved in or out) or if one of them moved or its file
+ * changed, or if the block file is missing. Moving a tile at the border of the mosaic can change the
+ * bounding box and with it every block.
+ */
+public class FusionManifest
+{
+	/**
+	 * The name of the manifest in the output directory
+	 */
+	public static String defaultFileName = "fusion_manifest.txt";
+
+	final File outputDirectory, file;
+
+	// what was written before, empty if there is no manifest yet
+	String oldSettings = null;
+	final HashMap< Integer, String > oldTiles = new HashMap< Integer, String >();
+	final HashMap< String, int[] > oldBlocks = new HashMap< String, int[] >();
+
+	// what is written now
+	String settings;
+	String[] ids, fingerprints, tiles;
+	final ArrayList< String > blocks = new ArrayList< String >();
+
+	int numBlocks = 0, numChangedBlocks = 0;
+	boolean failed = false;
+
+	/**
+	 * Reads the manifest of the previous fusion into this directory if there is one.
+	 *
+	 * @param outputDirectory - where the {@link TiffBlockSink} writes the blocks
+	 */
+	public FusionManifest( final String outputDirectory )
+	{
+		this.outputDirectory = new File( outputDirectory );
+		this.file = new File( outputDirectory, defaultFileName );
+
+		if ( file.exists() )
+			read();
+	}
+
+	/**
+	 * Sets the ids and fingerprints of the tiles, in the same order as the models.
+	 */
+	public void setTiles( final String[] ids, final String[] fingerprints )
+	{
+		this.ids = ids;
+		this.fingerprints = fingerprints;
+	}
+
+	/**
+	 * Starts a new fusion, if the settings differ from the previous one every block is fused again.
+	 * The previous manifest is deleted as blocks are overwritten from now on, it is written again
+	 * once all blocks are done.
+	 *
+	 * @param settings - everything besides the tiles that changes the fused blocks
+	 * @param models - the models of the tiles
+	 * @param imgSizes - the sizes of the tiles
+	 */
+	public void begin( final String settings, final List< InvertibleBoundable > models, final int[][] imgSizes )
+	{
+		this.settings = settings;
+		this.tiles = new String[ imgSizes.length ];
+		this.blocks.clear();
+		this.numBlocks = this.numChangedBlocks = 0;
+		this.failed = false;
+
+		for ( int i = 0; i < imgSizes.length; ++i )
+			tiles[ i ] = ids[ i ] + "\t" + fingerprints[ i ] + "\t" + getPlacement( models.get( i ), imgSizes[ i ] );
+
+		if ( oldSettings != null && !oldSettings.equals( settings ) )
+			Log.info( "The fused image changed its size or settings, all blocks are fused again." );
+
+		if ( file.exists() && !file.delete() )
+			Log.error( "Could not delete '" + file + "', it might not match the blocks anymore." );
+	}
+
+	/**
+	 * Records the tiles contributing to every block of a channel/timepoint.
+	 *
+	 * @param t - the timepoint
+	 * @param c - the channel
+	 * @param size - the size of the fused image
+	 * @param blockSize - the size of the blocks
+	 * @param imagesPerBlock - for every block (row-major order) the tiles contributing to it
+	 * @return - for every block if it has to be fused again
+	 */
+	public synchronized boolean[] getChangedBlocks( final int t, final int c, final int[] size, final int[] blockSize, final List< int[] > imagesPerBlock )
+	{
+		final boolean[] changed = new boolean[ imagesPerBlock.size() ];
+		final int[] numBlocksPerDim = BlockFusion.getNumBlocks( size, blockSize );
+		final long[] min = new long[ size.length ];
+		final long[] dim = new long[ size.length ];
+
+		for ( int b = 0; b < changed.length; ++b )
+		{
+			BlockFusion.getBlock( b, size, blockSize, numBlocksPerDim, min, dim );
+
+			final String key = t + "\t" + c + "\t" + toString( min );
+			final int[] images = imagesPerBlock.get( b );
+
+			changed[ b ] = !settings.equals( oldSettings ) || !isSame( oldBlocks.get( key ), images ) ||
+					!new File( outputDirectory, TiffBlockSink.getFileName( t, c, min ) ).exists();
+
+			blocks.add( key + "\t" + toString( images ) );
+
+			++numBlocks;
+
+			if ( changed[ b ] )
+				++numChangedBlocks;
+		}
+
+		return changed;
+	}
+
+	/**
+	 * @return - if the tiles that contributed to a block before are the same as the ones now, including their position and files
+	 */
+	protected boolean isSame( final int[] oldImages, final int[] images )
+	{
+		if ( oldImages == null || oldImages.length != images.length )
+			return false;
+
+		// the tiles might be listed in a different order
+		final String[] a = new String[ images.length ];
+		final String[] b = new String[ images.length ];
+
+		for ( int i = 0; i < images.length; ++i )
+		{
+			a[ i ] = oldTiles.get( oldImages[ i ] );
+			b[ i ] = tiles[ images[ i ] ];
+
+			if ( a[ i ] == null )
+				return false;
+		}
+
+		Arrays.sort( a );
+		Arrays.sort( b );
+
+		return Arrays.equals( a, b );
+	}
+
+	/**
+	 * Tells that not all blocks were written, no manifest is written so that all blocks are fused again next time.
+	 */
+	public synchronized void setFailed() { failed = true; }
+
+	/**
+	 * Writes the manifest, should be called once all blocks are written.
+	 */
+	public void write()
+	{
+		if ( failed )
+		{
+			Log.error( "Not all blocks were fused, not writing '" + file + "', all blocks are fused again next time." );
+			return;
+		}
+
+		final File tmp = new File( outputDirectory, defaultFileName + ".tmp" );
+
+		try
+		{
+			final PrintWriter out = TextFileAccess.openFileWriteEx( tmp );
+
+			out.println( "# Written by the fusion, lists what went into every block to only update changed blocks" );
+			out.println( "settings\t" + settings );
+
+			for ( int i = 0; i < tiles.length; ++i )
+				out.println( "tile\t" + i + "\t" + tiles[ i ] );
+
+			for ( final String block : blocks )
+				out.println( "block\t" + block );
+
+			out.close();
+
+			if ( ( file.exists() && !file.delete() ) || !tmp.renameTo( file ) )
+				Log.error( "Could not write '" + file + "'" );
+		}
+		catch ( IOException e )
+		{
+			Log.error( "Could not write '" + file + "': " + e );
+		}
+
+		Log.info( "Fused " + numChangedBlocks + " of " + numBlocks + " blocks, the others did not change." );
+	}
+
+	protected void read()
+	{
+		try
+		{
+			final BufferedReader in = TextFileAccess.openFileReadEx( file );
+
+			for ( String line = in.readLine(); line != null; line = in.readLine() )
+			{
+				final String[] entries = line.split( "\t" );
+
+				if ( entries[ 0 ].equals( "settings" ) && entries.length == 2 )
+				{
+					oldSettings = entries[ 1 ];
+				}
+				else if ( entries[ 0 ].equals( "tile" ) && entries.length == 5 )
+				{
+					oldTiles.put( Integer.parseInt( entries[ 1 ] ), entries[ 2 ] + "\t" + entries[ 3 ] + "\t" + entries[ 4 ] );
+				}
+				else if ( entries[ 0 ].equals( "block" ) && entries.length >= 4 )
+				{
+					final String[] images = entries.length > 4 && entries[ 4 ].length() > 0 ? entries[ 4 ].split( "," ) : new String[ 0 ];
+					final int[] indices = new int[ images.length ];
+
+					for ( int i = 0; i < images.length; ++i )
+						indices[ i ] = Integer.parseInt( images[ i ] );
+
+					oldBlocks.put( entries[ 1 ] + "\t" + entries[ 2 ] + "\t" + entries[ 3 ], indices );
+				}
+			}
+
+			in.close();
+		}
+		catch ( Exception e )
+		{
+			Log.error( "Cannot read '" + file + "', all blocks are fused again: " + e );
+
+			oldSettings = null;
+			oldTiles.clear();
+			oldBlocks.clear();
+		}
+	}
+
+	/**
+	 * @return - the settings of a fusion that change the output besides the tiles
+	 */
+	public static String getSettings( final RealType< ? > targetType, final double[] offset, final int[] size, final int[] blockSize,
+			final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues )
+	{
+		String settings = targetType.getClass().getSimpleName() + " offset=" + toString( offset ) + " size=" + toString( size ) +
+				" block=" + toString( blockSize ) + " fusion=" + fusionType + " subpixel=" + subpixelResolution + " ignoreZero=" + ignoreZeroValues;
+
+		if ( subpixelResolution && Fusion.preShiftTranslatedImages )
+			settings += " preShift=" + Fusion.preShiftOrder;
+
+		return settings;
+	}
+
+	/**
+	 * @return - where the model puts the corners of a tile, with full precision
+	 */
+	public static String getPlacement( final InvertibleBoundable model, final int[] imgSize )
+	{
+		final StringBuilder placement = new StringBuilder();
+		final int n = imgSize.length;
+
+		for ( int corner = 0; corner < 1 << n; ++corner )
+		{
+			final double[] l = new double[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				l[ d ] = ( corner & ( 1 << d ) ) == 0 ? 0 : imgSize[ d ];
+
+			model.applyInPlace( l );
+
+			if ( corner > 0 )
+				placement.append( ';' );
+
+			placement.append( toString( l ) );
+		}
+
+		return placement.toString();
+	}
+
+	public static String getId( final ImageCollectionElement element )
+	{
+		return element.getFile().getAbsolutePath() + "#" + element.getIndex();
+	}
+
+	/**
+	 * @return - size and modification time of the file of the tile
+	 */
+	public static String getFingerprint( final ImageCollectionElement element )
+	{
+		return getFingerprint( element.getFile() );
+	}
+
+	public static String getId( final ImagePlus imp )
+	{
+		final File file = getFile( imp );
+
+		return file == null ? imp.getTitle() : file.getAbsolutePath();
+	}
+
+	/**
+	 * @return - size and modification time of the file the image was opened from, a hash of the pixels if it was not opened from a file
+	 */
+	public static String getFingerprint( final ImagePlus imp )
+	{
+		final File file = getFile( imp );
+
+		if ( file != null )
+			return getFingerprint( file );
+
+		final ImageStack stack = imp.getStack();
+		int hash = 0;
+
+		for ( int i = 1; i <= stack.getSize(); ++i )
+		{
+			final Object pixels = stack.getPixels( i );
+
+			if ( pixels instanceof byte[] )
+				hash = 31 * hash + Arrays.hashCode( (byte[])pixels );
+			else if ( pixels instanceof short[] )
+				hash = 31 * hash + Arrays.hashCode( (short[])pixels );
+			else if ( pixels instanceof float[] )
+				hash = 31 * hash + Arrays.hashCode( (float[])pixels );
+			else if ( pixels instanceof int[] )
+				hash = 31 * hash + Arrays.hashCode( (int[])pixels );
+		}
+
+		return imp.getWidth() + "x" + imp.getHeight() + "x" + stack.getSize() + "@" + Integer.toHexString( hash );
+	}
+
+	protected static String getFingerprint( final File file )
+	{
+		return file.length() + "@" + file.lastModified();
+	}
+
+	protected static File getFile( final ImagePlus imp )
+	{
+		final FileInfo fi = imp.getOriginalFileInfo();
+
+		if ( fi == null || fi.fileName == null || fi.directory == null )
+			return null;
+
+		final File file = new File( fi.directory, fi.fileName );
+
+		return file.exists() ? file : null;
+	}
+
+	protected static String toString( final int[] values )
+	{
+		final StringBuilder s = new StringBuilder();
+
+		for ( int i = 0; i < values.length; ++i )
+			s.append( i == 0 ? "" : "," ).append( values[ i ] );
+
+		return s.toString();
+	}
+
+	protected static String toString( final long[] values )
+	{
+		final StringBuilder s = new StringBuilder();
+
+		for ( int i = 0; i < values.length; ++i )
+			s.append( i == 0 ? "" : "," ).append( values[ i ] );
+
+		return s.toString();
+	}
+
+	protected static String toString( final double[] values )
+	{
+		final StringBuilder s = new StringBuilder();
+
+		for ( int i = 0; i < values.length; ++i )
+			s.append( i == 0 ? "" : "," ).append( values[ i ] );
+
+		return s.toString();
+	}
+}
@@ -3,9 +3,12 @@ package mpicbg.stitching.fusion;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealFloatConverter;
 import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 
 /**
@@ -17,20 +20,72 @@ import net.imglib2.view.Views;
  */
 public class ImageInterpolation< T extends RealType< T > > 
 {
-	final Img< T > image;
+	// the image data, not of type T if it is converted while interpolating
+	final Img< ? extends RealType< ? > > image;
 	final RealRandomAccessible< T > interpolated;
 	final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory;
 	
 	public ImageInterpolation( final Img< T > image, final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory, final boolean mirror )
+	{
+		this( image, mirror ? Views.extendMirrorSingle( image ) : Views.extendZero( image ), interpolatorFactory );
+	}
+
+	/**
+	 * @param image - the image data
+	 * @param extended - the image data as T, extended beyond the image boundaries
+	 */
+	protected ImageInterpolation( final Img< ? extends RealType< ? > > image, final RandomAccessible< T > extended, final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory )
 	{
 		this.image = image;
 		this.interpolatorFactory = interpolatorFactory;
-		if ( mirror )
-			this.interpolated = Views.interpolate( Views.extendMirrorSingle( image ), interpolatorFactory );
-		else
-			this.interpolated = Views.interpolate( Views.extendZero( image ), interpolatorFactory );
+		this.interpolated = Views.interpolate( extended, interpolatorFactory );
+	}
+
+	/**
+	 * Interpolates an image of any {@link RealType} as {@link FloatType} without copying it, each pixel
+	 * is converted when the interpolator reads it. {@link #getImg()} returns the image itself.
+	 */
+	public static < S extends RealType< S > > ImageInterpolation< FloatType > convertToFloat( final Img< S > image, final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactory, final boolean mirror )
+	{
+		final RandomAccessible< S > extended = mirror ? Views.extendMirrorSingle( image ) : Views.extendZero( image );
+
+		return new ImageInterpolation< FloatType >( image, Converters.convert( extended, new RealFloatConverter< S >(), new FloatType() ), interpolatorFactory );
+	}
+
+	/**
+	 * For subclasses that load the image on demand, they have to override all methods
+	 */
+	protected ImageInterpolation()
+	{
+		this.image = null;
+		this.interpolatorFactory = null;
+		this.interpolated = null;
 	}
 	
-	public Img< T > getImg() { return image; }
+	/**
+	 * @return - the image data, it is only of type T if it is not converted while interpolating
+	 */
+	public Img< ? extends RealType< ? > > getImg() { return image; }
 	public RealRandomAccess< T > createInterpolator() { return interpolated.realRandomAccess(); }
+
+	/**
+	 * @return - the {@link ImageInterpolation} holding the image data, which is this one unless the image is loaded on demand
+	 */
+	public ImageInterpolation< T > load() { return this; }
+
+	/**
+	 * Tells that the image will not be used anymore, images that are loaded on demand can be closed
+	 */
+	public void unload() {}
+
+	/**
+	 * @return - by how much the image data is shifted relative to the image, pixel i of the data is at position i + shift; null if not shifted, see {@link ShiftedImageInterpolation}
+	 */
+	public double[] getShift() { return null; }
+
+	/**
+	 * @return - the size of the image, does not require to load it
+	 */
+	public long dimension( final int d ) { return image.dimension( d ); }
+	public int numDimensions() { return image.numDimensions(); }
 }
@@ -1,6 +1,6 @@
 package mpicbg.stitching.fusion;
 
-public class MaxPixelFusion implements PixelFusion 
+public class MaxPixelFusion implements BatchPixelFusion 
 {
 	double max;
 	boolean set;
@@ -32,6 +32,53 @@ public class MaxPixelFusion implements PixelFusion
 	@Override
 	public double getValue() { return max; }
 
+	@Override
+	public void fuseRow( final float[][] values, final int[] images, final double[][] localStart, final int length, final float[] out )
+	{
+		if ( images.length == 0 )
+		{
+			for ( int i = 0; i < length; ++i )
+				out[ i ] = 0;
+
+			return;
+		}
+
+		System.arraycopy( values[ 0 ], 0, out, 0, length );
+
+		for ( int k = 1; k < images.length; ++k )
+		{
+			final float[] v = values[ k ];
+
+			for ( int i = 0; i < length; ++i )
+				out[ i ] = Math.max( v[ i ], out[ i ] );
+		}
+	}
+
+	/**
+	 * Same as {@link #fuseRow(float[][], int[], double[][], int, float[])}, but values of 0 are ignored
+	 */
+	protected void fuseRowIgnoreZero( final float[][] values, final int numImages, final int length, final float[] out )
+	{
+		for ( int i = 0; i < length; ++i )
+		{
+			float max = 0;
+			boolean set = false;
+
+			for ( int k = 0; k < numImages; ++k )
+			{
+				final float value = values[ k ][ i ];
+
+				if ( value != 0 )
+				{
+					max = set ? Math.max( value, max ) : value;
+					set = true;
+				}
+			}
+
+			out[ i ] = max;
+		}
+	}
+
 	@Override
 	public PixelFusion copy() { return new MaxPixelFusion(); }
 }
@@ -21,6 +21,12 @@ public class MaxPixelFusionIgnoreZero extends MaxPixelFusion
 		}
 	}
 
+	@Override
+	public void fuseRow( final float[][] values, final int[] images, final double[][] localStart, final int length, final float[] out )
+	{
+		fuseRowIgnoreZero( values, images.length, length, out );
+	}
+
 	@Override
 	public PixelFusion copy() { return new MaxPixelFusionIgnoreZero(); }
 }
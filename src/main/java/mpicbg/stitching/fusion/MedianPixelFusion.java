@@ -1,40 +1,179 @@
 package mpicbg.stitching.fusion;
 
-import java.util.ArrayList;
-import java.util.Collections;
-
-public class MedianPixelFusion implements PixelFusion
+/**
+ * Computes the median of all values of a pixel. The values are kept in a primitive array that
+ * only grows if more images overlap than expected, small counts are sorted by sorting networks,
+ * larger ones use quickselect. Nothing is allocated per pixel.
+ */
+public class MedianPixelFusion implements BatchPixelFusion
 {
-	final ArrayList< Double > list;
-	
-	public MedianPixelFusion() 
+	double[] values;
+	int size;
+
+	public MedianPixelFusion() { this( 8 ); }
+
+	/**
+	 * @param maxValues - how many images overlap at most, the array grows if there are more
+	 */
+	public MedianPixelFusion( final int maxValues )
 	{
-		list = new ArrayList< Double >();
-		clear(); 
+		values = new double[ Math.max( 1, maxValues ) ];
+		clear();
 	}
-	
+
 	@Override
-	public void clear() { list.clear();	}
+	public void clear() { size = 0; }
 
 	@Override
-	public void addValue( final double value, final int imageId, final double[] localPosition ) 
+	public void addValue( final double value, final int imageId, final double[] localPosition )
+	{
+		add( value );
+	}
+
+	protected void add( final double value )
 	{
-		list.add( value );
+		if ( size == values.length )
+		{
+			final double[] tmp = new double[ values.length * 2 ];
+			System.arraycopy( values, 0, tmp, 0, size );
+			values = tmp;
+		}
+
+		values[ size++ ] = value;
 	}
 
 	@Override
-	public double getValue() 
-	{ 
-		if ( list.size() == 0 )
-			return 0;
-		Collections.sort( list );
-		final int size = list.size();
-		
-		if ( size % 2 == 1 )
-			return list.get( size/2 );
-		return (list.get( size/2 - 1) + list.get( size/2 ))/2.0f ;
-	}
-	
+	public double getValue()
+	{
+		final double[] v = values;
+
+		switch ( size )
+		{
+			case 0:
+				return 0;
+			case 1:
+				return v[ 0 ];
+			case 2:
+				return ( v[ 0 ] + v[ 1 ] )/2.0f;
+			case 3:
+				swap( v, 0, 1 ); swap( v, 1, 2 ); swap( v, 0, 1 );
+				return v[ 1 ];
+			case 4:
+				swap( v, 0, 1 ); swap( v, 2, 3 ); swap( v, 0, 2 ); swap( v, 1, 3 ); swap( v, 1, 2 );
+				return ( v[ 1 ] + v[ 2 ] )/2.0f;
+			case 5:
+				swap( v, 0, 1 ); swap( v, 3, 4 ); swap( v, 2, 4 ); swap( v, 2, 3 ); swap( v, 0, 3 );
+				swap( v, 0, 2 ); swap( v, 1, 4 ); swap( v, 1, 3 ); swap( v, 1, 2 );
+				return v[ 2 ];
+			case 6:
+				swap( v, 1, 2 ); swap( v, 4, 5 ); swap( v, 0, 2 ); swap( v, 3, 5 ); swap( v, 0, 1 ); swap( v, 3, 4 );
+				swap( v, 2, 5 ); swap( v, 0, 3 ); swap( v, 1, 4 ); swap( v, 2, 4 ); swap( v, 1, 3 ); swap( v, 2, 3 );
+				return ( v[ 2 ] + v[ 3 ] )/2.0f;
+			default:
+				final int k = size/2;
+				final double upper = select( v, size, k );
+
+				if ( size % 2 == 1 )
+					return upper;
+
+				// the lower median is the largest value left of k
+				double lower = v[ 0 ];
+				for ( int i = 1; i < k; ++i )
+					lower = Math.max( lower, v[ i ] );
+
+				return ( lower + upper )/2.0f;
+		}
+	}
+
+	/**
+	 * Compare-and-swap, the element of a sorting network
+	 */
+	private static void swap( final double[] v, final int i, final int j )
+	{
+		if ( v[ i ] > v[ j ] )
+		{
+			final double tmp = v[ i ];
+			v[ i ] = v[ j ];
+			v[ j ] = tmp;
+		}
+	}
+
+	/**
+	 * Quickselect, afterwards all values left of k are smaller or equal and all right of it larger or equal
+	 *
+	 * @param v - the values
+	 * @param n - how many values
+	 * @param k - which position
+	 * @return - the k-th smallest value
+	 */
+	protected static double select( final double[] v, final int n, final int k )
+	{
+		int left = 0;
+		int right = n - 1;
+
+		while ( right > left )
+		{
+			// median of three as pivot
+			final int mid = ( left + right ) >>> 1;
+			swap( v, left, mid ); swap( v, mid, right ); swap( v, left, mid );
+			final double pivot = v[ mid ];
+
+			int i = left;
+			int j = right;
+
+			while ( i <= j )
+			{
+				while ( v[ i ] < pivot ) ++i;
+				while ( v[ j ] > pivot ) --j;
+
+				if ( i <= j )
+				{
+					final double tmp = v[ i ];
+					v[ i++ ] = v[ j ];
+					v[ j-- ] = tmp;
+				}
+			}
+
+			if ( k <= j )
+				right = j;
+			else if ( k >= i )
+				left = i;
+			else
+				break;
+		}
+
+		return v[ k ];
+	}
+
+	@Override
+	public void fuseRow( final float[][] values, final int[] images, final double[][] localStart, final int length, final float[] out )
+	{
+		fuseRow( values, images.length, length, out, false );
+	}
+
+	/**
+	 * Fuses every pixel of the row by {@link #getValue()}
+	 *
+	 * @param ignoreZero - if values of 0 are ignored
+	 */
+	protected void fuseRow( final float[][] values, final int numImages, final int length, final float[] out, final boolean ignoreZero )
+	{
+		for ( int i = 0; i < length; ++i )
+		{
+			size = 0;
+
+			for ( int k = 0; k < numImages; ++k )
+			{
+				final float value = values[ k ][ i ];
+
+				if ( !ignoreZero || value != 0 )
+					add( value );
+			}
+
+			out[ i ] = (float)getValue();
+		}
+	}
+
 	@Override
-	public PixelFusion copy() { return new MedianPixelFusion(); }
+	public PixelFusion copy() { return new MedianPixelFusion( values.length ); }
 }
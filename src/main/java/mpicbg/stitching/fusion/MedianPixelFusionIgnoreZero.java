@@ -4,14 +4,22 @@ package mpicbg.stitching.fusion;
 public class MedianPixelFusionIgnoreZero extends MedianPixelFusion
 {
 	public MedianPixelFusionIgnoreZero() { super(); }
-	
+
+	public MedianPixelFusionIgnoreZero( final int maxValues ) { super( maxValues ); }
+
 	@Override
-	public void addValue( final double value, final int imageId, final double[] localPosition ) 
+	public void addValue( final double value, final int imageId, final double[] localPosition )
 	{
 		if ( value != 0.0 )
-			list.add( value );
+			add( value );
+	}
+
+	@Override
+	public void fuseRow( final float[][] values, final int[] images, final double[][] localStart, final int length, final float[] out )
+	{
+		fuseRow( values, images.length, length, out, true );
 	}
 
 	@Override
-	public PixelFusion copy() { return new MedianPixelFusionIgnoreZero(); }
+	public PixelFusion copy() { return new MedianPixelFusionIgnoreZero( values.length ); }
 }
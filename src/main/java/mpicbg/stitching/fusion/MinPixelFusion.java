@@ -1,6 +1,6 @@
 package mpicbg.stitching.fusion;
 
-public class MinPixelFusion implements PixelFusion 
+public class MinPixelFusion implements BatchPixelFusion 
 {
 	double min;
 	boolean set;
@@ -31,6 +31,53 @@ public class MinPixelFusion implements PixelFusion
 	@Override
 	public double getValue() { return min; }
 
+	@Override
+	public void fuseRow( final float[][] values, final int[] images, final double[][] localStart, final int length, final float[] out )
+	{
+		if ( images.length == 0 )
+		{
+			for ( int i = 0; i < length; ++i )
+				out[ i ] = 0;
+
+			return;
+		}
+
+		System.arraycopy( values[ 0 ], 0, out, 0, length );
+
+		for ( int k = 1; k < images.length; ++k )
+		{
+			final float[] v = values[ k ];
+
+			for ( int i = 0; i < length; ++i )
+				out[ i ] = Math.min( v[ i ], out[ i ] );
+		}
+	}
+
+	/**
+	 * Same as {@link #fuseRow(float[][], int[], double[][], int, float[])}, but values of 0 are ignored
+	 */
+	protected void fuseRowIgnoreZero( final float[][] values, final int numImages, final int length, final float[] out )
+	{
+		for ( int i = 0; i < length; ++i )
+		{
+			float min = 0;
+			boolean set = false;
+
+			for ( int k = 0; k < numImages; ++k )
+			{
+				final float value = values[ k ][ i ];
+
+				if ( value != 0 )
+				{
+					min = set ? Math.min( value, min ) : value;
+					set = true;
+				}
+			}
+
+			out[ i ] = min;
+		}
+	}
+
 	@Override
 	public PixelFusion copy() { return new MinPixelFusion(); }
 }
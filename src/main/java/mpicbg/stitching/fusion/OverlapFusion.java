@@ -8,7 +8,7 @@ package mpicbg.stitching.fusion;
  * @author Ignacio Arganda Carreras (iarganda at mit.edu)
  *
  */
-public class OverlapFusion implements PixelFusion {
+public class OverlapFusion implements BatchPixelFusion {
 
 	double lastValue;
 	
@@ -29,6 +29,20 @@ public class OverlapFusion implements PixelFusion {
 		return lastValue;
 	}
 
+	@Override
+	public void fuseRow(float[][] values, int[] images, double[][] localStart,
+		int length, float[] out)
+	{
+		// the last image wins
+		if (images.length == 0) {
+			for (int i = 0; i < length; ++i)
+				out[i] = 0;
+		}
+		else {
+			System.arraycopy(values[images.length - 1], 0, out, 0, length);
+		}
+	}
+
 	@Override
 	public PixelFusion copy() {		
 		return new OverlapFusion();
@@ -0,0 +1,308 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.models.Boundable;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.InvertibleCoordinateTransform;
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+import net.imglib2.multithreading.SimpleMultiThreading;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import stitching.utils.Log;
+
+/**
+ * Fuses the images at 1/2^level of their resolution to quickly check a registration. Every input
+ * image is reduced first, either by averaging boxes of 2^level x 2^level pixels or by taking every
+ * 2^level-th pixel, in 3d only every 2^level-th plane is read. The models are scaled accordingly so
+ * that the result is the full resolution fusion scaled down by 2^level, and fused as usual by
+ * {@link Fusion#fuse(RealType, ArrayList, ArrayList, int, boolean, int, String, boolean, boolean, boolean)}.
+ */
+public class PreviewFusion
+{
+	/**
+	 * The default level, the preview has 1/2^level of the resolution
+	 */
+	public static int defaultLevel = 3;
+
+	/**
+	 * If the pixels are averaged (otherwise every 2^level-th pixel is taken, which is faster but noisier)
+	 */
+	public static boolean defaultAverage = true;
+
+	/**
+	 * Fuses all channels and timepoints at a lower resolution, see {@link Fusion#fuse(RealType, ArrayList, ArrayList, int, boolean, int, String, boolean, boolean, boolean)}
+	 * for the other parameters.
+	 *
+	 * @param level - the preview has 1/2^level of the resolution in every dimension, 0 is the full resolution
+	 * @param average - if boxes of pixels are averaged in x and y, otherwise every 2^level-th pixel is taken
+	 * @return - the fused preview, pixel 0 is at {@link Fusion#estimateBounds(double[], int[], int[][], ArrayList, int)} / 2^level
+	 */
+	public static < T extends RealType< T > & NativeType< T > > ImagePlus fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models,
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final boolean displayImages, final int level, final boolean average )
+	{
+		int scale = 1 << Math.max( 0, level );
+
+		// every image should keep at least one pixel in x and y
+		for ( final ImagePlus imp : images )
+			while ( scale > 1 && ( imp.getWidth() < scale || imp.getHeight() < scale ) )
+				scale /= 2;
+
+		if ( scale < 1 << Math.max( 0, level ) )
+			Log.info( "Images are too small for a preview at level " + level + ", using 1/" + scale + " of the resolution." );
+
+		final ArrayList< ImagePlus > previews = downsample( images, scale, dimensionality == 3, average );
+		final ArrayList< InvertibleBoundable > scaledModels = new ArrayList< InvertibleBoundable >();
+
+		// the center of a box of pixels in the input image
+		final double[] center = new double[ dimensionality ];
+
+		if ( average )
+			center[ 0 ] = center[ 1 ] = ( scale - 1 ) / 2.0;
+
+		for ( final InvertibleBoundable model : models )
+			scaledModels.add( scaleModel( model, scale, center ) );
+
+		final ImagePlus result = Fusion.fuse( targetType, previews, scaledModels, dimensionality, subpixelResolution, fusionType, null, false, ignoreZeroValues, displayImages );
+
+		if ( result != null )
+		{
+			final Calibration cal = images.get( 0 ).getCalibration().copy();
+			cal.pixelWidth *= scale;
+			cal.pixelHeight *= scale;
+
+			if ( dimensionality == 3 )
+				cal.pixelDepth *= scale;
+
+			result.setCalibration( cal );
+		}
+
+		return result;
+	}
+
+	/**
+	 * Reduces all images in parallel with at most one thread per processor, see {@link #downsample(ImagePlus, int, boolean, boolean)}.
+	 */
+	public static ArrayList< ImagePlus > downsample( final ArrayList< ImagePlus > images, final int scale, final boolean reduceZ, final boolean average )
+	{
+		final ImagePlus[] previews = new ImagePlus[ images.size() ];
+		final AtomicInteger ai = new AtomicInteger( 0 );
+
+		// the threads share the images, a grid can have hundreds of them
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( images.size(), Runtime.getRuntime().availableProcessors() ) ) );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for ( int i = ai.getAndIncrement(); i < previews.length; i = ai.getAndIncrement() )
+						previews[ i ] = downsample( images.get( i ), scale, reduceZ, average );
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		final ArrayList< ImagePlus > list = new ArrayList< ImagePlus >();
+
+		for ( final ImagePlus imp : previews )
+			list.add( imp );
+
+		return list;
+	}
+
+	/**
+	 * Reduces an image (all channels and timepoints) by a factor in x and y, and optionally z. Only the
+	 * planes that are kept are read, so virtual stacks load 1/scale of their planes.
+	 *
+	 * @param imp - the image
+	 * @param scale - the factor
+	 * @param reduceZ - if only every scale-th plane is kept
+	 * @param average - if boxes of scale x scale pixels are averaged, otherwise pixel i of the result is pixel i * scale of the image
+	 * @return - the reduced image with the same number of channels and timepoints
+	 */
+	public static ImagePlus downsample( final ImagePlus imp, final int scale, final boolean reduceZ, final boolean average )
+	{
+		final int numChannels = imp.getNChannels();
+		final int numSlices = imp.getNSlices();
+		final int numTimePoints = imp.getNFrames();
+		final int zStep = reduceZ ? scale : 1;
+		final int newSlices = ( numSlices + zStep - 1 ) / zStep;
+
+		final int width, height;
+
+		if ( average )
+		{
+			width = imp.getWidth() / scale;
+			height = imp.getHeight() / scale;
+		}
+		else
+		{
+			width = ( imp.getWidth() + scale - 1 ) / scale;
+			height = ( imp.getHeight() + scale - 1 ) / scale;
+		}
+
+		final ImageStack in = imp.getStack();
+		final ImageStack out = new ImageStack( width, height );
+
+		// same order as in the hyperstack, channels first
+		for ( int t = 1; t <= numTimePoints; ++t )
+			for ( int z = 1; z <= numSlices; z += zStep )
+				for ( int c = 1; c <= numChannels; ++c )
+				{
+					final ImageProcessor ip = in.getProcessor( imp.getStackIndex( c, z, t ) );
+
+					if ( scale == 1 )
+						out.addSlice( "", ip );
+					else if ( average )
+						out.addSlice( "", ip.bin( scale ) );
+					else
+						out.addSlice( "", sample( ip, scale, width, height ) );
+				}
+
+		final ImagePlus preview = new ImagePlus( imp.getTitle(), out );
+		preview.setDimensions( numChannels, newSlices, numTimePoints );
+
+		if ( numChannels * newSlices * numTimePoints > 1 )
+			preview.setOpenAsHyperStack( true );
+
+		return preview;
+	}
+
+	/**
+	 * @return - every scale-th pixel of ip, the raw pixel values are copied
+	 */
+	protected static ImageProcessor sample( final ImageProcessor ip, final int scale, final int width, final int height )
+	{
+		final ImageProcessor out = ip.createProcessor( width, height );
+
+		for ( int y = 0; y < height; ++y )
+			for ( int x = 0; x < width; ++x )
+				out.set( x, y, ip.get( x * scale, y * scale ) );
+
+		return out;
+	}
+
+	/**
+	 * Scales a model so that it maps a reduced image into the reduced output. Translations stay
+	 * translations so that the fusion can still use its fast paths.
+	 *
+	 * @param model - the model of the full resolution image
+	 * @param scale - the factor all images and the output are reduced by
+	 * @param center - where pixel 0 of the reduced image is in the full resolution image
+	 */
+	public static InvertibleBoundable scaleModel( final InvertibleBoundable model, final int scale, final double[] center )
+	{
+		if ( model instanceof TranslationModel2D && center.length == 2 )
+		{
+			final double[] t = ( (TranslationModel2D)model ).getTranslation();
+			final TranslationModel2D scaled = new TranslationModel2D();
+			scaled.set( ( t[ 0 ] + center[ 0 ] ) / scale, ( t[ 1 ] + center[ 1 ] ) / scale );
+
+			return scaled;
+		}
+		else if ( model instanceof TranslationModel3D && center.length == 3 )
+		{
+			final double[] t = ( (TranslationModel3D)model ).getTranslation();
+			final TranslationModel3D scaled = new TranslationModel3D();
+			scaled.set( ( t[ 0 ] + center[ 0 ] ) / scale, ( t[ 1 ] + center[ 1 ] ) / scale, ( t[ 2 ] + center[ 2 ] ) / scale );
+
+			return scaled;
+		}
+
+		return new ScaledModel( model, scale, center, new double[ center.length ] );
+	}
+
+	/**
+	 * Any model in reduced coordinates: x -> ( model( x * scale + centerIn ) - centerOut ) / scale
+	 */
+	public static class ScaledModel implements InvertibleBoundable
+	{
+		final InvertibleCoordinateTransform model;
+		final double scale;
+		final double[] centerIn, centerOut;
+
+		public ScaledModel( final InvertibleCoordinateTransform model, final double scale, final double[] centerIn, final double[] centerOut )
+		{
+			this.model = model;
+			this.scale = scale;
+			this.centerIn = centerIn.clone();
+			this.centerOut = centerOut.clone();
+		}
+
+		@Override
+		public double[] apply( final double[] location )
+		{
+			final double[] l = location.clone();
+			applyInPlace( l );
+
+			return l;
+		}
+
+		@Override
+		public void applyInPlace( final double[] location )
+		{
+			for ( int d = 0; d < location.length; ++d )
+				location[ d ] = location[ d ] * scale + centerIn[ d ];
+
+			model.applyInPlace( location );
+
+			for ( int d = 0; d < location.length; ++d )
+				location[ d ] = ( location[ d ] - centerOut[ d ] ) / scale;
+		}
+
+		@Override
+		public double[] applyInverse( final double[] location ) throws NoninvertibleModelException
+		{
+			final double[] l = location.clone();
+			applyInverseInPlace( l );
+
+			return l;
+		}
+
+		@Override
+		public void applyInverseInPlace( final double[] location ) throws NoninvertibleModelException
+		{
+			for ( int d = 0; d < location.length; ++d )
+				location[ d ] = location[ d ] * scale + centerOut[ d ];
+
+			model.applyInverseInPlace( location );
+
+			for ( int d = 0; d < location.length; ++d )
+				location[ d ] = ( location[ d ] - centerIn[ d ] ) / scale;
+		}
+
+		@Override
+		public ScaledModel createInverse()
+		{
+			return new ScaledModel( model.createInverse(), scale, centerOut, centerIn );
+		}
+
+		@Override
+		public void estimateBounds( final double[] min, final double[] max )
+		{
+			for ( int d = 0; d < min.length; ++d )
+			{
+				min[ d ] = min[ d ] * scale + centerIn[ d ];
+				max[ d ] = max[ d ] * scale + centerIn[ d ];
+			}
+
+			( (Boundable)model ).estimateBounds( min, max );
+
+			for ( int d = 0; d < min.length; ++d )
+			{
+				min[ d ] = ( min[ d ] - centerOut[ d ] ) / scale;
+				max[ d ] = ( max[ d ] - centerOut[ d ] ) / scale;
+			}
+		}
+	}
+}
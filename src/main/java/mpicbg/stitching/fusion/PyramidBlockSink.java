@@ -0,0 +1,408 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+
+import mpicbg.stitching.TextFileAccess;
+import net.imglib2.exception.ImgLibException;
+import net.imglib2.img.Img;
+import net.imglib2.img.imageplus.ImagePlusImg;
+import net.imglib2.type.numeric.RealType;
+import stitching.utils.Log;
+
+/**
+ * Writes a multi-resolution pyramid in the DeepZoom (DZI) layout while the {@link BlockFusion}
+ * streams out the blocks of a 2d fusion. The blocks are the tiles of the full resolution level,
+ * every tile is downsampled by 2 into its parent tile of the next level, and a parent is written
+ * (and downsampled further) as soon as all of its children arrived. Since the blocks arrive in
+ * row-major order only about one row of tiles per level is kept in memory, the full resolution
+ * image is never assembled.
+ *
+ * The output for every channel/timepoint is a descriptor <name>_t?_c?.dzi and the tiles
+ * <name>_t?_c?_files/<level>/<column>_<row>.<format>, level 0 is a single pixel. Tiles written as
+ * png or jpg are 8-bit, 16-bit and 32-bit tiles are converted with one display range for the
+ * whole image (see {@link #setDisplayRange(double, double)}) so that the contrast does not
+ * change from tile to tile.
+ *
+ * @param <T>
+ */
+public class PyramidBlockSink< T extends RealType< T > > implements BlockSink< T >
+{
+	/**
+	 * The tile size for the pyramid, should be used as block size for the {@link BlockFusion}
+	 */
+	public static int defaultTileSize = 256;
+
+	/**
+	 * The file format of the tiles (png, jpg or tif)
+	 */
+	public static String defaultFormat = "png";
+
+	final String outputDirectory, name, format;
+	final int tileSize;
+
+	// the range mapped to 0...255 for png and jpg, NaN until it is known
+	double displayMin = Double.NaN, displayMax = Double.NaN;
+
+	// the state of the current channel/timepoint
+	String baseName;
+	int width, height, maxLevel;
+	boolean valid;
+
+	// the tiles of the lower resolution levels which are still missing children
+	final HashMap< String, Tile > openTiles = new HashMap< String, Tile >();
+
+	public PyramidBlockSink( final String outputDirectory, final String name )
+	{
+		this( outputDirectory, name, defaultFormat );
+	}
+
+	/**
+	 * @param displayRange - the intensities mapped to 0 and 255 for 16-bit and 32-bit images, see {@link #getDisplayRange(List)}
+	 */
+	public PyramidBlockSink( final String outputDirectory, final String name, final double[] displayRange )
+	{
+		this( outputDirectory, name, defaultFormat );
+		setDisplayRange( displayRange[ 0 ], displayRange[ 1 ] );
+	}
+
+	public PyramidBlockSink( final String outputDirectory, final String name, final String format )
+	{
+		this( outputDirectory, name, format, defaultTileSize );
+	}
+
+	/**
+	 * @param tileSize - the size of the square tiles, it has to be even and the {@link BlockFusion} has to use it as block size
+	 */
+	public PyramidBlockSink( final String outputDirectory, final String name, final String format, final int tileSize )
+	{
+		this.outputDirectory = outputDirectory;
+		this.name = name;
+		this.format = format;
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * @return - the block size to use for the {@link BlockFusion} so that blocks are pyramid tiles
+	 */
+	public static int[] getBlockSize() { return new int[] { defaultTileSize, defaultTileSize }; }
+
+	/**
+	 * Sets the intensities that are mapped to 0 and 255 for png and jpg tiles of 16-bit and 32-bit images.
+	 * If it is not set, the range of the first tile that is written is used for all tiles.
+	 */
+	public synchronized void setDisplayRange( final double min, final double max )
+	{
+		this.displayMin = min;
+		this.displayMax = max;
+	}
+
+	/**
+	 * @return - the smallest minimum and largest maximum of the display ranges of the images, e.g. to
+	 * show the fused image like the input images with {@link #setDisplayRange(double, double)}
+	 */
+	public static double[] getDisplayRange( final List< ImagePlus > images )
+	{
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+
+		for ( final ImagePlus imp : images )
+		{
+			min = Math.min( min, imp.getDisplayRangeMin() );
+			max = Math.max( max, imp.getDisplayRangeMax() );
+		}
+
+		return new double[] { min, max };
+	}
+
+	@Override
+	public synchronized void begin( final int t, final int c, final int[] size, final int[] blockSize )
+	{
+		openTiles.clear();
+		valid = false;
+
+		if ( size.length != 2 )
+		{
+			Log.error( "A pyramid can only be written for 2d images, nothing is written." );
+			return;
+		}
+
+		if ( tileSize < 2 || tileSize % 2 != 0 )
+		{
+			Log.error( "The tiles of a pyramid need an even size, not " + tileSize + ", nothing is written." );
+			return;
+		}
+
+		// the fusion makes blocks smaller than the tiles if the image is smaller
+		for ( int d = 0; d < 2; ++d )
+			if ( blockSize[ d ] != tileSize && !( size[ d ] <= tileSize && blockSize[ d ] >= size[ d ] ) )
+			{
+				Log.error( "The blocks (" + blockSize[ 0 ] + "x" + blockSize[ 1 ] + ") are not the tiles of the pyramid (" +
+						tileSize + "x" + tileSize + "), nothing is written." );
+				return;
+			}
+
+		this.baseName = name + "_t" + t + "_c" + c;
+		this.width = size[ 0 ];
+		this.height = size[ 1 ];
+		this.valid = true;
+
+		// the full resolution level, level 0 is one pixel
+		maxLevel = 0;
+		while ( ( 1l << maxLevel ) < Math.max( width, height ) )
+			++maxLevel;
+
+		writeDescriptor();
+	}
+
+	@Override
+	public void add( final int t, final int c, final long[] min, final Img< T > block )
+	{
+		if ( !valid )
+			return;
+
+		final ImageProcessor ip;
+
+		try
+		{
+			ip = ((ImagePlusImg<?,?>)block).getImagePlus().getProcessor();
+		}
+		catch ( ImgLibException e )
+		{
+			Log.error( "Output image has no ImageJ type: " + e );
+			return;
+		}
+
+		final int col = (int)( min[ 0 ] / tileSize );
+		final int row = (int)( min[ 1 ] / tileSize );
+
+		write( ip, 0, col, row );
+
+		if ( maxLevel > 0 )
+			addToParent( new Tile( (float[])ip.convertToFloat().getPixels(), ip.getWidth(), ip.getHeight(), ip.getBitDepth(), 1 ), 0, col, row );
+	}
+
+	@Override
+	public synchronized void end( final int t, final int c )
+	{
+		if ( valid && openTiles.size() > 0 )
+			Log.error( "Pyramid for " + baseName + " is incomplete, " + openTiles.size() + " tiles are missing children." );
+
+		openTiles.clear();
+	}
+
+	/**
+	 * Downsamples a tile into its parent, if the parent is complete it is written and
+	 * downsampled into its own parent.
+	 *
+	 * @param tile - the tile
+	 * @param level - how often the tile is downsampled already (0 == full resolution)
+	 * @param col - the column of the tile
+	 * @param row - the row of the tile
+	 */
+	protected void addToParent( Tile tile, int level, int col, int row )
+	{
+		while ( getWidth( level ) > 1 || getHeight( level ) > 1 )
+		{
+			final Tile parent;
+
+			synchronized ( this )
+			{
+				final int parentLevel = level + 1;
+				final int parentCol = col / 2;
+				final int parentRow = row / 2;
+				final String key = parentLevel + "_" + parentCol + "_" + parentRow;
+
+				Tile p = openTiles.get( key );
+
+				if ( p == null )
+				{
+					final int w = Math.min( tileSize, getWidth( parentLevel ) - parentCol * tileSize );
+					final int h = Math.min( tileSize, getHeight( parentLevel ) - parentRow * tileSize );
+					final int expected =
+							Math.min( 2, getNumTiles( getWidth( level ) ) - parentCol * 2 ) *
+							Math.min( 2, getNumTiles( getHeight( level ) ) - parentRow * 2 );
+
+					p = new Tile( new float[ w * h ], w, h, tile.bitDepth, expected );
+					openTiles.put( key, p );
+				}
+
+				p.addDownsampled( tile, ( col % 2 ) * tileSize / 2, ( row % 2 ) * tileSize / 2 );
+
+				if ( --p.missing == 0 )
+				{
+					openTiles.remove( key );
+					parent = p;
+				}
+				else
+				{
+					parent = null;
+				}
+			}
+
+			// the parent still misses children
+			if ( parent == null )
+				return;
+
+			tile = parent;
+			++level;
+			col /= 2;
+			row /= 2;
+
+			write( tile.getProcessor(), level, col, row );
+		}
+	}
+
+	/**
+	 * Writes one tile
+	 *
+	 * @param ip - the tile
+	 * @param level - how often it was downsampled (0 == full resolution)
+	 */
+	protected void write( final ImageProcessor ip, final int level, final int col, final int row )
+	{
+		final File dir = new File( new File( outputDirectory, baseName + "_files" ), "" + ( maxLevel - level ) );
+
+		if ( !dir.exists() && !dir.mkdirs() && !dir.exists() )
+		{
+			Log.error( "Cannot create directory '" + dir + "'" );
+			return;
+		}
+
+		final String file = new File( dir, col + "_" + row + "." + format ).getAbsolutePath();
+		final FileSaver fs = new FileSaver( new ImagePlus( "", format.equals( "tif" ) ? ip : toByte( ip ) ) );
+		final boolean success;
+
+		if ( format.equals( "jpg" ) )
+			success = fs.saveAsJpeg( file );
+		else if ( format.equals( "tif" ) )
+			success = fs.saveAsTiff( file );
+		else
+			success = fs.saveAsPng( file );
+
+		if ( !success )
+			Log.error( "Could not write '" + file + "'" );
+	}
+
+	/**
+	 * Converts a 16-bit or 32-bit tile to 8-bit with the display range of the whole image, png and jpg
+	 * would otherwise scale every tile by its own minimum and maximum.
+	 */
+	protected ImageProcessor toByte( final ImageProcessor ip )
+	{
+		if ( ip.getBitDepth() == 8 )
+			return ip;
+
+		final double min, max;
+
+		synchronized ( this )
+		{
+			if ( Double.isNaN( displayMin ) || Double.isNaN( displayMax ) )
+			{
+				ip.resetMinAndMax();
+				displayMin = ip.getMin();
+				displayMax = ip.getMax();
+			}
+
+			min = displayMin;
+			max = displayMax;
+		}
+
+		// the blocks and tiles are not used anymore once they are written
+		ip.setMinAndMax( min, max );
+
+		return ip.convertToByte( true );
+	}
+
+	protected void writeDescriptor()
+	{
+		final PrintWriter out = TextFileAccess.openFileWrite( new File( outputDirectory, baseName + ".dzi" ) );
+
+		if ( out == null )
+			return;
+
+		out.println( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" );
+		out.println( "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"" + format + "\" Overlap=\"0\" TileSize=\"" + tileSize + "\">" );
+		out.println( "  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>" );
+		out.println( "</Image>" );
+		out.close();
+	}
+
+	/**
+	 * @return - the width of the image downsampled level times
+	 */
+	protected int getWidth( final int level ) { return (int)( ( width + ( 1l << level ) - 1 ) >> level ); }
+
+	/**
+	 * @return - the height of the image downsampled level times
+	 */
+	protected int getHeight( final int level ) { return (int)( ( height + ( 1l << level ) - 1 ) >> level ); }
+
+	protected int getNumTiles( final int size ) { return ( size + tileSize - 1 ) / tileSize; }
+
+	/**
+	 * A tile of a lower resolution level
+	 */
+	static class Tile
+	{
+		final float[] pixels;
+		final int width, height, bitDepth;
+		int missing;
+
+		Tile( final float[] pixels, final int width, final int height, final int bitDepth, final int missing )
+		{
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+			this.bitDepth = bitDepth;
+			this.missing = missing;
+		}
+
+		/**
+		 * Averages 2x2 pixels of a child tile into this tile
+		 */
+		void addDownsampled( final Tile child, final int offsetX, final int offsetY )
+		{
+			final int w = ( child.width + 1 ) / 2;
+			final int h = ( child.height + 1 ) / 2;
+
+			for ( int y = 0; y < h; ++y )
+			{
+				final int y0 = y * 2;
+				final int y1 = Math.min( y0 + 1, child.height - 1 );
+
+				for ( int x = 0; x < w; ++x )
+				{
+					final int x0 = x * 2;
+					final int x1 = Math.min( x0 + 1, child.width - 1 );
+
+					pixels[ ( y + offsetY ) * width + x + offsetX ] =
+							( child.pixels[ y0 * child.width + x0 ] + child.pixels[ y0 * child.width + x1 ] +
+							  child.pixels[ y1 * child.width + x0 ] + child.pixels[ y1 * child.width + x1 ] ) / 4;
+				}
+			}
+		}
+
+		/**
+		 * @return - the tile with the bit depth of the fused image
+		 */
+		ImageProcessor getProcessor()
+		{
+			final FloatProcessor fp = new FloatProcessor( width, height, pixels, null );
+
+			if ( bitDepth == 8 )
+				return fp.convertToByte( false );
+			else if ( bitDepth == 16 )
+				return fp.convertToShort( false );
+			else
+				return fp;
+		}
+	}
+}
@@ -0,0 +1,616 @@
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+import net.imglib2.RandomAccess;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+
+/**
+ * Holds everything one thread needs to fuse {@link ClassifiedRegion}s into an
+ * output image: its own interpolator for every input image, its own copy of
+ * the {@link PixelFusion} and the temporary position arrays. Instances are
+ * not thread-safe, create one per thread.
+ *
+ * If all images of a region are placed by a {@link TranslationModel2D} or
+ * {@link TranslationModel3D} the input positions are not computed per pixel,
+ * instead the interpolators are positioned once per line and then moved along
+ * with the output. Regions covered by a single translated image are not fused
+ * at all but copied line by line if the output image is known, see
+ * {@link #fuse(ClassifiedRegion, RandomAccess, Img, long[], int)}.
+ *
+ * The interpolators are only created once a region needs the image, so images that
+ * are loaded on demand (see {@link TileCache}) are not loaded before they are used.
+ * Call {@link #release()} when the images used so far are not needed anymore.
+ *
+ * Images that are resampled at a subpixel shift ({@link ShiftedImageInterpolation}) are read
+ * at the position minus the shift, the {@link PixelFusion} still gets the position in the image.
+ *
+ * Translated regions are fused row by row along the first dimension through a {@link BatchPixelFusion}
+ * if {@link #fuseRows} is set: the values of every image are read into a row first, then the whole
+ * row is fused at once. Other {@link PixelFusion}s are wrapped by a {@link BatchPixelFusionAdapter}.
+ */
+public class RegionFuser< T extends RealType< T > >
+{
+	/**
+	 * If translated regions are fused row by row, otherwise pixel by pixel
+	 */
+	public static boolean fuseRows = true;
+
+	final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input;
+	final ArrayList< InvertibleBoundable > transform;
+	final double[] offset;
+	final PixelFusion fusion;
+	final BatchPixelFusion batchFusion;
+
+	// the loaded input images and their interpolators, null until needed
+	final ArrayList< ImageInterpolation< ? extends RealType< ? > > > loaded;
+	final ArrayList< RealRandomAccess< ? extends RealType< ? > > > in;
+	final double[][] inPos;
+
+	// the translation of each image, null if it is not a pure translation
+	final double[][] translation;
+
+	// the subpixel shift of the image data, null if it is not shifted
+	final double[][] shift;
+	final double[] dataPos;
+
+	// if a region covered by one image can be copied instead of fused
+	final boolean copySingleImages;
+
+	// temporary arrays for copying
+	final long[] srcMin, srcMax, srcPos;
+
+	// the rows of the row by row fusion, grown as needed
+	float[][] rowValues;
+	double[][] rowStart;
+	float[] rowOut = new float[ 0 ];
+
+	// number of output pixels fused by this instance
+	long count = 0;
+
+	public RegionFuser( final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final ArrayList< InvertibleBoundable > transform,
+			final double[] offset, final PixelFusion fusion )
+	{
+		this.input = input;
+		this.transform = transform;
+		this.offset = offset;
+		this.fusion = fusion.copy();
+		this.batchFusion = BatchPixelFusionAdapter.wrap( this.fusion );
+
+		this.loaded = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
+		this.in = new ArrayList< RealRandomAccess< ? extends RealType< ? > > >();
+
+		for ( int i = 0; i < input.size(); ++i )
+		{
+			loaded.add( null );
+			in.add( null );
+		}
+
+		this.inPos = new double[ input.size() ][ offset.length ];
+		this.translation = new double[ input.size() ][];
+
+		this.shift = new double[ input.size() ][];
+		this.dataPos = new double[ offset.length ];
+
+		for ( int i = 0; i < input.size(); ++i )
+		{
+			translation[ i ] = getTranslation( transform.get( i ), offset.length );
+			shift[ i ] = input.get( i ).getShift();
+		}
+
+		this.copySingleImages = returnsSingleValue( fusion );
+		this.srcMin = new long[ offset.length ];
+		this.srcMax = new long[ offset.length ];
+		this.srcPos = new long[ offset.length ];
+
+		this.rowValues = new float[ input.size() ][ 0 ];
+		this.rowStart = new double[ input.size() ][ offset.length ];
+	}
+
+	/**
+	 * @return - true if the {@link PixelFusion} returns the value itself if there is only one value
+	 */
+	public static boolean returnsSingleValue( final PixelFusion fusion )
+	{
+		return fusion instanceof AveragePixelFusion || fusion instanceof BlendingPixelFusion ||
+				fusion instanceof MedianPixelFusion || fusion instanceof MaxPixelFusion || fusion instanceof MinPixelFusion || fusion instanceof OverlapFusion;
+	}
+
+	/**
+	 * @return - the translation of the model, or null if it is not a {@link TranslationModel2D}/{@link TranslationModel3D} of the given dimensionality
+	 */
+	public static double[] getTranslation( final InvertibleBoundable model, final int numDimensions )
+	{
+		final double[] t;
+
+		if ( model instanceof TranslationModel2D )
+			t = ((TranslationModel2D)model).getTranslation();
+		else if ( model instanceof TranslationModel3D )
+			t = ((TranslationModel3D)model).getTranslation();
+		else
+			return null;
+
+		if ( t.length != numDimensions )
+			return null;
+
+		return t.clone();
+	}
+
+	/**
+	 * @return - true if all images of the region are placed by a translation only
+	 */
+	public boolean isTranslation( final ClassifiedRegion r )
+	{
+		for ( final int image : r.classArray() )
+			if ( translation[ image ] == null )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Forgets all loaded images and their interpolators, they are loaded again if a later region needs them.
+	 */
+	public void release()
+	{
+		for ( int i = 0; i < input.size(); ++i )
+		{
+			loaded.set( i, null );
+			in.set( i, null );
+		}
+	}
+
+	/**
+	 * Loads the images of a region and creates their interpolators if not done yet.
+	 */
+	protected void load( final ClassifiedRegion r )
+	{
+		for ( final int image : r.classArray() )
+		{
+			if ( in.get( image ) == null )
+			{
+				final ImageInterpolation< ? extends RealType< ? > > data = input.get( image ).load();
+
+				loaded.set( image, data );
+				in.set( image, data.createInterpolator() );
+			}
+		}
+	}
+
+	/**
+	 * @return - how many output pixels have been fused so far
+	 */
+	public long getCount() { return count; }
+
+	/**
+	 * Fuses all positions of a {@link ClassifiedRegion} into the output. If the output has
+	 * fewer dimensions than the region (e.g. one z-slice of a 3d region), the remaining
+	 * dimension is pinned to the given slice.
+	 *
+	 * @param r - the region, in output coordinates
+	 * @param out - the output, positioned in the same coordinates as the region
+	 * @param slice - the z-slice if the output is just a slice, ignored otherwise
+	 */
+	public void fuse( final ClassifiedRegion r, final RandomAccess< T > out, final int slice ) throws NoninvertibleModelException
+	{
+		fuse( r, out, null, null, slice );
+	}
+
+	/**
+	 * Same as {@link #fuse(ClassifiedRegion, RandomAccess, int)}, but regions that are covered by
+	 * only one image with an integer translation (or nearest neighbor interpolation) are copied
+	 * line by line from the input into the output instead of being fused pixel by pixel.
+	 *
+	 * @param output - the image the {@link RandomAccess} out is on, or null
+	 * @param outputMin - the position of the output in the coordinates of the region
+	 */
+	public void fuse( final ClassifiedRegion r, final RandomAccess< T > out, final Img< T > output, final long[] outputMin, final int slice ) throws NoninvertibleModelException
+	{
+		load( r );
+
+		if ( output != null && copySingleImages && r.classArray().length == 1 && isTranslation( r ) && copy( r, r.classArray()[ 0 ], out, output, outputMin, slice ) )
+			return;
+
+		if ( isTranslation( r ) && fuseRows )
+			fuseTranslatedRows( r, r.classArray(), out, slice );
+		else if ( isTranslation( r ) )
+			fuseTranslated( r, r.classArray(), 0, out, slice );
+		else
+			fuse( r, r.classArray(), 0, out, slice );
+	}
+
+	/**
+	 * Copies a region that is covered by one translated image. The input positions are rounded
+	 * the same way the nearest neighbor interpolation does it, for any other interpolation the
+	 * translation has to be integer.
+	 *
+	 * @return - false if the region cannot be copied, nothing was done in this case
+	 */
+	private boolean copy( final ClassifiedRegion r, final int image, final RandomAccess< T > out, final Img< T > output, final long[] outputMin, final int slice )
+	{
+		final Img< ? extends RealType< ? > > src = loaded.get( image ).getImg();
+		final boolean nearestNeighbor = loaded.get( image ).interpolatorFactory instanceof NearestNeighborInterpolatorFactory;
+		final double[] t = translation[ image ];
+		final double[] s = shift[ image ];
+		final int n = r.size();
+
+		// where the region is in the input image
+		for ( int d = 0; d < n; ++d )
+		{
+			final int min, max;
+
+			if ( d < out.numDimensions() )
+			{
+				min = r.get( d ).min();
+				max = r.get( d ).max();
+			}
+			else
+			{
+				// the output is just a slice of the region
+				min = max = slice;
+			}
+
+			double start = ( min + offset[ d ] ) - t[ d ];
+			double end = ( max + offset[ d ] ) - t[ d ];
+
+			if ( s != null )
+			{
+				start -= s[ d ];
+				end -= s[ d ];
+			}
+
+			if ( !nearestNeighbor && ( start != Math.floor( start ) || end != Math.floor( end ) ) )
+				return false;
+
+			srcMin[ d ] = Util.round( start );
+			srcMax[ d ] = Util.round( end );
+
+			// it has to be inside the input and not stretched by the rounding
+			if ( srcMin[ d ] < 0 || srcMax[ d ] >= src.dimension( d ) || srcMax[ d ] - srcMin[ d ] != max - min )
+				return false;
+		}
+
+		final int length = r.get( 0 ).max() - r.get( 0 ).min() + 1;
+		final int numLines = (int)( ( srcMax[ 1 ] - srcMin[ 1 ] + 1 ) * ( n > 2 ? srcMax[ 2 ] - srcMin[ 2 ] + 1 : 1 ) );
+
+		final RandomAccess< ? extends RealType< ? > > in = src.randomAccess();
+
+		for ( int line = 0; line < numLines; ++line )
+		{
+			// the position of the line in the input
+			srcPos[ 0 ] = srcMin[ 0 ];
+			srcPos[ 1 ] = srcMin[ 1 ] + line % ( srcMax[ 1 ] - srcMin[ 1 ] + 1 );
+			if ( n > 2 )
+				srcPos[ 2 ] = srcMin[ 2 ] + line / ( srcMax[ 1 ] - srcMin[ 1 ] + 1 );
+
+			final long srcZ = n > 2 ? srcPos[ 2 ] : 0;
+
+			// and in the output
+			final long outX = r.get( 0 ).min() - outputMin[ 0 ];
+			final long outY = srcPos[ 1 ] - srcMin[ 1 ] + r.get( 1 ).min() - outputMin[ 1 ];
+			final long outZ = out.numDimensions() > 2 ? srcZ - srcMin[ 2 ] + r.get( 2 ).min() - outputMin[ 2 ] : 0;
+
+			final Object srcArray = getStorageArray( src, srcZ );
+			final Object outArray = getStorageArray( output, outZ );
+
+			if ( srcArray != null && outArray != null && srcArray.getClass() == outArray.getClass() )
+			{
+				System.arraycopy(
+						srcArray, getIndex( src, srcPos[ 0 ], srcPos[ 1 ], srcZ ),
+						outArray, getIndex( output, outX, outY, outZ ), length );
+			}
+			else
+			{
+				// different types, convert pixel by pixel
+				in.setPosition( srcPos );
+				out.setPosition( outX + outputMin[ 0 ], 0 );
+				out.setPosition( outY + outputMin[ 1 ], 1 );
+				if ( out.numDimensions() > 2 )
+					out.setPosition( outZ + outputMin[ 2 ], 2 );
+
+				for ( int i = 0; i < length; ++i )
+				{
+					out.get().setReal( in.get().getRealDouble() );
+
+					if ( i < length - 1 )
+					{
+						in.fwd( 0 );
+						out.fwd( 0 );
+					}
+				}
+			}
+		}
+
+		count += (long)length * numLines;
+
+		return true;
+	}
+
+	/**
+	 * @return - the primitive array holding the z-plane of an {@link ArrayImg} or {@link PlanarImg} (for 2d it is ignored), otherwise null
+	 */
+	protected static Object getStorageArray( final Img< ? > img, final long z )
+	{
+		if ( img instanceof PlanarImg )
+			return ( (PlanarImg< ?, ? >)img ).getPlane( img.numDimensions() > 2 ? (int)z : 0 ).getCurrentStorageArray();
+		else if ( img instanceof ArrayImg && ( (ArrayImg< ?, ? >)img ).update( null ) instanceof ArrayDataAccess )
+			return ( (ArrayDataAccess< ? >)( (ArrayImg< ?, ? >)img ).update( null ) ).getCurrentStorageArray();
+		else
+			return null;
+	}
+
+	/**
+	 * @return - the index of a pixel in the array returned by {@link #getStorageArray(Img, long)}
+	 */
+	protected static int getIndex( final Img< ? > img, final long x, final long y, final long z )
+	{
+		final long planeIndex = y * img.dimension( 0 ) + x;
+
+		if ( img instanceof ArrayImg && img.numDimensions() > 2 )
+			return (int)( z * img.dimension( 0 ) * img.dimension( 1 ) + planeIndex );
+		else
+			return (int)planeIndex;
+	}
+
+	/**
+	 * Positions the interpolator of an image, the image data might be shifted.
+	 *
+	 * @param pos - the position in the image
+	 */
+	private void setPosition( final int image, final double[] pos )
+	{
+		final double[] s = shift[ image ];
+
+		if ( s == null )
+		{
+			in.get( image ).setPosition( pos );
+		}
+		else
+		{
+			for ( int d = 0; d < pos.length; ++d )
+				dataPos[ d ] = pos[ d ] - s[ d ];
+
+			in.get( image ).setPosition( dataPos );
+		}
+	}
+
+	/**
+	 * Same as {@link #fuse(ClassifiedRegion, int[], int, RandomAccess, int)} for regions
+	 * where all images are only translated. The last dimension of the output is walked
+	 * line by line, the interpolators are positioned at the start of each line and then
+	 * moved forward together with the output.
+	 */
+	private void fuseTranslated( final ClassifiedRegion r, final int[] images, final int depth, final RandomAccess< T > out, final int slice )
+	{
+		final Interval d = r.get( depth );
+		final int start = d.min();
+		final int end = d.max();
+
+		out.setPosition( start, depth );
+
+		if ( depth < out.numDimensions() - 1 )
+		{
+			for ( int i = start; i < end; ++i )
+			{
+				fuseTranslated( r, images, depth + 1, out, slice );
+				out.fwd( depth );
+			}
+
+			fuseTranslated( r, images, depth + 1, out, slice );
+			return;
+		}
+
+		// position all inputs at the start of the line
+		for ( int index = 0; index < images.length; ++index )
+		{
+			final int image = images[ index ];
+			final double[] pos = inPos[ image ];
+			final double[] t = translation[ image ];
+
+			for ( int e = 0; e < out.numDimensions(); ++e )
+				pos[ e ] = out.getDoublePosition( e ) + offset[ e ] - t[ e ];
+
+			// the output is just a slice of the region
+			if ( r.size() > out.numDimensions() )
+			{
+				final int dim = r.size() - 1;
+				pos[ dim ] = slice + offset[ dim ] - t[ dim ];
+			}
+
+			setPosition( image, pos );
+		}
+
+		for ( int i = start; i <= end; ++i )
+		{
+			fusion.clear();
+
+			for ( int index = 0; index < images.length; ++index )
+			{
+				final int image = images[ index ];
+				fusion.addValue( in.get( image ).get().getRealFloat(), image, inPos[ image ] );
+			}
+
+			out.get().setReal( fusion.getValue() );
+			++count;
+
+			// move along the line, the output must not leave the image
+			if ( i < end )
+			{
+				out.fwd( depth );
+
+				for ( int index = 0; index < images.length; ++index )
+				{
+					final int image = images[ index ];
+					in.get( image ).fwd( depth );
+					++inPos[ image ][ depth ];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link #fuseTranslated(ClassifiedRegion, int[], int, RandomAccess, int)}, but the region is
+	 * fused row by row along the first dimension by the {@link BatchPixelFusion}. Each image is read along
+	 * the row into its own array before the row is fused.
+	 */
+	private void fuseTranslatedRows( final ClassifiedRegion r, final int[] images, final RandomAccess< T > out, final int slice )
+	{
+		final int n = out.numDimensions();
+		final int start = r.get( 0 ).min();
+		final int length = r.get( 0 ).max() - start + 1;
+
+		if ( rowOut.length < length )
+		{
+			rowOut = new float[ length ];
+
+			for ( int k = 0; k < rowValues.length; ++k )
+				rowValues[ k ] = new float[ length ];
+		}
+
+		// the values and start positions in the order of the images of the region
+		final float[][] values = new float[ images.length ][];
+		final double[][] starts = new double[ images.length ][];
+
+		for ( int k = 0; k < images.length; ++k )
+		{
+			values[ k ] = rowValues[ k ];
+			starts[ k ] = rowStart[ k ];
+		}
+
+		// all rows of the region
+		long numRows = 1;
+
+		for ( int d = 1; d < n; ++d )
+			numRows *= r.get( d ).max() - r.get( d ).min() + 1;
+
+		for ( long row = 0; row < numRows; ++row )
+		{
+			long rest = row;
+
+			out.setPosition( start, 0 );
+
+			for ( int d = 1; d < n; ++d )
+			{
+				final long extent = r.get( d ).max() - r.get( d ).min() + 1;
+				out.setPosition( r.get( d ).min() + rest % extent, d );
+				rest /= extent;
+			}
+
+			// read every image along the row
+			for ( int k = 0; k < images.length; ++k )
+			{
+				final int image = images[ k ];
+				final double[] pos = starts[ k ];
+				final double[] t = translation[ image ];
+
+				for ( int e = 0; e < n; ++e )
+					pos[ e ] = out.getDoublePosition( e ) + offset[ e ] - t[ e ];
+
+				// the output is just a slice of the region
+				if ( r.size() > n )
+				{
+					final int dim = r.size() - 1;
+					pos[ dim ] = slice + offset[ dim ] - t[ dim ];
+				}
+
+				setPosition( image, pos );
+
+				final RealRandomAccess< ? extends RealType< ? > > interpolator = in.get( image );
+				final float[] v = values[ k ];
+
+				for ( int i = 0; i < length; ++i )
+				{
+					v[ i ] = interpolator.get().getRealFloat();
+					interpolator.fwd( 0 );
+				}
+			}
+
+			batchFusion.fuseRow( values, images, starts, length, rowOut );
+
+			for ( int i = 0; i < length; ++i )
+			{
+				out.get().setReal( rowOut[ i ] );
+
+				// the output must not leave the image
+				if ( i < length - 1 )
+					out.fwd( 0 );
+			}
+		}
+
+		count += numRows * length;
+	}
+
+	/**
+	 * Since we do not know the dimensionality of the region, we recurse over each
+	 * position of each dimension. The tail step of each descent iterates over all
+	 * the images (classes) of the given region, fusing the pixel values at the
+	 * current position of each associated image.
+	 */
+	private void fuse( final ClassifiedRegion r, final int[] images, final int depth, final RandomAccess< T > out, final int slice ) throws NoninvertibleModelException
+	{
+		if ( depth < out.numDimensions() )
+		{
+			final Interval d = r.get( depth );
+			final int start = d.min();
+			final int end = d.max();
+
+			out.setPosition( start, depth );
+
+			// NB: we loop one time less than necessary so that out.fwd()
+			// never leaves the image, and do the last position afterwards
+			for ( int i = start; i < end; ++i )
+			{
+				fuse( r, images, depth + 1, out, slice );
+				out.fwd( depth );
+			}
+
+			fuse( r, images, depth + 1, out, slice );
+			return;
+		}
+
+		// compute fusion for this position
+		fusion.clear();
+
+		for ( int d = 0; d < out.numDimensions(); ++d )
+		{
+			final double value = out.getDoublePosition( d ) + offset[ d ];
+
+			for ( int index = 0; index < images.length; ++index )
+				inPos[ images[ index ] ][ d ] = value;
+		}
+
+		// the output is just a slice of the region
+		if ( r.size() > out.numDimensions() )
+		{
+			final int dim = r.size() - 1;
+			final double value = slice + offset[ dim ];
+
+			for ( int index = 0; index < images.length; ++index )
+				inPos[ images[ index ] ][ dim ] = value;
+		}
+
+		// get the value at each input position
+		for ( int index = 0; index < images.length; ++index )
+		{
+			final int image = images[ index ];
+
+			transform.get( image ).applyInverseInPlace( inPos[ image ] );
+			setPosition( image, inPos[ image ] );
+			fusion.addValue( in.get( image ).get().getRealFloat(), image, inPos[ image ] );
+		}
+
+		out.get().setReal( fusion.getValue() );
+		++count;
+	}
+}
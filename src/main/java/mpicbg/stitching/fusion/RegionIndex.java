@@ -0,0 +1,181 @@
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A set of {@link ClassifiedRegion}s with a uniform grid as lookup structure, so that the
+ * regions intersecting a query region can be found without looking at all regions. Every
+ * region is listed in all grid cells it touches, a query only looks at the regions listed
+ * in the cells the query region touches.
+ */
+public class RegionIndex
+{
+	// number of bits per dimension of a cell coordinate in the key, cells
+	// that are further apart share keys which only costs some comparisons
+	final static int bits = 21;
+	final static long mask = ( 1l << bits ) - 1;
+	final static long cellOffset = 1l << ( bits - 1 );
+
+	final int[] cellSize;
+	final Set< ClassifiedRegion > regions = new LinkedHashSet< ClassifiedRegion >();
+	final HashMap< Long, List< ClassifiedRegion > > cells;
+
+	/**
+	 * @param cellSize - the size of a grid cell for each dimension (at most 3), or null to compare with all regions
+	 */
+	public RegionIndex( final int[] cellSize )
+	{
+		this.cellSize = cellSize == null ? null : cellSize.clone();
+		this.cells = cellSize == null ? null : new HashMap< Long, List< ClassifiedRegion > >();
+	}
+
+	/**
+	 * Creates an index with a cell size of the average size of the given regions
+	 *
+	 * @param regions - typically the tiles that will be placed
+	 */
+	public static RegionIndex create( final Collection< ClassifiedRegion > regions )
+	{
+		if ( regions.isEmpty() )
+			return new RegionIndex( null );
+
+		final int numDimensions = regions.iterator().next().size();
+
+		// the key can only hold 3 dimensions
+		if ( numDimensions > 3 )
+			return new RegionIndex( null );
+
+		final long[] sum = new long[ numDimensions ];
+
+		for ( final ClassifiedRegion r : regions )
+			for ( int d = 0; d < numDimensions; ++d )
+				sum[ d ] += r.get( d ).max() - r.get( d ).min() + 1;
+
+		final int[] cellSize = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+			cellSize[ d ] = (int)Math.max( 1, sum[ d ] / regions.size() );
+
+		return new RegionIndex( cellSize );
+	}
+
+	public void add( final ClassifiedRegion region )
+	{
+		regions.add( region );
+
+		if ( cells == null )
+			return;
+
+		for ( final long key : getKeys( region ) )
+		{
+			List< ClassifiedRegion > list = cells.get( key );
+
+			if ( list == null )
+			{
+				list = new ArrayList< ClassifiedRegion >();
+				cells.put( key, list );
+			}
+
+			list.add( region );
+		}
+	}
+
+	public void remove( final ClassifiedRegion region )
+	{
+		if ( !regions.remove( region ) || cells == null )
+			return;
+
+		for ( final long key : getKeys( region ) )
+		{
+			final List< ClassifiedRegion > list = cells.get( key );
+			list.remove( region );
+
+			if ( list.isEmpty() )
+				cells.remove( key );
+		}
+	}
+
+	/**
+	 * @return - the first region that intersects the query, or null
+	 */
+	public ClassifiedRegion findIntersecting( final ClassifiedRegion query )
+	{
+		if ( cells == null )
+		{
+			for ( final ClassifiedRegion region : regions )
+				if ( query.intersects( region ) )
+					return region;
+
+			return null;
+		}
+
+		for ( final long key : getKeys( query ) )
+		{
+			final List< ClassifiedRegion > list = cells.get( key );
+
+			if ( list != null )
+				for ( final ClassifiedRegion region : list )
+					if ( query.intersects( region ) )
+						return region;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return - all regions in the order they were added
+	 */
+	public Set< ClassifiedRegion > getRegions() { return regions; }
+
+	public int size() { return regions.size(); }
+
+	/**
+	 * @return - the keys of all grid cells the region touches
+	 */
+	protected long[] getKeys( final ClassifiedRegion region )
+	{
+		final int n = region.size();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		int numKeys = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = (long)Math.floor( (double)region.get( d ).min() / cellSize[ d ] );
+			max[ d ] = (long)Math.floor( (double)region.get( d ).max() / cellSize[ d ] );
+			numKeys *= max[ d ] - min[ d ] + 1;
+		}
+
+		final long[] keys = new long[ numKeys ];
+		final long[] pos = min.clone();
+
+		for ( int k = 0; k < numKeys; ++k )
+		{
+			long key = 0;
+
+			for ( int d = 0; d < n; ++d )
+				key |= ( ( pos[ d ] + cellOffset ) & mask ) << ( d * bits );
+
+			keys[ k ] = key;
+
+			// next cell
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( pos[ d ] < max[ d ] )
+				{
+					++pos[ d ];
+					break;
+				}
+
+				pos[ d ] = min[ d ];
+			}
+		}
+
+		return keys;
+	}
+}
@@ -0,0 +1,177 @@
+package mpicbg.stitching.fusion;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import stitching.utils.Log;
+
+/**
+ * An image that is resampled once at a constant subpixel shift, so that it can be read with
+ * nearest neighbor interpolation instead of interpolating every pixel while fusing. This works
+ * for images that are placed by a translation only, all output pixels are at the same fraction
+ * of a pixel in the input image.
+ *
+ * Pixel i of the resampled image is the value of the original image at position i + shift, the
+ * resampling is done separably, one dimension after the other, with a linear or cubic kernel.
+ * Positions outside of the image are mirrored like the interpolation in {@link Fusion#getBlockData(ij.ImagePlus, int, int, boolean)} does.
+ * The resampled image has the size of the original image and is read in the coordinates of the
+ * original image, {@link RegionFuser} subtracts {@link #getShift()} from the positions.
+ */
+public class ShiftedImageInterpolation extends ImageInterpolation< FloatType >
+{
+	/**
+	 * The largest image that can be resampled, Java arrays can not be much larger
+	 */
+	public static long maxNumPixels = Integer.MAX_VALUE - 8;
+
+	final double[] shift;
+
+	protected ShiftedImageInterpolation( final Img< FloatType > shifted, final double[] shift )
+	{
+		super( shifted, Views.extendZero( shifted ), new NearestNeighborInterpolatorFactory< FloatType >() );
+
+		this.shift = shift.clone();
+	}
+
+	/**
+	 * @return - the fraction of a pixel the image data is shifted by
+	 */
+	@Override
+	public double[] getShift() { return shift; }
+
+	/**
+	 * Resamples an image at a constant shift.
+	 *
+	 * @param image - the image, any {@link RealType}
+	 * @param shift - the shift for each dimension, in [0, 1)
+	 * @param order - 1 for linear, 3 for cubic interpolation
+	 * @return - the resampled image or null if it has too many pixels for one float array
+	 */
+	public static ShiftedImageInterpolation create( final Img< ? extends RealType< ? > > image, final double[] shift, final int order )
+	{
+		final int n = image.numDimensions();
+		final int[] size = new int[ n ];
+		long numPixels = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			size[ d ] = (int)image.dimension( d );
+			numPixels *= image.dimension( d );
+		}
+
+		if ( numPixels > maxNumPixels )
+		{
+			Log.error( "Cannot resample an image of " + numPixels + " pixels at its subpixel shift, at most " + maxNumPixels + " pixels fit into an array." );
+			return null;
+		}
+
+		float[] data = new float[ (int)numPixels ];
+		int i = 0;
+
+		for ( final RealType< ? > value : Views.flatIterable( image ) )
+			data[ i++ ] = value.getRealFloat();
+
+		// one dimension after the other, the result of each pass is the input of the next
+		for ( int d = 0; d < n; ++d )
+			if ( shift[ d ] != 0 )
+				data = resample( data, size, d, shift[ d ], order );
+
+		final long[] dim = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			dim[ d ] = size[ d ];
+
+		return new ShiftedImageInterpolation( ArrayImgs.floats( data, dim ), shift );
+	}
+
+	/**
+	 * Resamples all lines of one dimension at a shift.
+	 *
+	 * @param data - the image, flat with the first dimension changing fastest
+	 * @param size - the size of the image
+	 * @param dim - the dimension to resample
+	 * @return - the resampled image
+	 */
+	protected static float[] resample( final float[] data, final int[] size, final int dim, final double shift, final int order )
+	{
+		final float[] result = new float[ data.length ];
+		final int length = size[ dim ];
+
+		int stride = 1;
+		for ( int d = 0; d < dim; ++d )
+			stride *= size[ d ];
+
+		// the pixels that contribute to position i + shift start at i + first
+		final int first = order == 3 ? -1 : 0;
+		final double[] weights = order == 3 ? cubicWeights( shift ) : new double[] { 1 - shift, shift };
+
+		// the neighbors of each pixel within the line, mirrored at the borders
+		final int[][] index = new int[ length ][ weights.length ];
+
+		for ( int x = 0; x < length; ++x )
+			for ( int k = 0; k < weights.length; ++k )
+				index[ x ][ k ] = mirror( x + first + k, length ) * stride;
+
+		final int numLines = data.length / length;
+
+		for ( int line = 0; line < numLines; ++line )
+		{
+			// the start of the line, the dimensions before dim are inside the stride
+			final int start = ( line / stride ) * stride * length + line % stride;
+
+			for ( int x = 0; x < length; ++x )
+			{
+				final int[] neighbors = index[ x ];
+				double value = 0;
+
+				for ( int k = 0; k < weights.length; ++k )
+					value += weights[ k ] * data[ start + neighbors[ k ] ];
+
+				result[ start + x * stride ] = (float)value;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return - the weights of the pixels -1, 0, 1 and 2 for position shift, cubic convolution (Keys, a = -0.5)
+	 */
+	protected static double[] cubicWeights( final double shift )
+	{
+		final double[] weights = new double[ 4 ];
+
+		for ( int k = 0; k < 4; ++k )
+		{
+			final double x = Math.abs( k - 1 - shift );
+
+			if ( x <= 1 )
+				weights[ k ] = ( 1.5 * x - 2.5 ) * x * x + 1;
+			else if ( x < 2 )
+				weights[ k ] = ( ( -0.5 * x + 2.5 ) * x - 4 ) * x + 2;
+		}
+
+		return weights;
+	}
+
+	/**
+	 * @return - the position mirrored into [0, length), the border pixel is not repeated
+	 */
+	protected static int mirror( int x, final int length )
+	{
+		if ( length == 1 )
+			return 0;
+
+		final int period = 2 * length - 2;
+
+		x = x % period;
+
+		if ( x < 0 )
+			x += period;
+
+		return x < length ? x : period - x;
+	}
+}
@@ -0,0 +1,231 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import stitching.utils.Log;
+
+/**
+ * Writes fused slices as TIFF in the background so that fusion can continue with
+ * the next slice while the disk is busy. Slices are passed through a bounded queue,
+ * {@link #write(ImagePlus, File, Runnable)} blocks if the queue is full, which limits
+ * the number of finished slices waiting in memory. If writing a slice fails, the
+ * remaining slices are not written anymore and {@link #write(ImagePlus, File, Runnable)}
+ * and {@link #close()} throw an {@link IOException} instead of waiting for the writers.
+ */
+public class SliceWriter
+{
+	/**
+	 * How many finished slices may wait to be written
+	 */
+	public static int defaultQueueSize = 4;
+
+	/**
+	 * How many threads write to disk
+	 */
+	public static int defaultNumWriterThreads = 1;
+
+	final BlockingQueue< Job > queue;
+	final Thread[] writers;
+
+	final AtomicLong bytesWritten = new AtomicLong( 0 );
+	final AtomicInteger slicesWritten = new AtomicInteger( 0 );
+	final AtomicInteger maxQueueDepth = new AtomicInteger( 0 );
+
+	// the first error of a writer thread, afterwards slices are only dropped
+	volatile Throwable error = null;
+
+	// signals the writer threads to quit
+	final static Job poison = new Job( null, null, null );
+
+	public SliceWriter() { this( defaultQueueSize, defaultNumWriterThreads ); }
+
+	public SliceWriter( final int queueSize, final int numWriterThreads )
+	{
+		this.queue = new ArrayBlockingQueue< Job >( Math.max( 1, queueSize ) );
+		this.writers = new Thread[ Math.max( 1, numWriterThreads ) ];
+
+		for ( int i = 0; i < writers.length; ++i )
+		{
+			writers[ i ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for ( Job job = queue.take(); job != poison; job = queue.take() )
+						{
+							if ( error != null )
+							{
+								// keep taking the queued slices so that nobody waits for them
+								if ( job.done != null )
+									job.done.run();
+
+								continue;
+							}
+
+							try
+							{
+								write( job );
+							}
+							catch ( Throwable t )
+							{
+								error = t;
+								Log.error( "Could not write '" + job.file + "', no further slices will be written: " + t );
+							}
+						}
+					}
+					catch ( InterruptedException e )
+					{
+						// close() interrupts the writers after an error, that one was reported already
+						if ( error == null )
+						{
+							error = e;
+							Log.error( "Slice writer was interrupted: " + e );
+						}
+					}
+				}
+			}, "SliceWriter-" + i );
+
+			writers[ i ].start();
+		}
+	}
+
+	/**
+	 * Queues a slice for writing, blocks if too many slices are already waiting.
+	 *
+	 * @param imp - the slice
+	 * @param file - where to write it
+	 * @param done - called once the slice is on disk and the {@link ImagePlus} can be reused, might be null
+	 * @throws IOException - if writing a previous slice failed, the slice is not queued then
+	 */
+	public void write( final ImagePlus imp, final File file, final Runnable done ) throws InterruptedException, IOException
+	{
+		put( new Job( imp, file, done ) );
+
+		final int depth = queue.size();
+		int max = maxQueueDepth.get();
+
+		while ( depth > max && !maxQueueDepth.compareAndSet( max, depth ) )
+			max = maxQueueDepth.get();
+	}
+
+	/**
+	 * Waits until all queued slices are written and stops the writer threads.
+	 *
+	 * @throws IOException - if a slice could not be written
+	 */
+	public void close() throws InterruptedException, IOException
+	{
+		try
+		{
+			for ( int i = 0; i < writers.length; ++i )
+				put( poison );
+		}
+		finally
+		{
+			for ( final Thread writer : writers )
+			{
+				// the writers only stop by themselves once they took the poison
+				if ( error != null && writer.isAlive() )
+					writer.interrupt();
+
+				writer.join();
+			}
+		}
+
+		checkError();
+	}
+
+	/**
+	 * @return - the first error of a writer thread or null
+	 */
+	public Throwable getError() { return error; }
+
+	/**
+	 * Puts a job into the queue, but does not wait for a full queue once writing failed or all writers are gone.
+	 */
+	protected void put( final Job job ) throws InterruptedException, IOException
+	{
+		checkError();
+
+		while ( !queue.offer( job, 100, TimeUnit.MILLISECONDS ) )
+		{
+			checkError();
+
+			boolean alive = false;
+
+			for ( final Thread writer : writers )
+				alive |= writer.isAlive();
+
+			if ( !alive )
+				throw new IOException( "All slice writers have stopped." );
+		}
+	}
+
+	protected void checkError() throws IOException
+	{
+		if ( error != null )
+			throw new IOException( "Writing slices failed: " + error, error );
+	}
+
+	/**
+	 * @return - how many slices are currently waiting to be written
+	 */
+	public int getQueueDepth() { return queue.size(); }
+
+	/**
+	 * @return - the largest number of slices that were waiting at the same time
+	 */
+	public int getMaxQueueDepth() { return maxQueueDepth.get(); }
+
+	/**
+	 * @return - how many bytes have been written so far
+	 */
+	public long getBytesWritten() { return bytesWritten.get(); }
+
+	/**
+	 * @return - how many slices have been written so far
+	 */
+	public int getSlicesWritten() { return slicesWritten.get(); }
+
+	protected void write( final Job job ) throws IOException
+	{
+		try
+		{
+			if ( !new FileSaver( job.imp ).saveAsTiff( job.file.getAbsolutePath() ) )
+				throw new IOException( "Saving as TIFF failed." );
+
+			bytesWritten.addAndGet( job.file.length() );
+			slicesWritten.incrementAndGet();
+		}
+		finally
+		{
+			if ( job.done != null )
+				job.done.run();
+		}
+	}
+
+	static class Job
+	{
+		final ImagePlus imp;
+		final File file;
+		final Runnable done;
+
+		Job( final ImagePlus imp, final File file, final Runnable done )
+		{
+			this.imp = imp;
+			this.file = file;
+			this.done = done;
+		}
+	}
+}
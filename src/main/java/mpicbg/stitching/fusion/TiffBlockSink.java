@@ -0,0 +1,67 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.imglib2.exception.ImgLibException;
+import net.imglib2.img.Img;
+import net.imglib2.img.imageplus.ImagePlusImg;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Writes every block of the {@link BlockFusion} as a TIFF file into a directory, the file
+ * name contains the timepoint, channel and the pixel position of the block in the fused image.
+ * 
+ * @param <T>
+ */
+public class TiffBlockSink< T extends RealType< T > > implements BlockSink< T >
+{
+	final String outputDirectory;
+
+	public TiffBlockSink( final String outputDirectory )
+	{
+		this.outputDirectory = outputDirectory;
+	}
+
+	@Override
+	public void begin( final int t, final int c, final int[] size, final int[] blockSize ) {}
+
+	@Override
+	public void add( final int t, final int c, final long[] min, final Img< T > block ) throws IOException
+	{
+		final ImagePlus imp;
+
+		try
+		{
+			imp = ((ImagePlusImg<?,?>)block).getImagePlus();
+		}
+		catch ( ImgLibException e )
+		{
+			throw new IOException( "Output image has no ImageJ type: " + e, e );
+		}
+
+		final File file = new File( outputDirectory, getFileName( t, c, min ) );
+
+		if ( !new FileSaver( imp ).saveAsTiff( file.getAbsolutePath() ) )
+			throw new IOException( "Could not write '" + file + "'" );
+	}
+
+	@Override
+	public void end( final int t, final int c ) {}
+
+	/**
+	 * @return - the file name of a block, e.g. block_t1_c1_x1024_y0_z64.tif
+	 */
+	public static String getFileName( final int t, final int c, final long[] min )
+	{
+		String name = "block_t" + t + "_c" + c + "_x" + min[ 0 ] + "_y" + min[ 1 ];
+
+		if ( min.length > 2 )
+			name += "_z" + min[ 2 ];
+
+		return name + ".tif";
+	}
+}
@@ -0,0 +1,345 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mpicbg.stitching.ImageCollectionElement;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Loads the input images of the fusion on demand through {@link ImageCollectionElement#open(boolean)}
+ * and keeps the most recently used ones as long as they fit into a budget of bytes. Once an image
+ * exceeds the budget, the images that were not used for the longest time are closed again. As the
+ * blocks of the {@link BlockFusion} are fused in row-major order, these are the images of the
+ * previous rows, which are not needed anymore if the budget holds about one row of images.
+ * The {@link BlockFusion} also closes images right away once all blocks using them are done.
+ *
+ * Images that are already opened (not virtual) when the cache is created are used as they are,
+ * they are never closed and do not count for the budget. All other images are loaded as a copy,
+ * so that images the caller opened virtually stay open.
+ */
+public class TileCache
+{
+	/**
+	 * The default budget in bytes, half of the memory available to Java
+	 */
+	public static long defaultMaxBytes = Runtime.getRuntime().maxMemory() / 2;
+
+	final List< ImageCollectionElement > elements;
+	final boolean subpixelResolution;
+	final long maxBytes;
+
+	final long[][] dimensions;
+	final int numChannels, numTimePoints;
+
+	// images that were open (not virtual) before and are not ours to close
+	final boolean[] wasOpen;
+	final Object[] locks;
+
+	// the loaded images, least recently used first
+	final LinkedHashMap< Integer, Entry > entries = new LinkedHashMap< Integer, Entry >( 16, 0.75f, true );
+	long usedBytes = 0;
+	int numLoads = 0;
+
+	static class Entry
+	{
+		ImagePlus imp;
+		ImageInterpolation< ? extends RealType< ? > > data;
+		int c, t;
+		long bytes;
+	}
+
+	/**
+	 * Only the sizes of the images are read here, images that have never been opened are opened virtually for it.
+	 *
+	 * @param elements - the input images
+	 * @param subpixelResolution - if the images will be interpolated, see {@link Fusion#getBlockData(ImagePlus, int, int, boolean)}
+	 * @param maxBytes - how much memory the loaded images may use
+	 */
+	public TileCache( final List< ImageCollectionElement > elements, final boolean subpixelResolution, final long maxBytes )
+	{
+		this.elements = elements;
+		this.subpixelResolution = subpixelResolution;
+		this.maxBytes = maxBytes;
+		this.dimensions = new long[ elements.size() ][];
+		this.wasOpen = new boolean[ elements.size() ];
+		this.locks = new Object[ elements.size() ];
+
+		int numChannels = 1, numTimePoints = 1;
+
+		for ( int i = 0; i < elements.size(); ++i )
+		{
+			final ImageCollectionElement element = elements.get( i );
+
+			wasOpen[ i ] = element.isOpen() && !element.isVirtual();
+			locks[ i ] = new Object();
+
+			if ( element.getDimensions() == null || i == 0 )
+			{
+				final boolean open = element.isOpen();
+				final ImagePlus imp = element.open( open ? element.isVirtual() : true );
+
+				if ( imp == null )
+					throw new IllegalStateException( "Cannot open file '" + element.getFile() + "'." );
+
+				if ( i == 0 )
+				{
+					numChannels = imp.getNChannels();
+					numTimePoints = imp.getNFrames();
+				}
+
+				if ( !open )
+					element.close();
+			}
+
+			final int[] size = element.getDimensions();
+			dimensions[ i ] = new long[ size.length ];
+
+			for ( int d = 0; d < size.length; ++d )
+				dimensions[ i ][ d ] = size[ d ];
+		}
+
+		this.numChannels = numChannels;
+		this.numTimePoints = numTimePoints;
+	}
+
+	public TileCache( final List< ImageCollectionElement > elements, final boolean subpixelResolution )
+	{
+		this( elements, subpixelResolution, defaultMaxBytes );
+	}
+
+	public int getNumChannels() { return numChannels; }
+	public int getNumTimePoints() { return numTimePoints; }
+
+	/**
+	 * @return - how often an image had to be loaded so far
+	 */
+	public synchronized int getNumLoads() { return numLoads; }
+
+	/**
+	 * @return - the memory held by the loaded images
+	 */
+	public synchronized long getUsedBytes() { return usedBytes; }
+
+	/**
+	 * @return - the sizes of all images for {@link Fusion#estimateBounds(double[], int[], int[][], java.util.ArrayList, int)}
+	 */
+	public int[][] getImgSizes( final int dimensionality )
+	{
+		final int[][] imgSizes = new int[ dimensions.length ][ dimensionality ];
+
+		for ( int i = 0; i < dimensions.length; ++i )
+			for ( int d = 0; d < dimensionality; ++d )
+				imgSizes[ i ][ d ] = d < dimensions[ i ].length ? (int)dimensions[ i ][ d ] : 1;
+
+		return imgSizes;
+	}
+
+	/**
+	 * @return - one {@link ImageInterpolation} per input image that is loaded once it is used, see {@link Fusion#getBlockData(List, int, int, boolean)}
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public ArrayList< ImageInterpolation< ? extends RealType< ? > > > getTiles( final int c, final int t )
+	{
+		final ArrayList< ImageInterpolation< ? extends RealType< ? > > > tiles = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
+
+		for ( int i = 0; i < elements.size(); ++i )
+			tiles.add( new CachedImageInterpolation( this, i, c, t ) );
+
+		return tiles;
+	}
+
+	/**
+	 * Returns one channel and timepoint of an image, loads the image if it is not loaded
+	 * and closes the least recently used images if the budget is exceeded.
+	 */
+	public ImageInterpolation< ? extends RealType< ? > > get( final int i, final int c, final int t )
+	{
+		synchronized ( locks[ i ] )
+		{
+			Entry entry;
+
+			synchronized ( this )
+			{
+				entry = entries.get( i );
+			}
+
+			if ( entry == null )
+			{
+				entry = new Entry();
+				entry.imp = load( i );
+
+				if ( entry.imp == null )
+					throw new IllegalStateException( "Cannot load file '" + elements.get( i ).getFile() + "'." );
+
+				synchronized ( this )
+				{
+					++numLoads;
+				}
+			}
+
+			if ( entry.data == null || entry.c != c || entry.t != t )
+			{
+				entry.data = Fusion.getBlockData( entry.imp, c, t, subpixelResolution );
+				entry.c = c;
+				entry.t = t;
+			}
+
+			final long bytes = wasOpen[ i ] ? 0 : getBytes( entry );
+
+			synchronized ( this )
+			{
+				// it might have been evicted while its data was read, then it counts as loaded again
+				if ( entries.get( i ) != entry )
+					entry.bytes = 0;
+
+				usedBytes += bytes - entry.bytes;
+				entry.bytes = bytes;
+				entries.put( i, entry );
+
+				evict( i );
+			}
+
+			return entry.data;
+		}
+	}
+
+	/**
+	 * Closes an image if it was loaded by the cache, it is loaded again if it is used later.
+	 */
+	public synchronized void remove( final int i )
+	{
+		final Entry entry = entries.remove( i );
+
+		if ( entry != null )
+		{
+			usedBytes -= entry.bytes;
+			close( i, entry );
+		}
+	}
+
+	/**
+	 * Closes all images loaded by the cache.
+	 */
+	public synchronized void clear()
+	{
+		for ( final Map.Entry< Integer, Entry > e : entries.entrySet() )
+			close( e.getKey(), e.getValue() );
+
+		entries.clear();
+		usedBytes = 0;
+	}
+
+	/**
+	 * Closes the least recently used images until the budget is met again, must hold the lock of the cache.
+	 *
+	 * @param keep - the image that is just used
+	 */
+	protected void evict( final int keep )
+	{
+		final Iterator< Map.Entry< Integer, Entry > > it = entries.entrySet().iterator();
+
+		while ( usedBytes > maxBytes && it.hasNext() )
+		{
+			final Map.Entry< Integer, Entry > e = it.next();
+			final int i = e.getKey();
+
+			if ( i == keep )
+				continue;
+
+			usedBytes -= e.getValue().bytes;
+			it.remove();
+
+			// the fusion might still read the data, it is freed once it is done
+			close( i, e.getValue() );
+		}
+	}
+
+	/**
+	 * Opens an image that is not in the cache. Images that were open before are used as they are,
+	 * all others are opened through a copy of their {@link ImageCollectionElement}.
+	 */
+	protected ImagePlus load( final int i )
+	{
+		final ImageCollectionElement element = elements.get( i );
+
+		if ( wasOpen[ i ] )
+			return element.open( false );
+
+		return new ImageCollectionElement( element.getFile(), element.getIndex() ).open( false );
+	}
+
+	/**
+	 * Closes an image loaded by the cache, images that were open before are kept.
+	 */
+	protected void close( final int i, final Entry entry )
+	{
+		if ( !wasOpen[ i ] )
+			entry.imp.close();
+	}
+
+	/**
+	 * @return - the memory held by the image, including the converted copy of RGB images for subpixel resolution
+	 */
+	protected long getBytes( final Entry entry )
+	{
+		long bytes = (long)entry.imp.getWidth() * entry.imp.getHeight() * entry.imp.getStackSize() * entry.imp.getBytesPerPixel();
+
+		if ( subpixelResolution && entry.imp.getType() == ImagePlus.COLOR_RGB )
+		{
+			final Img< ? > img = entry.data.getImg();
+			long size = 4;
+
+			for ( int d = 0; d < img.numDimensions(); ++d )
+				size *= img.dimension( d );
+
+			bytes += size;
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * An {@link ImageInterpolation} that loads the image from the {@link TileCache} when it is used.
+	 * The size is known without loading it.
+	 */
+	static class CachedImageInterpolation< T extends RealType< T > > extends ImageInterpolation< T >
+	{
+		final TileCache cache;
+		final int index, c, t;
+
+		public CachedImageInterpolation( final TileCache cache, final int index, final int c, final int t )
+		{
+			this.cache = cache;
+			this.index = index;
+			this.c = c;
+			this.t = t;
+		}
+
+		@SuppressWarnings( "unchecked" )
+		@Override
+		public ImageInterpolation< T > load() { return (ImageInterpolation< T >)cache.get( index, c, t ); }
+
+		@Override
+		public Img< ? extends RealType< ? > > getImg() { return load().getImg(); }
+
+		@Override
+		public RealRandomAccess< T > createInterpolator() { return load().createInterpolator(); }
+
+		@Override
+		public void unload() { cache.remove( index ); }
+
+		@Override
+		public long dimension( final int d ) { return cache.dimensions[ index ][ d ]; }
+
+		@Override
+		public int numDimensions() { return cache.dimensions[ index ].length; }
+	}
+}
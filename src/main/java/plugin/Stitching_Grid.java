@@ -42,7 +42,13 @@ import mpicbg.stitching.ImageCollectionElement;
 import mpicbg.stitching.ImagePlusTimePoint;
 import mpicbg.stitching.StitchingParameters;
 import mpicbg.stitching.TextFileAccess;
+import mpicbg.stitching.fusion.BlockFusion;
 import mpicbg.stitching.fusion.Fusion;
+import mpicbg.stitching.fusion.FusionManifest;
+import mpicbg.stitching.fusion.PreviewFusion;
+import mpicbg.stitching.fusion.PyramidBlockSink;
+import mpicbg.stitching.fusion.TileCache;
+import mpicbg.stitching.fusion.TiffBlockSink;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -82,6 +88,8 @@ public class Stitching_Grid implements PlugIn
 	public static boolean defaultInvertY = false;
 	public static boolean defaultIgnoreZStage = false;
 	public static boolean defaultSubpixelAccuracy = false;
+	public static boolean defaultCacheSpectra = false;
+	public static int defaultPyramidLevels = 0;
 	public static boolean defaultDownSample = false;
 	public static boolean defaultDisplayFusion = false;
 	public static boolean writeOnlyTileConfStatic = false;
@@ -106,9 +114,12 @@ public class Stitching_Grid implements PlugIn
 	
 	public static boolean defaultQuickFusion = true;
 	
-	public static String[] resultChoices = { "Fuse and display", "Write to disk" };
+	public static String[] resultChoices = { "Fuse and display", "Write to disk", "Write fused blocks to disk", "Write pyramid to disk (DeepZoom)", "Fuse and display projection (3d)", "Fuse and display low resolution preview" };
 	public static int defaultResult = 0;
+	public static String[] projectionChoices = { "Max Intensity", "Sum Slices", "Average Intensity" };
+	public static int defaultProjectionType = 0;
 	public static String defaultOutputDirectory = "";
+	public static boolean defaultIncrementalFusion = false;
 
 	private String inputDirectory;
 	
@@ -199,6 +210,8 @@ public class Stitching_Grid implements PlugIn
 		gd.addCheckbox( "Invert_Y coordinates", defaultInvertY );
 		gd.addCheckbox( "Ignore_Z_stage position", defaultIgnoreZStage);
 		gd.addCheckbox( "Subpixel_accuracy", defaultSubpixelAccuracy );
+		gd.addCheckbox( "Register_whole_tiles (Fourier transform every tile only once)", defaultCacheSpectra );
+		gd.addNumericField( "Registration_pyramid_levels (register on 1/2^level first, 0 = full resolution)", defaultPyramidLevels, 0 );
 		gd.addCheckbox( "Downsample_tiles", defaultDownSample);
 		gd.addCheckbox( "Display_fusion", defaultDisplayFusion);
 		gd.addCheckbox( "Use_virtual_input_images (Slow! Even slower when combined with subpixel accuracy during fusion!)", defaultVirtualInput );
@@ -329,6 +342,8 @@ public class Stitching_Grid implements PlugIn
 		final boolean ignoreZStage = params.ignoreZStage = defaultIgnoreZStage = gd.getNextBoolean();
 
 		params.subpixelAccuracy = defaultSubpixelAccuracy = gd.getNextBoolean();
+		params.cacheSpectra = defaultCacheSpectra = gd.getNextBoolean();
+		params.pyramidLevels = defaultPyramidLevels = Math.max( 0, (int)Math.round( gd.getNextNumber() ) );
 		final boolean downSample = params.downSample = defaultDownSample = gd.getNextBoolean();
 		params.displayFusion = defaultDisplayFusion = gd.getNextBoolean();
 		params.virtual = defaultVirtualInput = gd.getNextBoolean();
@@ -345,25 +360,62 @@ public class Stitching_Grid implements PlugIn
 			}
 		}
 		
-		if ( params.fusionMethod != CommonFunctions.fusionMethodListGrid.length - 1 && params.outputVariant == 1 )
+		boolean incrementalFusion = false;
+
+		if ( params.fusionMethod != CommonFunctions.fusionMethodListGrid.length - 1 && params.outputVariant >= 1 && params.outputVariant <= 3 )
 		{
 			if ( defaultOutputDirectory == null || defaultOutputDirectory.length() == 0 )
 				defaultOutputDirectory = defaultDirectory;
 			
 			final GenericDialogPlus gd2 = new GenericDialogPlus( "Select output directory" );
 			gd2.addDirectoryField( "Output_directory", defaultOutputDirectory, 60 );
+
+			if ( params.outputVariant == 2 )
+				gd2.addCheckbox( "Only_rewrite_blocks_that_changed (keeps a manifest in the output directory)", defaultIncrementalFusion );
+
 			gd2.showDialog();
 			
 			if ( gd2.wasCanceled() )
 				return;
 			
 			params.outputDirectory = defaultOutputDirectory = gd2.getNextString();
+
+			if ( params.outputVariant == 2 )
+				incrementalFusion = defaultIncrementalFusion = gd2.getNextBoolean();
 		}
 		else
 		{
 			params.outputDirectory = null;
 		}
 
+		int projectionType = 0;
+
+		if ( params.fusionMethod != CommonFunctions.fusionMethodListGrid.length - 1 && params.outputVariant == 4 )
+		{
+			final GenericDialogPlus gd2 = new GenericDialogPlus( "Projection" );
+			gd2.addChoice( "Projection_type", projectionChoices, projectionChoices[ defaultProjectionType ] );
+			gd2.showDialog();
+
+			if ( gd2.wasCanceled() )
+				return;
+
+			projectionType = defaultProjectionType = gd2.getNextChoiceIndex();
+		}
+
+		if ( params.fusionMethod != CommonFunctions.fusionMethodListGrid.length - 1 && params.outputVariant == 5 )
+		{
+			final GenericDialogPlus gd2 = new GenericDialogPlus( "Preview resolution" );
+			gd2.addNumericField( "Downsampling_level (1/2^level)", PreviewFusion.defaultLevel, 0 );
+			gd2.addCheckbox( "Average_pixels (otherwise take every 2^level-th pixel)", PreviewFusion.defaultAverage );
+			gd2.showDialog();
+
+			if ( gd2.wasCanceled() )
+				return;
+
+			PreviewFusion.defaultLevel = Math.max( 0, (int)Math.round( gd2.getNextNumber() ) );
+			PreviewFusion.defaultAverage = gd2.getNextBoolean();
+		}
+
 		final long startTime = System.currentTimeMillis();
 		
 		// we need to set this
@@ -555,6 +607,7 @@ public class Stitching_Grid implements PlugIn
 			// first prepare the models and get the targettype
 			final ArrayList<InvertibleBoundable> models = new ArrayList< InvertibleBoundable >();
 			final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+			final ArrayList<ImageCollectionElement> tiles = new ArrayList<ImageCollectionElement>();
 			
 			boolean is32bit = false;
 			boolean is16bit = false;
@@ -572,6 +625,7 @@ public class Stitching_Grid implements PlugIn
 					is8bit = true;
 				
 				images.add( imp );
+				tiles.add( imt.getElement() );
 			}
 			
 			for ( int f = 1; f <= numTimePoints; ++f )
@@ -600,7 +654,95 @@ public class Stitching_Grid implements PlugIn
 					Log.info( "There is no overlap between any of the tiles, using faster fusion algorithm." );
 			}
 			
-			if ( is32bit )
+			if ( params.outputVariant == 4 && params.dimensionality != 3 )
+				Log.info( "A projection needs 3d images, the 2d images are fused and displayed as they are." );
+
+			if ( params.outputVariant == 2 )
+			{
+				// the fused image is never assembled, it is written block by block
+				// virtual input images are loaded when the blocks need them and closed again afterwards
+				// incrementally only the blocks are written whose tiles moved or changed since the last time
+				final FusionManifest manifest = incrementalFusion ? new FusionManifest( params.outputDirectory ) : null;
+
+				if ( is32bit )
+				{
+					if ( params.virtual )
+						BlockFusion.fuse( new FloatType(), tiles, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, BlockFusion.defaultBlockSize, TileCache.defaultMaxBytes, new TiffBlockSink< FloatType >( params.outputDirectory ), manifest );
+					else
+						BlockFusion.fuse( new FloatType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, BlockFusion.defaultBlockSize, new TiffBlockSink< FloatType >( params.outputDirectory ), manifest );
+				}
+				else if ( is16bit )
+				{
+					if ( params.virtual )
+						BlockFusion.fuse( new UnsignedShortType(), tiles, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, BlockFusion.defaultBlockSize, TileCache.defaultMaxBytes, new TiffBlockSink< UnsignedShortType >( params.outputDirectory ), manifest );
+					else
+						BlockFusion.fuse( new UnsignedShortType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, BlockFusion.defaultBlockSize, new TiffBlockSink< UnsignedShortType >( params.outputDirectory ), manifest );
+				}
+				else if ( is8bit )
+				{
+					if ( params.virtual )
+						BlockFusion.fuse( new UnsignedByteType(), tiles, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, BlockFusion.defaultBlockSize, TileCache.defaultMaxBytes, new TiffBlockSink< UnsignedByteType >( params.outputDirectory ), manifest );
+					else
+						BlockFusion.fuse( new UnsignedByteType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, BlockFusion.defaultBlockSize, new TiffBlockSink< UnsignedByteType >( params.outputDirectory ), manifest );
+				}
+				else
+					Log.error( "Unknown image type for fusion." );
+			}
+			else if ( params.outputVariant == 3 )
+			{
+				// the pyramid levels are downsampled from the blocks as they are fused
+				// png tiles of 16-bit and 32-bit images are shown with the display range of the input
+				final double[] displayRange = PyramidBlockSink.getDisplayRange( images );
+
+				if ( is32bit )
+				{
+					if ( params.virtual )
+						BlockFusion.fuse( new FloatType(), tiles, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, PyramidBlockSink.getBlockSize(), TileCache.defaultMaxBytes, new PyramidBlockSink< FloatType >( params.outputDirectory, "fused", displayRange ) );
+					else
+						BlockFusion.fuse( new FloatType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, PyramidBlockSink.getBlockSize(), new PyramidBlockSink< FloatType >( params.outputDirectory, "fused", displayRange ) );
+				}
+				else if ( is16bit )
+				{
+					if ( params.virtual )
+						BlockFusion.fuse( new UnsignedShortType(), tiles, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, PyramidBlockSink.getBlockSize(), TileCache.defaultMaxBytes, new PyramidBlockSink< UnsignedShortType >( params.outputDirectory, "fused", displayRange ) );
+					else
+						BlockFusion.fuse( new UnsignedShortType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, PyramidBlockSink.getBlockSize(), new PyramidBlockSink< UnsignedShortType >( params.outputDirectory, "fused", displayRange ) );
+				}
+				else if ( is8bit )
+				{
+					if ( params.virtual )
+						BlockFusion.fuse( new UnsignedByteType(), tiles, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, PyramidBlockSink.getBlockSize(), TileCache.defaultMaxBytes, new PyramidBlockSink< UnsignedByteType >( params.outputDirectory, "fused", displayRange ) );
+					else
+						BlockFusion.fuse( new UnsignedByteType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, PyramidBlockSink.getBlockSize(), new PyramidBlockSink< UnsignedByteType >( params.outputDirectory, "fused", displayRange ) );
+				}
+				else
+					Log.error( "Unknown image type for fusion." );
+			}
+			else if ( params.outputVariant == 4 && params.dimensionality == 3 )
+			{
+				// only the projection is kept, not the fused volume
+				if ( is32bit )
+					imp = Fusion.fuseProjection( new FloatType(), images, models, params.subpixelAccuracy, params.fusionMethod, false, projectionType );
+				else if ( is16bit )
+					imp = Fusion.fuseProjection( new UnsignedShortType(), images, models, params.subpixelAccuracy, params.fusionMethod, false, projectionType );
+				else if ( is8bit )
+					imp = Fusion.fuseProjection( new UnsignedByteType(), images, models, params.subpixelAccuracy, params.fusionMethod, false, projectionType );
+				else
+					Log.error( "Unknown image type for fusion." );
+			}
+			else if ( params.outputVariant == 5 )
+			{
+				// every tile is reduced before it is fused
+				if ( is32bit )
+					imp = PreviewFusion.fuse( new FloatType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, params.displayFusion, PreviewFusion.defaultLevel, PreviewFusion.defaultAverage );
+				else if ( is16bit )
+					imp = PreviewFusion.fuse( new UnsignedShortType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, params.displayFusion, PreviewFusion.defaultLevel, PreviewFusion.defaultAverage );
+				else if ( is8bit )
+					imp = PreviewFusion.fuse( new UnsignedByteType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, params.displayFusion, PreviewFusion.defaultLevel, PreviewFusion.defaultAverage );
+				else
+					Log.error( "Unknown image type for fusion." );
+			}
+			else if ( is32bit )
 				imp = Fusion.fuse( new FloatType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, noOverlap, false, params.displayFusion );
 			else if ( is16bit )
 				imp = Fusion.fuse( new UnsignedShortType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, noOverlap, false, params.displayFusion );
@@ -624,7 +766,8 @@ public class Stitching_Grid implements PlugIn
 				IJ.log( "Imp is null" );
 			}
 
-			if (addTilesAsRois) {
+			// the ROIs are in full resolution coordinates, they do not fit the preview
+			if (addTilesAsRois && params.outputVariant != 5) {
 				double[] offset = new double[dimensionality];
         Fusion.estimateBounds(offset, new int[dimensionality], images, models,
                 dimensionality);
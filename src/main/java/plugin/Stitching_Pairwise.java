@@ -12,7 +12,6 @@ import ij.plugin.PlugIn;
 
 import java.util.ArrayList;
 import java.util.Vector;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.Model;
@@ -23,6 +22,7 @@ import mpicbg.stitching.GlobalOptimization;
 import mpicbg.stitching.ImagePlusTimePoint;
 import mpicbg.stitching.PairWiseStitchingImgLib;
 import mpicbg.stitching.PairWiseStitchingResult;
+import mpicbg.stitching.RegistrationExecutor;
 import mpicbg.stitching.StitchingParameters;
 import mpicbg.stitching.fusion.Fusion;
 import mpicbg.stitching.fusion.OverlayFusion;
@@ -30,7 +30,6 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
-import net.imglib2.multithreading.SimpleMultiThreading;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
@@ -354,51 +353,43 @@ public class Stitching_Pairwise implements PlugIn
 			
 			// compute all compare pairs
 			// compute all matchings
-			final AtomicInteger ai = new AtomicInteger(0);
-			
-			final int numThreads;
-			
-			if ( params.cpuMemChoice == 0 )
-				numThreads = 1;
-			else
-				numThreads = Runtime.getRuntime().availableProcessors();
-			
-	        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-	    	
-	        for ( int ithread = 0; ithread < threads.length; ++ithread )
-	            threads[ ithread ] = new Thread(new Runnable()
+	        // one task per pair, the FFTs and peaks of a pair are tasks of the same pool
+	        final ArrayList< Runnable > tasks = new ArrayList< Runnable >();
+	        
+	        for ( final ComparePair pair : pairs )
+	            tasks.add( new Runnable()
 	            {
 	                @Override
 	                public void run()
 	                {		
-	                   	final int myNumber = ai.getAndIncrement();
 	                    
-	                    for ( int i = 0; i < pairs.size(); i++ )
-	                    {
-	                    	if ( i % numThreads == myNumber )
-	                    	{
-	                    		final ComparePair pair = pairs.get( i );
-	                    		
-	                    		long start = System.currentTimeMillis();			
-
-	            				final PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), 
-	            						pair.getImagePlus1().getRoi(), pair.getImagePlus2().getRoi(), pair.getTimePoint1(), pair.getTimePoint2(), params );			
-
-	            				if ( params.dimensionality == 2 )
-	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
-	            				else
-	            					pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ), result.getOffset( 2 ) } );
-	            				
-	            				pair.setCrossCorrelation( result.getCrossCorrelation() );
-
-	            				Log.info( pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1() + "]" + " <- " + pair.getImagePlus2().getTitle() + "[" + pair.getTimePoint2() + "]" + ": " + 
-	            						Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + (System.currentTimeMillis() - start) + " ms)");
-	                    	}
-	                    }
+	                    long start = System.currentTimeMillis();			
+
+	            		final PairWiseStitchingResult result = PairWiseStitchingImgLib.stitchPairwise( pair.getImagePlus1(), pair.getImagePlus2(), 
+	            				pair.getImagePlus1().getRoi(), pair.getImagePlus2().getRoi(), pair.getTimePoint1(), pair.getTimePoint2(), params );			
+
+	            		if ( params.dimensionality == 2 )
+	            			pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ) } );
+	            		else
+	            			pair.setRelativeShift( new float[]{ result.getOffset( 0 ), result.getOffset( 1 ), result.getOffset( 2 ) } );
+	            		
+	            		pair.setCrossCorrelation( result.getCrossCorrelation() );
+
+	            		Log.info( pair.getImagePlus1().getTitle() + "[" + pair.getTimePoint1() + "]" + " <- " + pair.getImagePlus2().getTitle() + "[" + pair.getTimePoint2() + "]" + ": " + 
+	            				Util.printCoordinates( result.getOffset() ) + " correlation (R)=" + result.getCrossCorrelation() + " (" + (System.currentTimeMillis() - start) + " ms)");
 	                }
 	            });
 	        
-	        SimpleMultiThreading.startAndJoin( threads );
+	        // to save memory only one pair at a time
+	        final RegistrationExecutor executor = new RegistrationExecutor();
+	        try
+	        {
+	        	executor.run( tasks, params.cpuMemChoice == 0 );
+	        }
+	        finally
+	        {
+	        	executor.shutdown();
+	        }
 			
 	        // get the final positions of all tiles
 			final ArrayList< ImagePlusTimePoint > optimized = GlobalOptimization.optimize( pairs, pairs.get( 0 ).getTile1(), params );
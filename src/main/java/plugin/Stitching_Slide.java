@@ -25,7 +25,9 @@ import mpicbg.models.Model;
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.stitching.StitchingParameters;
+import mpicbg.stitching.fusion.BlockFusion;
 import mpicbg.stitching.fusion.Fusion;
+import mpicbg.stitching.fusion.PyramidBlockSink;
 import mpicbg.stitching.ImagePlusTimePoint;
 import mpicbg.stitching.ImageCollectionElement;
 import mpicbg.stitching.Downsampler;
@@ -72,6 +74,8 @@ public class Stitching_Slide implements PlugIn
 
     public static boolean defaultSubpixelAccuracy = false;
 
+    public static boolean defaultWritePyramid = false;
+
     public static double defaultR = 0.3;
 
     public static double defaultRegressionThreshold = 0.3;
@@ -106,6 +110,7 @@ public class Stitching_Slide implements PlugIn
         
         gd.addChoice( "Fusion_method", CommonFunctions.fusionMethodListGrid, CommonFunctions.fusionMethodListGrid[ defaultFusionMethod ] );
         gd.addCheckbox( "Subpixel_accuracy", defaultSubpixelAccuracy );
+        gd.addCheckbox( "Write_pyramid (DeepZoom) instead of output.jpg", defaultWritePyramid );
         gd.addStringField( "Tile_configuration_filename", defaultTileConfiguration, 50 );
 
         gd.addDirectoryField( "Directory", defaultDirectory, 50 );
@@ -120,6 +125,7 @@ public class Stitching_Slide implements PlugIn
         final StitchingParameters params = new StitchingParameters();
         params.fusionMethod = defaultFusionMethod = gd.getNextChoiceIndex();
         params.subpixelAccuracy = defaultSubpixelAccuracy = gd.getNextBoolean();
+        final boolean writePyramid = defaultWritePyramid = gd.getNextBoolean();
 
         String tileConfigurationFilename = gd.getNextString();
 
@@ -174,6 +180,24 @@ public class Stitching_Slide implements PlugIn
             models.add((InvertibleBoundable)element.getModel());
         }
 
+        if ( writePyramid )
+        {
+            // the slide is never assembled, the pyramid is written while fusing
+            final double[] displayRange = PyramidBlockSink.getDisplayRange( images );
+
+            if ( is32bit )
+                BlockFusion.fuse( new FloatType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, PyramidBlockSink.getBlockSize(), new PyramidBlockSink< FloatType >( inputDirectory, "output", displayRange ) );
+            else if ( is16bit )
+                BlockFusion.fuse( new UnsignedShortType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, PyramidBlockSink.getBlockSize(), new PyramidBlockSink< UnsignedShortType >( inputDirectory, "output", displayRange ) );
+            else if ( is8bit )
+                BlockFusion.fuse( new UnsignedByteType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, false, PyramidBlockSink.getBlockSize(), new PyramidBlockSink< UnsignedByteType >( inputDirectory, "output", displayRange ) );
+            else
+                IJ.log( "Unknown image type for fusion." );
+
+            IJ.log( "Finished writing pyramid" );
+            return;
+        }
+
         if ( is32bit )
             imp = Fusion.fuse( new FloatType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, null, noOverlap, false, params.displayFusion );
         else if ( is16bit )
@@ -41,6 +41,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import mpicbg.stitching.RegistrationExecutor;
 import ome.units.quantity.Length;
 import loci.formats.ChannelSeparator;
 import loci.formats.FormatException;
@@ -1024,7 +1025,8 @@ public class CommonFunctions
 
 	public static Thread[] newThreads()
 	{
-		int nthread = Runtime.getRuntime().availableProcessors();
+		// within a registration the parallelism of its pool
+		int nthread = RegistrationExecutor.getNumThreads();
 		return new Thread[nthread];
 	}
 
@@ -1035,6 +1037,13 @@ public class CommonFunctions
 
 	public static void startAndJoin(Thread[] threads)
 	{
+		// within a registration the threads become tasks of its pool
+		if (RegistrationExecutor.isWorker())
+		{
+			RegistrationExecutor.startAndJoin(threads);
+			return;
+		}
+
 		for (int ithread = 0; ithread < threads.length; ++ithread)
 		{
 			threads[ithread].setPriority(Thread.NORM_PRIORITY);
@@ -0,0 +1,87 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.stitching.fusion.AveragePixelFusion;
+import mpicbg.stitching.fusion.AveragePixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.BatchPixelFusion;
+import mpicbg.stitching.fusion.BatchPixelFusionAdapter;
+import mpicbg.stitching.fusion.BlendingPixelFusion;
+import mpicbg.stitching.fusion.BlendingPixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.ImageInterpolation;
+import mpicbg.stitching.fusion.MaxPixelFusion;
+import mpicbg.stitching.fusion.MaxPixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.MedianPixelFusion;
+import mpicbg.stitching.fusion.MedianPixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.MinPixelFusion;
+import mpicbg.stitching.fusion.MinPixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.OverlapFusion;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link BatchPixelFusion} implementations.
+ */
+public class BatchPixelFusionTest {
+
+	/**
+	 * Test that fusing a row at once gives the same values as fusing it pixel by
+	 * pixel, for rows covered by 0 to 5 images with some values of 0.
+	 */
+	@Test
+	public void testSameAsPixelByPixel() {
+		final ArrayList<ImageInterpolation<FloatType>> images =
+			new ArrayList<ImageInterpolation<FloatType>>();
+
+		for (int i = 0; i < 5; i++)
+			images.add(new ImageInterpolation<FloatType>(ArrayImgs.floats(100, 80),
+				new NearestNeighborInterpolatorFactory<FloatType>(), false));
+
+		final BatchPixelFusion[] fusions =
+			{ new AveragePixelFusion(), new AveragePixelFusionIgnoreZero(),
+				new MaxPixelFusion(), new MaxPixelFusionIgnoreZero(),
+				new MinPixelFusion(), new MinPixelFusionIgnoreZero(),
+				new MedianPixelFusion(), new MedianPixelFusionIgnoreZero(),
+				new BlendingPixelFusion(images),
+				new BlendingPixelFusionIgnoreZero(images), new OverlapFusion() };
+
+		final Random rnd = new Random(5);
+		final int length = 70;
+
+		for (final BatchPixelFusion fusion : fusions) {
+			// the adapter fuses pixel by pixel
+			final BatchPixelFusion reference =
+				new BatchPixelFusionAdapter(fusion.copy());
+
+			for (int numImages = 0; numImages <= 5; numImages++) {
+				final float[][] values = new float[numImages][length];
+				final int[] ids = new int[numImages];
+				final double[][] start = new double[numImages][];
+
+				for (int k = 0; k < numImages; k++) {
+					ids[k] = k;
+					start[k] = new double[] { rnd.nextInt(30), rnd.nextInt(80) };
+
+					for (int i = 0; i < length; i++)
+						values[k][i] = rnd.nextInt(4) == 0 ? 0 : rnd.nextFloat() * 1000;
+				}
+
+				final float[] expected = new float[length];
+				final float[] actual = new float[length];
+
+				reference.fuseRow(values, ids, start, length, expected);
+				fusion.fuseRow(values, ids, start, length, actual);
+
+				for (int i = 0; i < length; i++)
+					assertEquals(fusion.getClass().getSimpleName() + " " + numImages,
+						expected[i], actual[i], 1e-3);
+			}
+		}
+	}
+}
@@ -108,6 +108,33 @@ public class ClassifiedRegionTest {
 		assertFalse(equalRegions(region1, region2));
 	}
 
+	/**
+	 * Test the {@link ClassifiedRegion#intersection(ClassifiedRegion)} method.
+	 */
+	@Test
+	public void testIntersection() {
+		region1.addClass(3);
+
+		ClassifiedRegion region2 =
+			new ClassifiedRegion(new Interval(200, 300), new Interval(-5, 50),
+				new Interval(3, 6));
+		region2.addClass(7);
+
+		ClassifiedRegion expected =
+			new ClassifiedRegion(new Interval(200, 256), new Interval(0, 50),
+				new Interval(3, 6));
+
+		ClassifiedRegion intersection = region1.intersection(region2);
+		assertTrue(equalRegions(expected, intersection));
+		// Only the classes of the region we intersected
+		assertTrue(intersection.classArray().length == 1 &&
+			intersection.classArray()[0] == 3);
+
+		// verify no intersection
+		region2.get(0).setMin(257);
+		assertTrue(region1.intersection(region2) == null);
+	}
+
 	/**
 	 * Test with bad calls to the {@link ClassifiedRegion#set(Interval, int)}
 	 * method.
@@ -0,0 +1,164 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.InvertibleCoordinateTransform;
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.fusion.AveragePixelFusion;
+import mpicbg.stitching.fusion.FusedView;
+import mpicbg.stitching.fusion.Fusion;
+import mpicbg.stitching.fusion.ImageInterpolation;
+import mpicbg.stitching.fusion.PixelFusion;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link FusedView} class.
+ */
+public class FusedViewTest {
+
+	/**
+	 * Test that reading the view in random order, with a budget that only holds
+	 * a few cells, gives the same pixels as fusing the whole image as one cell.
+	 */
+	@Test
+	public void testSameAsFusedImage() {
+		final Random rnd = new Random(7);
+		final ArrayList<ImageInterpolation<? extends RealType<?>>> input =
+			new ArrayList<ImageInterpolation<? extends RealType<?>>>();
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+		final int[][] imgSizes = new int[6][];
+
+		for (int i = 0; i < 6; i++) {
+			final float[] data = new float[50 * 40];
+
+			for (int j = 0; j < data.length; j++)
+				data[j] = rnd.nextInt(1000);
+
+			input.add(new ImageInterpolation<FloatType>(ArrayImgs.floats(data, 50, 40),
+				new NearestNeighborInterpolatorFactory<FloatType>(), false));
+
+			final TranslationModel2D model = new TranslationModel2D();
+			model.set((i % 3) * 40 + rnd.nextInt(5), (i / 3) * 30 + rnd.nextInt(5));
+			models.add(model);
+			imgSizes[i] = new int[] { 50, 40 };
+		}
+
+		final double[] offset = new double[2];
+		final int[] size = new int[2];
+		Fusion.estimateBounds(offset, size, imgSizes, models, 2);
+
+		final PixelFusion fusion = new AveragePixelFusion();
+
+		// the whole image as one cell
+		final FusedView<FloatType> expected =
+			new FusedView<FloatType>(new FloatType(), input, models, offset, size,
+				fusion, size, Long.MAX_VALUE);
+
+		// cells of 16x16 pixels, at most 4 are kept
+		final FusedView<FloatType> view =
+			new FusedView<FloatType>(new FloatType(), input, models, offset, size,
+				fusion, new int[] { 16, 16 }, 4 * 16 * 16 * 4);
+
+		final RandomAccess<FloatType> ra = view.randomAccess();
+		final RandomAccess<FloatType> ref = expected.randomAccess();
+
+		for (int k = 0; k < 5000; k++) {
+			final long[] pos = { rnd.nextInt(size[0]), rnd.nextInt(size[1]) };
+			ra.setPosition(pos);
+			ref.setPosition(pos);
+			assertEquals(ref.get().get(), ra.get().get(), 0);
+		}
+
+		assertTrue(view.getNumFusedCells() > (size[0] / 16) * (size[1] / 16));
+
+		// outside of the image
+		ra.setPosition(new long[] { -1, 0 });
+		assertEquals(0, ra.get().get(), 0);
+	}
+
+	/**
+	 * Test that a cell that cannot be fused is reported and not kept as an
+	 * empty cell.
+	 */
+	@Test
+	public void testFailedCellIsNotKept() {
+		final ArrayList<ImageInterpolation<? extends RealType<?>>> input =
+			new ArrayList<ImageInterpolation<? extends RealType<?>>>();
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+
+		final float[] data = new float[20 * 20];
+		Arrays.fill(data, 1);
+		input.add(new ImageInterpolation<FloatType>(ArrayImgs.floats(data, 20, 20),
+			new NearestNeighborInterpolatorFactory<FloatType>(), false));
+		models.add(new NoninvertibleModel());
+
+		final FusedView<FloatType> view =
+			new FusedView<FloatType>(new FloatType(), input, models, new double[2],
+				new int[] { 20, 20 }, new AveragePixelFusion(), new int[] { 10, 10 },
+				Long.MAX_VALUE);
+
+		for (int k = 0; k < 2; k++) {
+			try {
+				view.randomAccess().get();
+				fail("reading a cell that cannot be fused should fail");
+			}
+			catch (final IllegalStateException e) {
+				assertTrue(e.getCause() instanceof NoninvertibleModelException);
+			}
+		}
+
+		assertEquals(0, view.getNumFusedCells());
+	}
+
+	/**
+	 * A model that places an image at the origin but cannot be inverted.
+	 */
+	private static class NoninvertibleModel implements InvertibleBoundable {
+
+		@Override
+		public double[] apply(final double[] l) {
+			return l.clone();
+		}
+
+		@Override
+		public void applyInPlace(final double[] l) {}
+
+		@Override
+		public double[] applyInverse(final double[] l)
+			throws NoninvertibleModelException
+		{
+			throw new NoninvertibleModelException("test");
+		}
+
+		@Override
+		public void applyInverseInPlace(final double[] l)
+			throws NoninvertibleModelException
+		{
+			throw new NoninvertibleModelException("test");
+		}
+
+		@Override
+		public InvertibleCoordinateTransform createInverse() {
+			return null;
+		}
+
+		@Override
+		public void estimateBounds(final double[] min, final double[] max) {}
+	}
+}
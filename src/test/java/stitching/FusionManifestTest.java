@@ -0,0 +1,150 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.fusion.BlockFusion;
+import mpicbg.stitching.fusion.FusionManifest;
+import mpicbg.stitching.fusion.TiffBlockSink;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the {@link FusionManifest} class.
+ */
+public class FusionManifestTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Test that fusing again only writes the blocks touched by a moved tile.
+	 */
+	@Test
+	public void testOnlyChangedBlocks() throws Exception {
+		final Random rnd = new Random(3);
+		final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+
+		// 3x3 tiles of 100x100 pixels overlapping by 10 pixels
+		for (int i = 0; i < 9; i++) {
+			final ShortProcessor ip = new ShortProcessor(100, 100);
+
+			for (int j = 0; j < 100 * 100; j++)
+				ip.set(j, rnd.nextInt(1000));
+
+			images.add(new ImagePlus("tile" + i, ip));
+
+			final TranslationModel2D model = new TranslationModel2D();
+			model.set((i % 3) * 90, (i / 3) * 90);
+			models.add(model);
+		}
+
+		final File dir = folder.getRoot();
+		final int[] blockSize = { 32, 32 };
+
+		// first time all 9x9 blocks are written
+		assertEquals(81, fuse(images, models, blockSize, dir));
+		assertTrue(new File(dir, FusionManifest.defaultFileName).exists());
+
+		// nothing changed
+		assertEquals(0, fuse(images, models, blockSize, dir));
+
+		// the center tile moves by one pixel, it covers the blocks 2-5 in x and y
+		((TranslationModel2D) models.get(4)).set(91, 90);
+		assertEquals(16, fuse(images, models, blockSize, dir));
+		assertEquals(0, fuse(images, models, blockSize, dir));
+
+		// a missing block is written again
+		assertTrue(new File(dir, TiffBlockSink.getFileName(1, 1, new long[] { 0,
+			0 })).delete());
+		assertEquals(1, fuse(images, models, blockSize, dir));
+	}
+
+	/**
+	 * Test that a block that cannot be written leaves no manifest behind, so
+	 * that the next fusion writes all blocks again.
+	 */
+	@Test
+	public void testFailedBlockWrite() throws Exception {
+		final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+
+		// 2x1 tiles of 100x100 pixels overlapping by 10 pixels
+		for (int i = 0; i < 2; i++) {
+			final ShortProcessor ip = new ShortProcessor(100, 100);
+			ip.setValue(100 + i);
+			ip.fill();
+			images.add(new ImagePlus("tile" + i, ip));
+
+			final TranslationModel2D model = new TranslationModel2D();
+			model.set(i * 90, 0);
+			models.add(model);
+		}
+
+		final File dir = folder.getRoot();
+		final int[] blockSize = { 64, 64 };
+		final File manifest = new File(dir, FusionManifest.defaultFileName);
+
+		assertEquals(6, fuse(images, models, blockSize, dir));
+		assertTrue(manifest.exists());
+
+		// a directory in place of a block file cannot be overwritten
+		final File blocked =
+			new File(dir, TiffBlockSink.getFileName(1, 1, new long[] { 64, 0 }));
+		assertTrue(blocked.delete());
+		assertTrue(blocked.mkdir());
+
+		// moving a tile at the border changes all blocks, one of them fails
+		((TranslationModel2D) models.get(1)).set(91, 0);
+		assertEquals(5, fuse(images, models, blockSize, dir));
+		assertFalse(manifest.exists());
+
+		// without a manifest all blocks are written again
+		assertTrue(blocked.delete());
+		assertEquals(6, fuse(images, models, blockSize, dir));
+		assertTrue(manifest.exists());
+	}
+
+	private int fuse(final ArrayList<ImagePlus> images,
+		final ArrayList<InvertibleBoundable> models, final int[] blockSize,
+		final File dir)
+	{
+		final AtomicInteger written = new AtomicInteger(0);
+		final TiffBlockSink<UnsignedShortType> sink =
+			new TiffBlockSink<UnsignedShortType>(dir.getAbsolutePath())
+		{
+
+			@Override
+			public void add(final int t, final int c, final long[] min,
+				final Img<UnsignedShortType> block) throws IOException
+			{
+				super.add(t, c, min, block);
+				written.incrementAndGet();
+			}
+		};
+
+		BlockFusion.fuse(new UnsignedShortType(), images, models, 2, false, 1,
+			false, blockSize, sink, new FusionManifest(dir.getAbsolutePath()));
+
+		return written.get();
+	}
+}
@@ -0,0 +1,88 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel3D;
+import mpicbg.stitching.fusion.Fusion;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link Fusion#fuseProjection}.
+ */
+public class FusionProjectionTest {
+
+	/**
+	 * Test that the max, sum and mean projections are the projections of the
+	 * fused volume.
+	 */
+	@Test
+	public void testSameAsProjectedVolume() {
+		final Random rnd = new Random(11);
+		final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+		final float[][] translations = { { 0, 0, 0 }, { 30, 5, 2 }, { 12, 24, 5 } };
+
+		for (final float[] t : translations) {
+			final ImageStack stack = new ImageStack(40, 30);
+
+			for (int z = 0; z < 8; z++) {
+				final ShortProcessor ip = new ShortProcessor(40, 30);
+
+				for (int i = 0; i < 40 * 30; i++)
+					ip.set(i, rnd.nextInt(1000));
+
+				stack.addSlice("", ip);
+			}
+
+			images.add(new ImagePlus("tile", stack));
+
+			final TranslationModel3D model = new TranslationModel3D();
+			model.set(t[0], t[1], t[2]);
+			models.add(model);
+		}
+
+		final ImageStack volume =
+			Fusion.fuse(new UnsignedShortType(), images, models, 3, false, 1, null,
+				false, false, false).getStack();
+		final int width = volume.getWidth(), height = volume.getHeight();
+		final int depth = volume.getSize();
+
+		for (int type = 0; type < 3; type++) {
+			final ImagePlus projection =
+				Fusion.fuseProjection(new UnsignedShortType(), images, models, false,
+					1, false, type);
+
+			assertEquals(width, projection.getWidth());
+			assertEquals(height, projection.getHeight());
+			assertEquals(type == 0 ? 16 : 32, projection.getBitDepth());
+
+			for (int y = 0; y < height; y++)
+				for (int x = 0; x < width; x++) {
+					double max = 0, sum = 0;
+
+					for (int z = 1; z <= depth; z++) {
+						final double value = volume.getProcessor(z).getf(x, y);
+						max = Math.max(max, value);
+						sum += value;
+					}
+
+					final double expected =
+						type == 0 ? max : type == 1 ? sum : sum / depth;
+
+					assertEquals(expected, projection.getProcessor().getf(x, y),
+						1e-3 * Math.max(1, expected));
+				}
+		}
+	}
+}
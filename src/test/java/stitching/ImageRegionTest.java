@@ -0,0 +1,76 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ShortProcessor;
+
+import mpicbg.stitching.ImageRegion;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link ImageRegion} class.
+ */
+public class ImageRegionTest {
+
+	/**
+	 * Test that a roi and z-range of a two channel stack is read with the
+	 * channels averaged, also for a region of the region.
+	 */
+	@Test
+	public void testAverageChannels() {
+		final int w = 20, h = 15, channels = 2, slices = 6;
+		final ImageStack stack = new ImageStack(w, h);
+
+		// the stack is ordered by channel, then slice
+		for (int z = 0; z < slices; z++)
+			for (int c = 0; c < channels; c++) {
+				final ShortProcessor ip = new ShortProcessor(w, h);
+
+				for (int y = 0; y < h; y++)
+					for (int x = 0; x < w; x++)
+						ip.set(x, y, value(x, y, z, c));
+
+				stack.addSlice("", ip);
+			}
+
+		final ImagePlus imp = new ImagePlus("stack", stack);
+		imp.setDimensions(channels, slices, 1);
+
+		final ImageRegion region =
+			ImageRegion.wrap(imp, new Roi(4, 3, 10, 8), new int[] { 1, 4 }, 0, 1);
+
+		assertEquals(3, region.numDimensions());
+		assertEquals(10, region.getSize(0));
+		assertEquals(8, region.getSize(1));
+		assertEquals(4, region.getSize(2));
+
+		final float[] row = new float[10];
+
+		for (int z = 0; z < 4; z++)
+			for (int y = 0; y < 8; y++) {
+				region.getRow(0, y, z, 10, row);
+
+				for (int x = 0; x < 10; x++)
+					assertEquals(average(x + 4, y + 3, z + 1), row[x], 0);
+			}
+
+		final ImageRegion part =
+			region.getRegion(new int[] { 2, 1, 1 }, new int[] { 5, 5, 2 });
+
+		part.getRow(1, 2, 1, 3, row);
+
+		for (int x = 0; x < 3; x++)
+			assertEquals(average(x + 1 + 2 + 4, 2 + 1 + 3, 1 + 1 + 1), row[x], 0);
+	}
+
+	private static int value(final int x, final int y, final int z, final int c) {
+		return x + 7 * y + 100 * z + 1000 * c;
+	}
+
+	private static float average(final int x, final int y, final int z) {
+		return (value(x, y, z, 0) + value(x, y, z, 1)) / 2f;
+	}
+}
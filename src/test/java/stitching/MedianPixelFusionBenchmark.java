@@ -0,0 +1,118 @@
+package stitching;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import mpicbg.stitching.fusion.MedianPixelFusion;
+import mpicbg.stitching.fusion.PixelFusion;
+import stitching.utils.Log;
+
+/**
+ * Compares the {@link MedianPixelFusion} with the previous implementation that
+ * sorted a list of boxed values for every pixel. Not run as part of the tests,
+ * start it with the number of pixels as optional argument. The default of
+ * 100000 pixels needs about 30 MB for 32 overlapping values.
+ */
+public class MedianPixelFusionBenchmark {
+
+	/**
+	 * The previous implementation, for reference.
+	 */
+	static class BoxedMedianPixelFusion implements PixelFusion {
+
+		final ArrayList<Double> list = new ArrayList<Double>();
+
+		@Override
+		public void clear() {
+			list.clear();
+		}
+
+		@Override
+		public void addValue(final double value, final int imageId,
+			final double[] localPosition)
+		{
+			list.add(value);
+		}
+
+		@Override
+		public double getValue() {
+			if (list.size() == 0) return 0;
+			Collections.sort(list);
+			final int size = list.size();
+
+			if (size % 2 == 1) return list.get(size / 2);
+			return (list.get(size / 2 - 1) + list.get(size / 2)) / 2.0f;
+		}
+
+		@Override
+		public PixelFusion copy() {
+			return new BoxedMedianPixelFusion();
+		}
+	}
+
+	public static void main(final String[] args) {
+		final int numPixels = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final int[] overlaps = { 1, 2, 3, 4, 5, 6, 8, 16, 32 };
+
+		for (final int numValues : overlaps) {
+			final double[][] values = createValues(numPixels, numValues);
+
+			final PixelFusion boxed = new BoxedMedianPixelFusion();
+			final PixelFusion primitive = new MedianPixelFusion(numValues);
+
+			// same result
+			for (int i = 0; i < numPixels; ++i) {
+				if (fuse(boxed, values[i]) != fuse(primitive, values[i])) {
+					throw new RuntimeException("Different median for " + numValues +
+						" values at pixel " + i);
+				}
+			}
+
+			// warm up, then measure
+			time(boxed, values);
+			time(primitive, values);
+			final long tBoxed = time(boxed, values);
+			final long tPrimitive = time(primitive, values);
+
+			Log.info(numValues + " values: boxed " + tBoxed / 1000000 +
+				" ms, primitive " + tPrimitive / 1000000 + " ms (" +
+				String.format("%.1f", (double) tBoxed / tPrimitive) + "x)");
+		}
+	}
+
+	private static double[][] createValues(final int numPixels,
+		final int numValues)
+	{
+		final Random rnd = new Random(numValues);
+		final double[][] values = new double[numPixels][numValues];
+
+		for (final double[] v : values)
+			for (int i = 0; i < numValues; ++i)
+				v[i] = rnd.nextInt(65536);
+
+		return values;
+	}
+
+	private static double fuse(final PixelFusion fusion, final double[] values) {
+		fusion.clear();
+
+		for (int i = 0; i < values.length; ++i)
+			fusion.addValue(values[i], i, null);
+
+		return fusion.getValue();
+	}
+
+	private static long time(final PixelFusion fusion, final double[][] values) {
+		final long start = System.nanoTime();
+		double sum = 0;
+
+		for (final double[] v : values)
+			sum += fuse(fusion, v);
+
+		// make sure the result is used
+		if (sum == -1) Log.info("" + sum);
+
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,100 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.stitching.fusion.BlockFusion;
+import mpicbg.stitching.fusion.PyramidBlockSink;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the {@link PyramidBlockSink} class.
+ */
+public class PyramidBlockSinkTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Test that a mosaic smaller than the tiles in y and not square is written
+	 * completely, and that all tiles use the same display range.
+	 */
+	@Test
+	public void testSmallMosaic() {
+		final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+		final ArrayList<InvertibleBoundable> models =
+			new ArrayList<InvertibleBoundable>();
+
+		// two constant tiles of 100x50 pixels, the mosaic is 180x50
+		for (int i = 0; i < 2; i++) {
+			final ShortProcessor ip = new ShortProcessor(100, 50);
+			ip.setValue(200 + i * 600);
+			ip.fill();
+
+			final ImagePlus imp = new ImagePlus("tile" + i, ip);
+			imp.setDisplayRange(0, 1000);
+			images.add(imp);
+
+			final TranslationModel2D model = new TranslationModel2D();
+			model.set(i * 80, 0);
+			models.add(model);
+		}
+
+		final File dir = folder.getRoot();
+		final int tileSize = 64;
+		final PyramidBlockSink<UnsignedShortType> sink =
+			new PyramidBlockSink<UnsignedShortType>(dir.getAbsolutePath(), "fused",
+				"png", tileSize);
+		sink.setDisplayRange(0, 1000);
+
+		// the fusion makes the blocks only 50 pixels high
+		BlockFusion.fuse(new UnsignedShortType(), images, models, 2, false, 1,
+			false, new int[] { tileSize, tileSize }, sink);
+
+		final File files = new File(dir, "fused_t1_c1_files");
+		assertTrue(new File(dir, "fused_t1_c1.dzi").exists());
+
+		// 180x50 is level 8: 3 tiles, 90x25 is level 7: 2 tiles, levels 0-6: 1 tile
+		assertEquals(3, new File(files, "8").list().length);
+		assertEquals(2, new File(files, "7").list().length);
+
+		for (int level = 0; level <= 6; level++)
+			assertEquals(1, new File(files, "" + level).list().length);
+
+		assertEquals(9, files.list().length);
+
+		// one display range for all tiles, a constant tile is not stretched
+		final ImagePlus first = new ImagePlus(new File(files, "8/0_0.png").getAbsolutePath());
+		final ImagePlus last = new ImagePlus(new File(files, "8/2_0.png").getAbsolutePath());
+
+		assertEquals(64, first.getWidth());
+		assertEquals(50, first.getHeight());
+		assertEquals(52, last.getWidth());
+		assertEquals(toByte(200), first.getProcessor().get(10, 10));
+		assertEquals(toByte(800), last.getProcessor().get(40, 10));
+
+		final ImagePlus single = new ImagePlus(new File(files, "0/0_0.png").getAbsolutePath());
+		assertEquals(1, single.getWidth());
+		assertEquals(1, single.getHeight());
+	}
+
+	private static int toByte(final int value) {
+		final ShortProcessor ip = new ShortProcessor(1, 1);
+		ip.set(0, value);
+		ip.setMinAndMax(0, 1000);
+
+		return ip.convertToByte(true).get(0);
+	}
+}
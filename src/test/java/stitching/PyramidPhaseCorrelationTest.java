@@ -0,0 +1,66 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import mpicbg.stitching.PairWiseStitchingResult;
+import mpicbg.stitching.PyramidPhaseCorrelation;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link PyramidPhaseCorrelation} class.
+ */
+public class PyramidPhaseCorrelationTest {
+
+	/**
+	 * Test that the shift found on downsampled images is the same as the one
+	 * found at full resolution.
+	 */
+	@Test
+	public void testSameAsFullResolution() {
+		final Random rnd = new Random(7);
+		final int w = 300, h = 300, t = 200;
+		final float[] sample = new float[w * h];
+
+		// blobs, the tiles get their own noise
+		for (int k = 0; k < 2500; k++) {
+			final double cx = rnd.nextDouble() * w, cy = rnd.nextDouble() * h;
+			final double s = 1 + rnd.nextDouble() * 3, a = rnd.nextDouble() * 100;
+
+			for (int y = Math.max(0, (int) cy - 10); y < Math.min(h, (int) cy + 11); y++)
+				for (int x = Math.max(0, (int) cx - 10); x < Math.min(w, (int) cx + 11); x++)
+					sample[y * w + x] +=
+						a * Math.exp(-((x - cx) * (x - cx) + (y - cy) * (y - cy)) /
+							(2 * s * s));
+		}
+
+		final int[][] shifts = { { 90, 3 }, { -5, 88 }, { 86, -6 } };
+		final int[] size = { t, t };
+
+		for (final int[] shift : shifts) {
+			final int x0 = shift[0] < 0 ? 90 : 5, y0 = shift[1] < 0 ? 90 : 5;
+			final float[] img1 = new float[t * t];
+			final float[] img2 = new float[t * t];
+
+			for (int y = 0; y < t; y++)
+				for (int x = 0; x < t; x++) {
+					img1[y * t + x] =
+						20 + sample[(y0 + y) * w + x0 + x] + 5 * (float) rnd.nextGaussian();
+					img2[y * t + x] =
+						20 + sample[(y0 + y + shift[1]) * w + x0 + x + shift[0]] + 5 *
+							(float) rnd.nextGaussian();
+				}
+
+			for (int levels = 0; levels <= 2; levels++) {
+				final PairWiseStitchingResult result =
+					PyramidPhaseCorrelation.computePhaseCorrelation(img1, size, img2,
+						size, levels, 5, false);
+
+				for (int d = 0; d < 2; d++)
+					assertEquals("levels " + levels, shift[d], result.getOffset(d), 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.stitching.fusion.ClassifiedRegion;
+import mpicbg.stitching.fusion.Fusion;
+import mpicbg.stitching.fusion.Interval;
+import mpicbg.stitching.fusion.RegionIndex;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link RegionIndex} class and that
+ * {@link Fusion#buildRegions(java.util.Collection, boolean)} builds the same
+ * regions with and without it.
+ */
+public class RegionIndexTest {
+
+	/**
+	 * Test that the index finds intersecting regions and forgets removed ones.
+	 */
+	@Test
+	public void testFindIntersecting() {
+		final RegionIndex index = new RegionIndex(new int[] { 10, 10 });
+		final ClassifiedRegion r1 =
+			new ClassifiedRegion(new Interval(0, 9), new Interval(0, 9));
+		final ClassifiedRegion r2 =
+			new ClassifiedRegion(new Interval(30, 59), new Interval(-20, 5));
+
+		index.add(r1);
+		index.add(r2);
+
+		assertSame(r1, index.findIntersecting(new ClassifiedRegion(new Interval(
+			9, 12), new Interval(9, 12))));
+		assertSame(r2, index.findIntersecting(new ClassifiedRegion(new Interval(
+			50, 100), new Interval(-100, -20))));
+		assertNull(index.findIntersecting(new ClassifiedRegion(new Interval(10,
+			29), new Interval(0, 100))));
+
+		index.remove(r2);
+		assertEquals(1, index.size());
+		assertNull(index.findIntersecting(new ClassifiedRegion(new Interval(50,
+			100), new Interval(-100, -20))));
+	}
+
+	/**
+	 * Test with random grids of overlapping tiles that the regions built with the
+	 * index cover every pixel exactly once and with the same classes as the
+	 * regions built by comparing with all placed regions.
+	 */
+	@Test
+	public void testBuildRegions() {
+		final Random rnd = new Random(42);
+
+		for (int run = 0; run < 20; run++) {
+			final int numDimensions = 2 + run % 2;
+			final List<ClassifiedRegion> tiles = createGrid(rnd, numDimensions);
+
+			final List<ClassifiedRegion> linear = Fusion.buildRegions(tiles, false);
+			final List<ClassifiedRegion> indexed = Fusion.buildRegions(tiles, true);
+
+			final int[][] expected = classify(tiles, tiles, false);
+
+			assertClassesEqual(expected, classify(tiles, linear, true));
+			assertClassesEqual(expected, classify(tiles, indexed, true));
+		}
+	}
+
+	/**
+	 * Creates a grid of tiles with random overlap and jitter, some share edges.
+	 */
+	private List<ClassifiedRegion> createGrid(final Random rnd,
+		final int numDimensions)
+	{
+		final List<ClassifiedRegion> tiles = new ArrayList<ClassifiedRegion>();
+		final int[] numTiles = new int[numDimensions];
+		int total = 1;
+
+		for (int d = 0; d < numDimensions; d++) {
+			numTiles[d] = numDimensions == 2 ? 3 + rnd.nextInt(3) : 2 + rnd.nextInt(2);
+			total *= numTiles[d];
+		}
+
+		for (int i = 0; i < total; i++) {
+			final ClassifiedRegion tile = new ClassifiedRegion(numDimensions);
+			int rest = i;
+
+			for (int d = 0; d < numDimensions; d++) {
+				final int min = (rest % numTiles[d]) * 8 + rnd.nextInt(4) - 2;
+				tile.set(new Interval(min, min + 9 + rnd.nextInt(2)), d);
+				rest /= numTiles[d];
+			}
+
+			tile.addClass(i);
+			tiles.add(tile);
+		}
+
+		return tiles;
+	}
+
+	/**
+	 * Computes the sorted classes of every pixel within the bounding box of the
+	 * tiles.
+	 *
+	 * @param disjoint - if the regions must not overlap
+	 */
+	private int[][] classify(final List<ClassifiedRegion> tiles,
+		final List<ClassifiedRegion> regions, final boolean disjoint)
+	{
+		final int n = tiles.get(0).size();
+		final int[] min = new int[n];
+		final int[] size = new int[n];
+		int numPixels = 1;
+
+		for (int d = 0; d < n; d++) {
+			min[d] = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+
+			for (final ClassifiedRegion t : tiles) {
+				min[d] = Math.min(min[d], t.get(d).min());
+				max = Math.max(max, t.get(d).max());
+			}
+
+			size[d] = max - min[d] + 1;
+			numPixels *= size[d];
+		}
+
+		final int[][] classes = new int[numPixels][];
+
+		for (final ClassifiedRegion r : regions) {
+			final int[] pos = new int[n];
+
+			for (int d = 0; d < n; d++)
+				pos[d] = r.get(d).min();
+
+			while (true) {
+				int index = 0;
+
+				for (int d = n - 1; d >= 0; d--)
+					index = index * size[d] + pos[d] - min[d];
+
+				final int[] c = r.classArray().clone();
+				Arrays.sort(c);
+
+				if (classes[index] == null) {
+					classes[index] = c;
+				}
+				else if (disjoint) {
+					fail("Regions overlap at " + Arrays.toString(pos));
+				}
+				else {
+					final int[] merged = Arrays.copyOf(classes[index], classes[index].length + c.length);
+					System.arraycopy(c, 0, merged, classes[index].length, c.length);
+					Arrays.sort(merged);
+					classes[index] = merged;
+				}
+
+				// next position
+				int d = 0;
+				while (d < n && pos[d] == r.get(d).max()) {
+					pos[d] = r.get(d).min();
+					d++;
+				}
+
+				if (d == n) break;
+
+				pos[d]++;
+			}
+		}
+
+		return classes;
+	}
+
+	private void assertClassesEqual(final int[][] expected, final int[][] actual) {
+		for (int i = 0; i < expected.length; i++) {
+			if (!Arrays.equals(expected[i], actual[i])) {
+				fail("Different classes at pixel " + i + ": " +
+					Arrays.toString(expected[i]) + " != " + Arrays.toString(actual[i]));
+			}
+		}
+	}
+}
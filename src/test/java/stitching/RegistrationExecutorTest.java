@@ -0,0 +1,114 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.stitching.RegistrationExecutor;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link RegistrationExecutor} class.
+ */
+public class RegistrationExecutorTest {
+
+	/**
+	 * Test that threads started within the tasks of the executor run on its
+	 * workers instead of new threads.
+	 */
+	@Test
+	public void testNestedThreadsAreTasks() {
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		final AtomicInteger count = new AtomicInteger(0);
+		final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+
+		for (int i = 0; i < 8; i++)
+			tasks.add(new Runnable() {
+
+				@Override
+				public void run() {
+					final Thread[] nested = CommonFunctions.newThreads();
+
+					for (int j = 0; j < nested.length; j++)
+						nested[j] = new Thread(new Runnable() {
+
+							@Override
+							public void run() {
+								assertTrue(RegistrationExecutor.isWorker());
+								threads.add(Thread.currentThread());
+								count.incrementAndGet();
+							}
+						});
+
+					CommonFunctions.startAndJoin(nested);
+				}
+			});
+
+		final RegistrationExecutor executor = new RegistrationExecutor(2);
+		executor.run(tasks, false);
+		executor.shutdown();
+
+		// the nested work is split by the parallelism of the pool
+		assertEquals(8 * 2, count.get());
+		assertTrue(threads.size() <= 2);
+		assertTrue(!RegistrationExecutor.isWorker());
+	}
+
+	/**
+	 * Test that a task run alone to save memory still uses all threads of the
+	 * executor.
+	 */
+	@Test
+	public void testOneAtATimeUsesAllThreads() {
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		final AtomicInteger numThreadsPerTask = new AtomicInteger(0);
+		final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+
+		for (int i = 0; i < 3; i++)
+			tasks.add(new Runnable() {
+
+				@Override
+				public void run() {
+					numThreadsPerTask.set(RegistrationExecutor.getNumThreadsPerTask());
+
+					// the nested threads wait for each other, one thread alone cannot run them
+					final CountDownLatch latch = new CountDownLatch(2);
+					final Thread[] nested = CommonFunctions.newThreads();
+
+					for (int j = 0; j < nested.length; j++)
+						nested[j] = new Thread(new Runnable() {
+
+							@Override
+							public void run() {
+								threads.add(Thread.currentThread());
+								latch.countDown();
+
+								try {
+									latch.await(10, TimeUnit.SECONDS);
+								}
+								catch (final InterruptedException e) {
+									Thread.currentThread().interrupt();
+								}
+							}
+						});
+
+					CommonFunctions.startAndJoin(nested);
+				}
+			});
+
+		final RegistrationExecutor executor = new RegistrationExecutor(4);
+		executor.run(tasks, true);
+		executor.shutdown();
+
+		assertEquals(4, numThreadsPerTask.get());
+		assertTrue(threads.size() >= 2);
+	}
+}
@@ -0,0 +1,102 @@
+package stitching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import mpicbg.stitching.fusion.ShiftedImageInterpolation;
+import net.imglib2.RandomAccess;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link ShiftedImageInterpolation} class.
+ */
+public class ShiftedImageInterpolationTest {
+
+	/**
+	 * Test that a linear ramp is resampled exactly by the linear and the cubic
+	 * kernel, the cubic kernel only away from the borders.
+	 */
+	@Test
+	public void testRamp() {
+		final Img<FloatType> ramp = createRamp(20, 10);
+		final double[] shift = { 0.3, 0.75 };
+
+		for (final int order : new int[] { 1, 3 }) {
+			final ShiftedImageInterpolation shifted =
+				ShiftedImageInterpolation.create(ramp, shift, order);
+
+			assertArrayEquals(shift, shifted.getShift(), 0);
+			assertEquals(20, shifted.dimension(0));
+			assertEquals(10, shifted.dimension(1));
+
+			@SuppressWarnings("unchecked")
+			final RandomAccess<? extends RealType<?>> ra =
+				((Img<? extends RealType<?>>) shifted.getImg()).randomAccess();
+
+			for (int y = 1; y < 8; y++) {
+				for (int x = 1; x < 18; x++) {
+					ra.setPosition(new int[] { x, y });
+					assertEquals(value(x + shift[0], y + shift[1]), ra.get()
+						.getRealDouble(), 1e-3);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test that the nearest neighbor interpolator at pixel i of the shifted image
+	 * gives the linear interpolation at position i + shift.
+	 */
+	@Test
+	public void testInterpolator() {
+		final Img<FloatType> ramp = createRamp(8, 6);
+		final ShiftedImageInterpolation shifted =
+			ShiftedImageInterpolation.create(ramp, new double[] { 0.5, 0.25 }, 1);
+		final RealRandomAccess<FloatType> in = shifted.createInterpolator();
+
+		in.setPosition(new double[] { 3, 2 });
+		assertEquals(value(3.5, 2.25), in.get().get(), 1e-4);
+
+		in.fwd(0);
+		assertEquals(value(4.5, 2.25), in.get().get(), 1e-4);
+	}
+
+	/**
+	 * Test that an image with more pixels than fit into one array is not
+	 * resampled.
+	 */
+	@Test
+	public void testTooLarge() {
+		final long maxNumPixels = ShiftedImageInterpolation.maxNumPixels;
+
+		try {
+			ShiftedImageInterpolation.maxNumPixels = 8 * 6 - 1;
+			assertNull(ShiftedImageInterpolation.create(createRamp(8, 6),
+				new double[] { 0.5, 0.25 }, 1));
+		}
+		finally {
+			ShiftedImageInterpolation.maxNumPixels = maxNumPixels;
+		}
+	}
+
+	private Img<FloatType> createRamp(final int width, final int height) {
+		final float[] data = new float[width * height];
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				data[y * width + x] = (float) value(x, y);
+
+		return ArrayImgs.floats(data, width, height);
+	}
+
+	private double value(final double x, final double y) {
+		return 3 * x + 7 * y;
+	}
+}
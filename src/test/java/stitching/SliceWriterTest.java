@@ -0,0 +1,78 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import ij.ImagePlus;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+
+import mpicbg.stitching.fusion.SliceWriter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the {@link SliceWriter} class.
+ */
+public class SliceWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Test that all queued slices are written.
+	 */
+	@Test
+	public void testWrite() throws Exception {
+		final SliceWriter writer = new SliceWriter(1, 2);
+		final ImagePlus imp = new ImagePlus("slice", new ShortProcessor(16, 8));
+
+		for (int i = 0; i < 10; i++)
+			writer.write(imp, new File(folder.getRoot(), "slice" + i), null);
+
+		writer.close();
+
+		assertEquals(10, writer.getSlicesWritten());
+		assertEquals(10, folder.getRoot().list().length);
+	}
+
+	/**
+	 * Test that a slice that cannot be written makes {@link SliceWriter#write}
+	 * and {@link SliceWriter#close()} throw instead of blocking on the full
+	 * queue.
+	 */
+	@Test(timeout = 10000)
+	public void testFailureDoesNotBlock() throws Exception {
+		final SliceWriter writer = new SliceWriter(1, 1);
+		final ImagePlus imp = new ImagePlus("slice", new ShortProcessor(16, 8));
+
+		// the directory does not exist
+		writer.write(imp, new File(folder.getRoot(), "missing/slice"), null);
+
+		try {
+			// more slices than the queue holds
+			for (int i = 0; i < 10; i++)
+				writer.write(imp, new File(folder.getRoot(), "slice" + i), null);
+
+			fail("write() should fail after the writer failed");
+		}
+		catch (final IOException e) {
+			assertTrue(writer.getError() instanceof IOException);
+		}
+
+		try {
+			writer.close();
+			fail("close() should report the failure");
+		}
+		catch (final IOException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+
+		assertEquals(0, writer.getSlicesWritten());
+	}
+}
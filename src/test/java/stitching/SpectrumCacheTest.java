@@ -0,0 +1,79 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.stitching.PairWiseStitchingResult;
+import mpicbg.stitching.SpectrumCache;
+import mpicbg.stitching.StitchingParameters;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link SpectrumCache} class.
+ */
+public class SpectrumCacheTest {
+
+	/**
+	 * Test that all pairs of a 2x2 grid are registered with one transform per
+	 * tile.
+	 */
+	@Test
+	public void testGrid() {
+		final Random rnd = new Random(4);
+		final float[][] sample = new float[200][200];
+
+		// blobs on a textured background
+		for (int k = 0; k < 400; k++) {
+			final double cx = rnd.nextDouble() * 200, cy = rnd.nextDouble() * 200;
+			final double s = 1 + rnd.nextDouble() * 3, a = rnd.nextDouble() * 100;
+
+			for (int y = 0; y < 200; y++)
+				for (int x = 0; x < 200; x++)
+					sample[y][x] +=
+						a * Math.exp(-((x - cx) * (x - cx) + (y - cy) * (y - cy)) /
+							(2 * s * s));
+		}
+
+		for (int y = 0; y < 200; y++)
+			for (int x = 0; x < 200; x++)
+				sample[y][x] = 20 + sample[y][x] * (0.8f + 0.4f * rnd.nextFloat());
+
+		final int[][] positions = { { 5, 5 }, { 87, 8 }, { 7, 80 }, { 90, 77 } };
+		final ArrayList<ImagePlus> tiles = new ArrayList<ImagePlus>();
+
+		for (final int[] p : positions) {
+			final FloatProcessor ip = new FloatProcessor(100, 90);
+
+			for (int y = 0; y < 90; y++)
+				for (int x = 0; x < 100; x++)
+					ip.setf(x, y, sample[p[1] + y][p[0] + x]);
+
+			tiles.add(new ImagePlus("tile", ip));
+		}
+
+		final StitchingParameters params = new StitchingParameters();
+		params.channel1 = params.channel2 = 1;
+		params.checkPeaks = 5;
+
+		final SpectrumCache cache =
+			new SpectrumCache(SpectrumCache.getMaxSize(tiles), 1l << 30);
+		final int[][] pairs = { { 0, 1 }, { 0, 2 }, { 1, 3 }, { 2, 3 } };
+
+		for (final int[] pair : pairs) {
+			final PairWiseStitchingResult result =
+				cache.stitchPairwise(tiles.get(pair[0]), tiles.get(pair[1]), null,
+					null, 1, 1, params);
+
+			for (int d = 0; d < 2; d++)
+				assertEquals(positions[pair[1]][d] - positions[pair[0]][d], result
+					.getOffset(d), 0);
+		}
+
+		assertEquals(4, cache.getNumTransforms());
+	}
+}
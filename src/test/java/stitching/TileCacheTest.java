@@ -0,0 +1,155 @@
+package stitching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import mpicbg.stitching.ImageCollectionElement;
+import mpicbg.stitching.fusion.ImageInterpolation;
+import mpicbg.stitching.fusion.TileCache;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link TileCache} class.
+ */
+public class TileCacheTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("tiles", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		for (final File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Writes tiles of 256x256 float pixels with two channels, each filled with
+	 * ten times its index plus the channel.
+	 */
+	private List<ImageCollectionElement> createTiles(final int numTiles) {
+		final List<ImageCollectionElement> elements =
+			new ArrayList<ImageCollectionElement>();
+
+		for (int i = 0; i < numTiles; i++) {
+			final ImageStack stack = new ImageStack(256, 256);
+
+			for (int c = 1; c <= 2; c++) {
+				final FloatProcessor fp = new FloatProcessor(256, 256);
+				fp.setValue(i * 10 + c);
+				fp.fill();
+				stack.addSlice(fp);
+			}
+
+			final ImagePlus imp = new ImagePlus("tile" + i, stack);
+			imp.setDimensions(2, 1, 1);
+
+			final File file = new File(dir, "tile" + i + ".tif");
+			assertTrue(IJ.saveAsTiff(imp, file.getAbsolutePath()));
+
+			elements.add(new ImageCollectionElement(file, i));
+		}
+
+		return elements;
+	}
+
+	private static double getValue(final ImageInterpolation<? extends RealType<?>> tile) {
+		final RandomAccess<? extends RealType<?>> ra = tile.getImg().randomAccess();
+		ra.setPosition(new long[] { 5, 7 });
+		return ra.get().getRealDouble();
+	}
+
+	/**
+	 * Test that many threads using the tiles in random order, with a budget
+	 * smaller than two tiles, always get the right tile and channel and leave
+	 * exactly one tile counted for the budget.
+	 */
+	@Test
+	public void testConcurrentGet() throws Exception {
+		final List<ImageCollectionElement> elements = createTiles(3);
+		final long tileBytes = 256 * 256 * 4 * 2;
+		final TileCache cache = new TileCache(elements, false, tileBytes * 3 / 2);
+
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final Thread[] threads = new Thread[8];
+
+		for (int j = 0; j < threads.length; j++) {
+			final Random rnd = new Random(j);
+
+			threads[j] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						for (int k = 0; k < 300; k++) {
+							final int i = rnd.nextInt(elements.size());
+							final int c = 1 + rnd.nextInt(2);
+							assertEquals(i * 10 + c, getValue(cache.get(i, c, 1)), 0);
+							assertTrue(cache.getUsedBytes() >= 0);
+						}
+					}
+					catch (final Throwable t) {
+						error.compareAndSet(null, t);
+					}
+				}
+			};
+			threads[j].start();
+		}
+
+		for (final Thread thread : threads)
+			thread.join();
+
+		if (error.get() != null) throw new AssertionError(error.get());
+
+		assertEquals(tileBytes, cache.getUsedBytes());
+
+		for (int i = 0; i < elements.size(); i++)
+			cache.remove(i);
+
+		assertEquals(0, cache.getUsedBytes());
+	}
+
+	/**
+	 * Test that images the caller opened virtually are neither replaced nor
+	 * closed by the cache.
+	 */
+	@Test
+	public void testKeepsVirtualImages() {
+		final List<ImageCollectionElement> elements = createTiles(3);
+		final ImagePlus imp = elements.get(1).open(true);
+
+		final TileCache cache = new TileCache(elements, false, 0);
+
+		for (int i = 0; i < elements.size(); i++)
+			assertEquals(i * 10 + 1, getValue(cache.get(i, 1, 1)), 0);
+
+		cache.clear();
+
+		assertTrue(elements.get(1).isOpen());
+		assertTrue(elements.get(1).isVirtual());
+		assertSame(imp, elements.get(1).open(true));
+		assertTrue(!elements.get(0).isOpen());
+	}
+}